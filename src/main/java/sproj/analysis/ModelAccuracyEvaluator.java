@@ -11,6 +11,7 @@ import org.deeplearning4j.nn.layers.objdetect.DetectedObject;
 import sproj.util.BoundingBox;
 import sproj.util.DetectionsParser;
 import sproj.util.MissingDataHandeler;
+import sproj.util.SpatialGrid;
 import sproj.yolo.YOLOModelContainer;
 
 import java.awt.event.KeyEvent;
@@ -31,6 +32,12 @@ import static org.bytedeco.javacpp.opencv_imgproc.*;
  */
 public class ModelAccuracyEvaluator extends ModelEvaluator {
 
+    private final int INFERENCE_BATCH_SIZE = 16;       // number of frames to run through the model at once
+
+    // truth points of the current frame, in the coordinates of the model input
+    private final SpatialGrid truthPointGrid = new SpatialGrid(
+            YOLOModelContainer.IMG_WIDTH, YOLOModelContainer.IMG_HEIGHT, 32);
+
     public ModelAccuracyEvaluator() {
         this(true, true);
     }
@@ -77,14 +84,18 @@ public class ModelAccuracyEvaluator extends ModelEvaluator {
 
         double accuracy = 0.0;
 
-        for (BoundingBox box : boundingBoxes) {
+        truthPointGrid.clear();
+        for (Double[] pt : truthPoints) {
+            if (pt != null) {
+                truthPointGrid.add(pt[0], pt[1]);
+            }
+        }
 
-            for (Double[] pt : truthPoints) {
+        for (BoundingBox box : boundingBoxes) {
 
-                if (box.contains(pt)) {
-                    accuracy += 1.0 / numbAnimals;   // e.g. if there are 4 animals, each correct one adds 0.25
-                    break;  // count only one point per box
-                }
+            // count only one point per box
+            if (truthPointGrid.findInRectangle(box.topleftX, box.topleftY, box.botRightX, box.botRightY) > 0) {
+                accuracy += 1.0 / numbAnimals;   // e.g. if there are 4 animals, each correct one adds 0.25
             }
         }
 
@@ -131,104 +142,128 @@ public class ModelAccuracyEvaluator extends ModelEvaluator {
 
         int truthIdx = 0;   // current index in truth points list
 
+        // frames are run through the model in batches, which is much faster than one at a time
+        List<Mat> batchFrames = new ArrayList<>(INFERENCE_BATCH_SIZE);
+        List<Integer> batchFrameNumbers = new ArrayList<>(INFERENCE_BATCH_SIZE);
+        List<List<DetectedObject>> batchDetections;
+
         long startTime = System.currentTimeMillis();
 
-        while ((frame = grabber.grabImage()) != null && !exitLoop) {
+        while (!exitLoop) {
+
+            batchFrames.clear();
+            batchFrameNumbers.clear();
 
-            frameImg = new Mat(frameConverter.convertToMat(frame), cropRect);
-            frameNo = grabber.getFrameNumber();
+            while (batchFrames.size() < INFERENCE_BATCH_SIZE && (frame = grabber.grabImage()) != null) {
+                // clone the cropped frame, because the grabber reuses the same buffer for each frame it grabs
+                batchFrames.add(new Mat(frameConverter.convertToMat(frame), cropRect).clone());
+                batchFrameNumbers.add(grabber.getFrameNumber());
+            }
+
+            if (batchFrames.isEmpty()) {
+                break;      // reached end of video
+            }
 
             //todo test effects on accuracy of different frame filter algorithms
 
-            detectedObjects = yoloModelContainer.runInference(frameImg);
-            List<BoundingBox> boundingBoxes = detectionsParser.parseDetections(detectedObjects);
+            batchDetections = yoloModelContainer.runInference(batchFrames);
 
-            double accuracy;
+            for (int b = 0; b < batchFrames.size() && !exitLoop; b++) {
 
-            if (! HAVE_GROUND_TRUTH) {
+                frameImg = batchFrames.get(b);
+                frameNo = batchFrameNumbers.get(b);
+                detectedObjects = batchDetections.get(b);
 
-                accuracy = calculateAccuracy(detectedObjects, numbAnimals);
+                List<BoundingBox> boundingBoxes = detectionsParser.parseDetections(detectedObjects);
 
-            } else {
+                double accuracy;
 
-                if (truthIdx >= truthPoints.size()) {
-                    System.out.println("Reached end of truth data");
-                    break;      // todo does this break out of while loop
-                }
+                if (! HAVE_GROUND_TRUTH) {
+
+                    accuracy = calculateAccuracy(detectedObjects, numbAnimals);
 
-                List<Double[]> truthCoordinates = truthPoints.get(truthIdx);
+                } else {
 
-                if (SHOW_LIVE_EVAL_DISPLAY) {
-                    for (Double[] pt : truthCoordinates) {
+                    if (truthIdx >= truthPoints.size()) {
+                        System.out.println("Reached end of truth data");
+                        exitLoop = true;
+                        break;
+                    }
+
+                    List<Double[]> truthCoordinates = truthPoints.get(truthIdx);
 
-                        if (pt == null) {
-                            continue;
+                    if (SHOW_LIVE_EVAL_DISPLAY) {
+                        for (Double[] pt : truthCoordinates) {
+
+                            if (pt == null) {
+                                continue;
+                            }
+                            circle(frameImg, new opencv_core.Point(
+                                            (int) Math.round(pt[0]), (int) Math.round(pt[1])
+                                    ),
+                                    3, opencv_core.Scalar.RED, -1, 8, 0);       // -1 is CV_FILLED, to fill the circle
                         }
-                        circle(frameImg, new opencv_core.Point(
-                                        (int) Math.round(pt[0]), (int) Math.round(pt[1])
-                                ),
-                                3, opencv_core.Scalar.RED, -1, 8, 0);       // -1 is CV_FILLED, to fill the circle
                     }
-                }
 
-                truthCoordinates = scalePoints(truthCoordinates, cropRect.width(), cropRect.height());
+                    truthCoordinates = scalePoints(truthCoordinates, cropRect.width(), cropRect.height());
 
-                int frameNumbStamp = (int) Math.round(truthCoordinates.get(0)[3]);
+                    int frameNumbStamp = (int) Math.round(truthCoordinates.get(0)[3]);
 
-                // todo don't skip all unlabeled frames here
-                if (frameNo != frameNumbStamp) {
-                    continue;
-                }
+                    // todo don't skip all unlabeled frames here
+                    if (frameNo != frameNumbStamp) {
+                        continue;
+                    }
 
-                accuracy = calculateAccuracy(boundingBoxes, numbAnimals, truthCoordinates);
+                    accuracy = calculateAccuracy(boundingBoxes, numbAnimals, truthCoordinates);
 
-                truthIdx++;
-            }
+                    truthIdx++;
+                }
 
-            detectionAccuracies.add(accuracy);
+                detectionAccuracies.add(accuracy);
 
-            System.out.print("\r" + (frameNo + 1) + " of " + totalFrames + " frames processed");
+                System.out.print("\r" + (frameNo + 1) + " of " + totalFrames + " frames processed");
 
-            if (SHOW_LIVE_EVAL_DISPLAY && canvasFrame != null) {
+                if (SHOW_LIVE_EVAL_DISPLAY && canvasFrame != null) {
 
-                resize(frameImg, frameImg, new opencv_core.Size(
-                        YOLOModelContainer.IMG_WIDTH, YOLOModelContainer.IMG_HEIGHT)
-                );
+                    resize(frameImg, frameImg, new opencv_core.Size(
+                            YOLOModelContainer.IMG_WIDTH, YOLOModelContainer.IMG_HEIGHT)
+                    );
 
-                for (BoundingBox box : boundingBoxes) {
-                    rectangle(frameImg, new opencv_core.Point(box.topleftX, box.topleftY),
-                            new opencv_core.Point(box.botRightX, box.botRightY),
-                            opencv_core.Scalar.RED, 1, CV_AA, 0);
+                    for (BoundingBox box : boundingBoxes) {
+                        rectangle(frameImg, new opencv_core.Point(box.topleftX, box.topleftY),
+                                new opencv_core.Point(box.botRightX, box.botRightY),
+                                opencv_core.Scalar.RED, 1, CV_AA, 0);
 
-                }
+                    }
 
-                //resize(frameImg, frameImg, new opencv_core.Size(720, 720));
+                    //resize(frameImg, frameImg, new opencv_core.Size(720, 720));
 
-                canvasFrame.showImage(
-                        frameConverter.convert(frameImg)
-                );
+                    canvasFrame.showImage(
+                            frameConverter.convert(frameImg)
+                    );
 
-                try {
-                    keyEvent = canvasFrame.waitKey(10);
-                } catch (InterruptedException ignored) {
-                    continue;
-                }
-                if (keyEvent != null) {
+                    try {
+                        keyEvent = canvasFrame.waitKey(10);
+                    } catch (InterruptedException ignored) {
+                        continue;
+                    }
+                    if (keyEvent != null) {
+
+                        char keyChar = keyEvent.getKeyChar();
 
-                    char keyChar = keyEvent.getKeyChar();
+                        switch(keyChar) {
 
-                    switch(keyChar) {
+                            case KeyEvent.VK_ESCAPE: exitLoop = true; break;      // hold escape key or 'q' to quit
 
-                        case KeyEvent.VK_ESCAPE: exitLoop = true; break;      // hold escape key or 'q' to quit
+                            case KeyEvent.VK_Q: {       // shift q to quit entirely
+                                canvasFrame.dispose();
+                                grabber.release();
+                                System.exit(0);
+                            }
 
-                        case KeyEvent.VK_Q: {       // shift q to quit entirely
-                            canvasFrame.dispose();
-                            grabber.release();
-                            System.exit(0);
                         }
 
                     }
-
                 }
             }
         }
@@ -0,0 +1,242 @@
+package sproj.analysis;
+
+import org.apache.commons.collections4.map.HashedMap;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Size;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.deeplearning4j.nn.layers.objdetect.DetectedObject;
+import org.deeplearning4j.nn.layers.objdetect.YoloUtils;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import sproj.util.DetectionBatch;
+import sproj.util.IOUtils;
+import sproj.util.NonMaxSuppression;
+import sproj.yolo.YOLOModelContainer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bytedeco.javacpp.opencv_imgproc.resize;
+
+/**
+ * Compares the speed of the non maximum suppression methods in NonMaxSuppression with YoloUtils.nms() from DL4J,
+ * on the raw (not yet suppressed) detections of a recorded video.
+ *
+ * The detections are recorded once with the -record option, which runs the model on the frames of a video
+ * with NMS turned off, and saves them to a dump file. Each line of the file is one detection:
+ *
+ *      frame,topLeftX,topLeftY,botRightX,botRightY,confidence,class
+ *
+ * in pixels of the model input. The benchmark then reads the dump file and runs each method on every frame.
+ */
+public class NmsBenchmark {
+
+    private static final double IOU_THRESHOLD = 0.5;        // same as DetectionsParser
+    private static final double PIXELS_PER_CELL = 32.0;
+
+    private final List<DetectionBatch> frames;
+    private final int numbClasses;
+
+    public NmsBenchmark(List<DetectionBatch> frames) {
+        this.frames = frames;
+        int maxClass = 0;
+        for (DetectionBatch frame : frames) {
+            for (int i = 0; i < frame.size(); i++) {
+                maxClass = Math.max(maxClass, frame.getClassIndex(i));
+            }
+        }
+        this.numbClasses = maxClass + 1;
+    }
+
+    /**
+     * Runs the model on up to maxFrames frames of the video, and writes all detections above the confidence threshold
+     * to the dump file, before non maximum suppression
+     */
+    public static void record(File video, File model, File dumpFile, int maxFrames) throws IOException {
+
+        YOLOModelContainer container = new YOLOModelContainer(model, false);
+        container.getNonMaxSuppression().setMethod(NonMaxSuppression.Method.NONE);
+
+        OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat();
+        Size inputSize = new Size(YOLOModelContainer.IMG_WIDTH, YOLOModelContainer.IMG_HEIGHT);
+        Mat resized = new Mat();
+        DetectionBatch detections = new DetectionBatch();
+
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(video);
+             PrintWriter writer = new PrintWriter(new FileWriter(dumpFile))) {
+
+            grabber.start();
+            Frame frame;
+            int frameNumber = 0;
+
+            while (frameNumber < maxFrames && (frame = grabber.grabImage()) != null) {
+                resize(converter.convert(frame), resized, inputSize);
+                container.runInference(resized, detections);
+                for (int i = 0; i < detections.size(); i++) {
+                    writer.println(frameNumber + "," + detections.getTopLeftX(i) + "," + detections.getTopLeftY(i)
+                            + "," + detections.getBotRightX(i) + "," + detections.getBotRightY(i)
+                            + "," + detections.getConfidence(i) + "," + detections.getClassIndex(i));
+                }
+                frameNumber++;
+            }
+            grabber.stop();
+        }
+    }
+
+    public static List<DetectionBatch> readDump(File dumpFile) throws IOException {
+
+        List<DetectionBatch> frames = new ArrayList<>();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(dumpFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] values = line.split(",");
+                if (values.length != 7) {
+                    throw new IOException("Invalid line in detection dump: " + line);
+                }
+                int frameNumber = Integer.parseInt(values[0]);
+                while (frames.size() <= frameNumber) {
+                    frames.add(new DetectionBatch());
+                }
+                frames.get(frameNumber).add(Integer.parseInt(values[1]), Integer.parseInt(values[2]),
+                        Integer.parseInt(values[3]), Integer.parseInt(values[4]),
+                        Double.parseDouble(values[5]), Integer.parseInt(values[6]));
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * @return the same detections as DetectedObject instances, in grid cell units, as given by Yolo2OutputLayer
+     */
+    private List<List<DetectedObject>> toDetectedObjects() {
+
+        List<List<DetectedObject>> objects = new ArrayList<>(frames.size());
+        for (DetectionBatch frame : frames) {
+            List<DetectedObject> frameObjects = new ArrayList<>(frame.size());
+            for (int i = 0; i < frame.size(); i++) {
+                INDArray classPredictions = Nd4j.zeros(numbClasses, 1);
+                classPredictions.putScalar(frame.getClassIndex(i), 1.0);
+                frameObjects.add(new DetectedObject(0,
+                        (frame.getTopLeftX(i) + frame.getBotRightX(i)) / 2.0 / PIXELS_PER_CELL,
+                        (frame.getTopLeftY(i) + frame.getBotRightY(i)) / 2.0 / PIXELS_PER_CELL,
+                        (frame.getBotRightX(i) - frame.getTopLeftX(i)) / PIXELS_PER_CELL,
+                        (frame.getBotRightY(i) - frame.getTopLeftY(i)) / PIXELS_PER_CELL,
+                        classPredictions, frame.getConfidence(i)));
+            }
+            objects.add(frameObjects);
+        }
+        return objects;
+    }
+
+    /**
+     * Each method is run on every frame `iterations` times, after the same number of warm-up iterations.
+     * Copying the detections of the frame before each run is included in the times of all methods.
+     */
+    public void run(int iterations) {
+
+        int candidates = 0;
+        for (DetectionBatch frame : frames) {
+            candidates += frame.size();
+        }
+        System.out.println(String.format("%d frames, %.1f candidate detections per frame",
+                frames.size(), candidates / (double) Math.max(1, frames.size())));
+
+        List<List<DetectedObject>> objects = toDetectedObjects();
+        for (List<DetectedObject> frameObjects : objects) {
+            for (DetectedObject object : frameObjects) {
+                object.getPredictedClass();     // cached in the object, so the argmax is not timed
+            }
+        }
+
+        for (int pass = 0; pass < 2; pass++) {
+            long startTime = System.nanoTime();
+            long kept = 0;
+            for (int i = 0; i < iterations; i++) {
+                for (List<DetectedObject> frameObjects : objects) {
+                    List<DetectedObject> copy = new ArrayList<>(frameObjects);
+                    YoloUtils.nms(copy, IOU_THRESHOLD);
+                    kept += copy.size();
+                }
+            }
+            if (pass == 1) {
+                report("DL4J YoloUtils.nms", System.nanoTime() - startTime, kept, iterations);
+            }
+        }
+
+        for (NonMaxSuppression.Method method : new NonMaxSuppression.Method[]{
+                NonMaxSuppression.Method.GREEDY, NonMaxSuppression.Method.GRID, NonMaxSuppression.Method.SOFT}) {
+
+            NonMaxSuppression nonMaxSuppression = new NonMaxSuppression(IOU_THRESHOLD, true);
+            nonMaxSuppression.setMethod(method);
+            DetectionBatch copy = new DetectionBatch();
+
+            for (int pass = 0; pass < 2; pass++) {
+                long startTime = System.nanoTime();
+                long kept = 0;
+                for (int i = 0; i < iterations; i++) {
+                    for (DetectionBatch frame : frames) {
+                        copy.clear();
+                        for (int d = 0; d < frame.size(); d++) {
+                            copy.add(frame.getTopLeftX(d), frame.getTopLeftY(d), frame.getBotRightX(d),
+                                    frame.getBotRightY(d), frame.getConfidence(d), frame.getClassIndex(d));
+                        }
+                        nonMaxSuppression.apply(copy, 0);
+                        kept += copy.size();
+                    }
+                }
+                if (pass == 1) {
+                    report("NonMaxSuppression " + method, System.nanoTime() - startTime, kept, iterations);
+                }
+            }
+        }
+    }
+
+    private void report(String name, long nanos, long kept, int iterations) {
+        double runs = (double) iterations * Math.max(1, frames.size());
+        System.out.println(String.format("%-28s %9.2f us per frame, %.2f detections kept per frame",
+                name, nanos / 1000.0 / runs, kept / runs));
+    }
+
+    /**
+     * Arguments:
+     *      -dump <file>            detection dump file, written by -record and read by the benchmark (required)
+     *      -record <video>         record the detections of this video to the dump file, instead of running the benchmark
+     *      -model <file>           model used by -record (default: src/main/resources/inference/yolov2_80000.zip)
+     *      -frames <n>             number of frames recorded by -record (default: 1000)
+     *      -iterations <n>         number of times the benchmark runs over all frames (default: 20)
+     */
+    public static void main(String[] args) throws IOException {
+
+        HashedMap<String, List<String>> parameters = IOUtils.parseArgs(args);
+
+        if (!parameters.containsKey("-dump") || parameters.get("-dump").isEmpty()) {
+            System.out.println("Usage: NmsBenchmark -dump <file> [-record <video> [-model <file>] [-frames <n>]] [-iterations <n>]");
+            return;
+        }
+        File dumpFile = new File(parameters.get("-dump").get(0));
+
+        if (parameters.containsKey("-record")) {
+            File model = new File(parameters.containsKey("-model") ?
+                    parameters.get("-model").get(0) : YOLOModelContainer.DEFAULT_MODEL_PATH);
+            int maxFrames = parameters.containsKey("-frames") ? Integer.parseInt(parameters.get("-frames").get(0)) : 1000;
+            record(new File(parameters.get("-record").get(0)), model, dumpFile, maxFrames);
+            return;
+        }
+
+        int iterations = parameters.containsKey("-iterations") ?
+                Integer.parseInt(parameters.get("-iterations").get(0)) : 20;
+        new NmsBenchmark(readDump(dumpFile)).run(iterations);
+    }
+}
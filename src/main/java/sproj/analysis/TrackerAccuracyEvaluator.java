@@ -9,6 +9,8 @@ import sproj.tracking.Animal;
 import sproj.tracking.SinglePlateTracker;
 import sproj.util.DetectionsParser;
 import sproj.util.MissingDataHandeler;
+import sproj.util.SpatialGrid;
+import sproj.yolo.YOLOModelContainer;
 
 import java.io.File;
 import java.io.IOException;
@@ -28,6 +30,10 @@ public class TrackerAccuracyEvaluator extends ModelEvaluator {
 
     private final boolean DEBUG = true;
 
+    // truth points of the current frame, in the coordinates of the model input
+    private final SpatialGrid truthPointGrid = new SpatialGrid(
+            YOLOModelContainer.IMG_WIDTH, YOLOModelContainer.IMG_HEIGHT, 32);
+
     public TrackerAccuracyEvaluator() {
         this(true, true);
     }
@@ -126,27 +132,19 @@ public class TrackerAccuracyEvaluator extends ModelEvaluator {
 
                 double accuracy = 0.0;
 
-                for (Animal anml : animals) {
-
-                    boolean assigned = false;
-
-                    for (Double[] pt : scaled) {    // x, y, isPredicted, timeStamp
-
-                        if (pt == null) {
-                            continue;
-                        }
+                truthPointGrid.clear();
+                for (Double[] pt : scaled) {    // x, y, isPredicted, timeStamp
+                    if (pt != null) {
+                        truthPointGrid.add(pt[0], pt[1]);
+                    }
+                }
 
-                        if (Math.pow(Math.pow(anml.x - pt[0], 2) +
-                                Math.pow(anml.y - pt[1], 2), 0.5) <= 7) {
+                for (Animal anml : animals) {
 
-                            //System.out.println("Animal corresponds to point : " + Arrays.toString(pt));
-                            assigned = true;
-                            accuracy += 1.0 / numbAnimals;
-                            break;
-                        }
-                    }
+                    boolean assigned = truthPointGrid.findWithinRadius(anml.x, anml.y, 7) > 0;
 
                     if (assigned) {
+                        accuracy += 1.0 / numbAnimals;
                         accuracyRecords.get(anml).add(1.0);
                     } else {
                         accuracyRecords.get(anml).add(0.0);
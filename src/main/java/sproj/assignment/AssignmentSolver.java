@@ -0,0 +1,44 @@
+package sproj.assignment;
+
+import sproj.tracking.Animal;
+import sproj.util.BoundingBox;
+import sproj.util.DetectionBatch;
+
+import java.util.List;
+
+/**
+ * Common interface of the algorithms that pair the tracked Animals with the
+ * BoundingBoxes detected on the current frame, so that the tracker can switch between them.
+ *
+ * Implementations keep their working memory between calls, so each tracker needs its own instance.
+ */
+public interface AssignmentSolver {
+
+    /**
+     * Finds the pairing of animals and boxes with the lowest total cost, where an animal left
+     * without a box costs its Animal.getCurrNonAssignmentCost() value.
+     *
+     * Every animal appears in exactly one Assignment, with a null box if it was not assigned.
+     * Implementations may also add Assignments with a null animal for the unassigned boxes,
+     * which callers should skip.
+     *
+     * @param anmls List of animal instances belonging to SinglePlateTracker class
+     * @param boxes List of BoundingBoxes generated by the DetectionsParser class
+     * @param out list that is cleared and then filled with the Assignment instances. These may be
+     *            reused by the solver on the next call, so they must not be kept after that.
+     * @return `out`
+     */
+    List<OptimalAssigner.Assignment> getOptimalAssignments(List<Animal> anmls, List<BoundingBox> boxes,
+                                                           List<OptimalAssigner.Assignment> out);
+
+    /**
+     * Same as getOptimalAssignments(anmls, boxes, out), for the detections in a DetectionBatch.
+     * The boxes in the Assignments are the ones in detections.asBoundingBoxes().
+     *
+     * Implementations can override this to read the box positions straight from the batch's arrays.
+     */
+    default List<OptimalAssigner.Assignment> getOptimalAssignments(List<Animal> anmls, DetectionBatch detections,
+                                                                   List<OptimalAssigner.Assignment> out) {
+        return getOptimalAssignments(anmls, detections.asBoundingBoxes(), out);
+    }
+}
@@ -0,0 +1,362 @@
+package sproj.assignment;
+
+import sproj.tracking.Animal;
+import sproj.util.BoundingBox;
+import sproj.util.SpatialGrid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Assigns detections to animals without considering pairs that are too far apart to be the same animal.
+ *
+ * An animal and a box are only connected if the box is within the gate around the animal:
+ *      - closer than maxDistance pixels
+ *      - closer than the animal's current non-assignment cost. An animal never takes a box that is
+ *        further away than this anyway, since leaving both unassigned would cost less.
+ *      - optionally, within a Mahalanobis distance of the animal's position, using the uncertainty of its
+ *        Kalman filter, which narrows the gate further for animals whose position is known well
+ *
+ * The candidate boxes of each animal are looked up in a SpatialGrid of the box centers, so only nearby
+ * pairs are ever checked, and are stored as a sparse list of edges rather than a dense matrix.
+ * The animals and boxes are then split into connected components, i.e. groups that share no connections
+ * with any other group, and each component is solved separately with the JonkerVolgenantAssigner.
+ * Animals far apart from each other end up in separate components of one or two animals and boxes,
+ * so one large solve turns into many tiny ones. Components can optionally be solved in parallel,
+ * which only pays off when there are many large ones.
+ *
+ * Note that the maxDistance gate changes the result when an animal has been predicted for long enough
+ * that its non-assignment cost is larger than maxDistance: it will no longer jump to a box further away than that.
+ *
+ * The working memory is kept between calls and only grows. An instance is not thread safe.
+ */
+public class GatedAssigner implements AssignmentSolver {
+
+    private final double maxDistance;
+
+    private boolean mahalanobisGate = false;
+    private double maxMahalanobisSquared;
+    private double measurementVariance;
+
+    private boolean parallel = false;
+
+    private final JonkerVolgenantAssigner solver = new JonkerVolgenantAssigner();
+    private final List<OptimalAssigner.Assignment> solverOutput = new ArrayList<>();
+    private final ThreadLocal<JonkerVolgenantAssigner> parallelSolvers =
+            ThreadLocal.withInitial(JonkerVolgenantAssigner::new);
+    private final ThreadLocal<List<OptimalAssigner.Assignment>> parallelOutputs =
+            ThreadLocal.withInitial(ArrayList::new);
+
+    private final SpatialGrid boxGrid = new SpatialGrid();
+
+    private int animalCapacity, boxCapacity;
+    private int[] edgeStart;                // edges of animal i are edgeBoxes[edgeStart[i] .. edgeStart[i+1])
+    private int[] edgeBoxes = new int[64];
+    private int numbEdges;
+    private int[] parent;                   // union-find forest, animals first and then boxes
+    private int[] componentIndex;           // component id of each union-find root, or -1
+    private BoundingBox[] assignedBoxes;    // [animal], written by the component solves
+    private double[] inverseXX, inverseXY, inverseYY;   // [animal], inverse position covariance for the Mahalanobis gate
+
+    // per component; the lists are kept and reused across calls
+    private int numbComponents;
+    private final List<List<Animal>> componentAnimals = new ArrayList<>();
+    private final List<List<BoundingBox>> componentBoxes = new ArrayList<>();
+    private final List<int[]> componentAnimalIndices = new ArrayList<>();
+    private final List<int[]> componentBoxIndices = new ArrayList<>();
+
+    private final List<OptimalAssigner.Assignment> assignmentPool = new ArrayList<>();
+
+    private int largestComponent;
+
+    /**
+     * @param maxDistance largest distance in pixels between an animal and a box that can be assigned to it
+     */
+    public GatedAssigner(double maxDistance) {
+        if (maxDistance <= 0) {
+            throw new IllegalArgumentException("Gate distance must be positive: " + maxDistance);
+        }
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * Also gates pairs on the Mahalanobis distance between the box center and the animal's position,
+     * using the position covariance of the animal's Kalman filter. Animals without a filter are only
+     * gated on the Euclidean distance.
+     *
+     * @param maxMahalanobis largest Mahalanobis distance that can be assigned, e.g. 3.0
+     * @param measurementVariance variance of the detected positions in pixels^2, added to the filter's covariance
+     */
+    public void setMahalanobisGate(double maxMahalanobis, double measurementVariance) {
+        if (maxMahalanobis <= 0 || measurementVariance <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Mahalanobis gate and measurement variance must be positive: %f, %f", maxMahalanobis, measurementVariance));
+        }
+        this.mahalanobisGate = true;
+        this.maxMahalanobisSquared = maxMahalanobis * maxMahalanobis;
+        this.measurementVariance = measurementVariance;
+    }
+
+    /**
+     * @param parallel solve the components on the common ForkJoinPool instead of the calling thread
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    @Override
+    public List<OptimalAssigner.Assignment> getOptimalAssignments(final List<Animal> anmls, final List<BoundingBox> boxes,
+                                                                  final List<OptimalAssigner.Assignment> out) {
+        out.clear();
+
+        int numbAnimals = anmls.size();
+        int numbBoxes = boxes.size();
+        ensureCapacity(numbAnimals, numbBoxes);
+
+        for (int i = 0; i < numbAnimals + numbBoxes; i++) {
+            parent[i] = i;
+        }
+
+        indexBoxes(boxes);
+        numbEdges = 0;
+
+        for (int i = 0; i < numbAnimals; i++) {
+
+            Animal anml = anmls.get(i);
+            double gate = Math.min(maxDistance, anml.getCurrNonAssignmentCost());
+            edgeStart[i] = numbEdges;
+
+            int numbCandidates = boxGrid.findWithinRadius(anml.x, anml.y, gate);
+            if (numbCandidates == 0) {
+                continue;
+            }
+
+            boolean useCovariance = mahalanobisGate && anml.trackingFilter != null;
+            if (useCovariance) {
+                invertPositionCovariance(i, anml);
+            }
+
+            for (int k = 0; k < numbCandidates; k++) {
+                int j = boxGrid.getResult(k);
+                BoundingBox box = boxes.get(j);
+                double dx = box.centerX - anml.x;
+                double dy = box.centerY - anml.y;
+
+                boolean inGate = dx * dx + dy * dy < gate * gate;
+                if (inGate && useCovariance) {
+                    double mahalanobisSquared = inverseXX[i] * dx * dx + inverseXY[i] * dx * dy + inverseYY[i] * dy * dy;
+                    inGate = mahalanobisSquared <= maxMahalanobisSquared;
+                }
+                if (inGate) {
+                    addEdge(j);
+                    union(i, numbAnimals + j);
+                }
+            }
+        }
+        edgeStart[numbAnimals] = numbEdges;
+
+        groupComponents(anmls, boxes);
+        Arrays.fill(assignedBoxes, 0, numbAnimals, null);
+
+        if (parallel && numbComponents > 1) {
+            IntStream.range(0, numbComponents).parallel().forEach(
+                    c -> solveComponent(c, parallelSolvers.get(), parallelOutputs.get()));
+        } else {
+            for (int c = 0; c < numbComponents; c++) {
+                solveComponent(c, solver, solverOutput);
+            }
+        }
+
+        // one assignment per animal, in the same order as `anmls`
+        for (int i = 0; i < numbAnimals; i++) {
+            out.add(pooledAssignment(i, anmls.get(i), assignedBoxes[i]));
+        }
+        return out;
+    }
+
+    private void solveComponent(int c, JonkerVolgenantAssigner componentSolver, List<OptimalAssigner.Assignment> output) {
+
+        List<Animal> animals = componentAnimals.get(c);
+        List<BoundingBox> boxes = componentBoxes.get(c);
+
+        if (boxes.isEmpty()) {
+            return;
+        }
+
+        int[] animalIndices = componentAnimalIndices.get(c);
+        int[] boxIndices = componentBoxIndices.get(c);
+
+        componentSolver.getOptimalAssignments(animals, boxes, output,
+                (animal, box) -> isConnected(animalIndices[animal], boxIndices[box]));
+
+        // the solver returns one assignment per animal, in the order of `animals`
+        for (int k = 0; k < output.size(); k++) {
+            assignedBoxes[animalIndices[k]] = output.get(k).box;
+        }
+    }
+
+    /**
+     * Puts the box centers in the grid, with cells the size of the largest gate
+     */
+    private void indexBoxes(final List<BoundingBox> boxes) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (BoundingBox box : boxes) {
+            minX = Math.min(minX, box.centerX);
+            minY = Math.min(minY, box.centerY);
+            maxX = Math.max(maxX, box.centerX);
+            maxY = Math.max(maxY, box.centerY);
+        }
+        if (boxes.isEmpty()) {
+            boxGrid.reset(0, 0, 1, 1, 1);
+            return;
+        }
+        boxGrid.reset(minX, minY, maxX + 1, maxY + 1, maxDistance);
+        for (BoundingBox box : boxes) {
+            boxGrid.add(box.centerX, box.centerY);      // the ids are the box indices
+        }
+    }
+
+    private void addEdge(int box) {
+        if (numbEdges == edgeBoxes.length) {
+            edgeBoxes = Arrays.copyOf(edgeBoxes, numbEdges * 2);
+        }
+        edgeBoxes[numbEdges++] = box;
+    }
+
+    private boolean isConnected(int animal, int box) {
+        for (int e = edgeStart[animal]; e < edgeStart[animal + 1]; e++) {
+            if (edgeBoxes[e] == box) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collects the animals and boxes of each connected component into the per component lists.
+     * Components with no animals (boxes that are not close to any animal) are left out.
+     */
+    private void groupComponents(final List<Animal> anmls, final List<BoundingBox> boxes) {
+
+        int numbAnimals = anmls.size();
+        int numbBoxes = boxes.size();
+
+        Arrays.fill(componentIndex, 0, numbAnimals + numbBoxes, -1);
+        numbComponents = 0;
+        largestComponent = 0;
+
+        for (int i = 0; i < numbAnimals; i++) {
+            int root = find(i);
+            if (componentIndex[root] == -1) {
+                componentIndex[root] = numbComponents;
+                startComponent(numbComponents++, numbAnimals, numbBoxes);
+            }
+            int c = componentIndex[root];
+            componentAnimalIndices.get(c)[componentAnimals.get(c).size()] = i;
+            componentAnimals.get(c).add(anmls.get(i));
+        }
+        for (int j = 0; j < numbBoxes; j++) {
+            int c = componentIndex[find(numbAnimals + j)];
+            if (c == -1) {
+                continue;
+            }
+            componentBoxIndices.get(c)[componentBoxes.get(c).size()] = j;
+            componentBoxes.get(c).add(boxes.get(j));
+        }
+        for (int c = 0; c < numbComponents; c++) {
+            largestComponent = Math.max(largestComponent, componentAnimals.get(c).size() + componentBoxes.get(c).size());
+        }
+    }
+
+    private void startComponent(int c, int numbAnimals, int numbBoxes) {
+        if (c == componentAnimals.size()) {
+            componentAnimals.add(new ArrayList<>());
+            componentBoxes.add(new ArrayList<>());
+            componentAnimalIndices.add(new int[0]);
+            componentBoxIndices.add(new int[0]);
+        }
+        componentAnimals.get(c).clear();
+        componentBoxes.get(c).clear();
+        if (componentAnimalIndices.get(c).length < numbAnimals) {
+            componentAnimalIndices.set(c, new int[animalCapacity]);
+        }
+        if (componentBoxIndices.get(c).length < numbBoxes) {
+            componentBoxIndices.set(c, new int[boxCapacity]);
+        }
+    }
+
+    /**
+     * Stores the inverse of the 2x2 position block of the animal's Kalman filter error covariance, plus measurement
+     * noise, as the three terms of its quadratic form: the two off-diagonal entries are added into inverseXY
+     */
+    private void invertPositionCovariance(int index, Animal anml) {
+        double a = anml.trackingFilter.getErrorCovariance(0, 0) + measurementVariance;
+        double b = anml.trackingFilter.getErrorCovariance(0, 1);
+        double c = anml.trackingFilter.getErrorCovariance(1, 0);
+        double d = anml.trackingFilter.getErrorCovariance(1, 1) + measurementVariance;
+        double determinant = a * d - b * c;
+        inverseXX[index] = d / determinant;
+        inverseXY[index] = -(b + c) / determinant;
+        inverseYY[index] = a / determinant;
+    }
+
+    private int find(int node) {
+        while (parent[node] != node) {
+            parent[node] = parent[parent[node]];    // path halving
+            node = parent[node];
+        }
+        return node;
+    }
+
+    private void union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA != rootB) {
+            parent[rootB] = rootA;
+        }
+    }
+
+    private void ensureCapacity(int animals, int boxes) {
+        if (edgeStart != null && animals <= animalCapacity && boxes <= boxCapacity) {
+            return;
+        }
+        animalCapacity = Math.max(animals, animalCapacity);
+        boxCapacity = Math.max(boxes, boxCapacity);
+        edgeStart = new int[animalCapacity + 1];
+        parent = new int[animalCapacity + boxCapacity];
+        componentIndex = new int[animalCapacity + boxCapacity];
+        assignedBoxes = new BoundingBox[animalCapacity];
+        inverseXX = new double[animalCapacity];
+        inverseXY = new double[animalCapacity];
+        inverseYY = new double[animalCapacity];
+    }
+
+    private OptimalAssigner.Assignment pooledAssignment(int index, Animal animal, BoundingBox box) {
+        if (index < assignmentPool.size()) {
+            OptimalAssigner.Assignment assignment = assignmentPool.get(index);
+            assignment.animal = animal;
+            assignment.box = box;
+            return assignment;
+        }
+        OptimalAssigner.Assignment assignment = new OptimalAssigner.Assignment(animal, box);
+        assignmentPool.add(assignment);
+        return assignment;
+    }
+
+    /**
+     * @return number of connected components in the last call
+     */
+    public int getNumbComponents() {
+        return numbComponents;
+    }
+
+    /**
+     * @return number of animals plus boxes in the largest connected component of the last call
+     */
+    public int getLargestComponentSize() {
+        return largestComponent;
+    }
+}
@@ -0,0 +1,280 @@
+package sproj.assignment;
+
+import sproj.tracking.Animal;
+import sproj.util.BoundingBox;
+import sproj.util.DetectionBatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Solves the same assignment problem as OptimalAssigner, using the shortest augmenting path
+ * method of Jonker and Volgenant (R. Jonker, A. Volgenant, "A shortest augmenting path algorithm
+ * for dense and sparse linear assignment problems", Computing 38, 1987).
+ *
+ * Instead of padding every animal and every box with a null value and solving a square matrix
+ * twice the size, the cost matrix has one row per animal and one column per box, and the
+ * non-assignment costs are handled by giving each animal an extra column of its own, which
+ * stands for "no box" and costs the animal's current non-assignment cost. These extra columns
+ * are never stored, as each of them only has one finite cell.
+ *
+ * Each animal is added to the solution in turn, by finding the shortest path (in reduced costs)
+ * from it to an unassigned column with Dijkstra's algorithm, and swapping the assignments along
+ * that path. The row and column potentials keep all reduced costs non-negative, so that the
+ * solution stays optimal after every step. For n animals and m boxes this takes O(n^2 * (n + m)) time,
+ * compared to the O(n^3) steps of Munkres on a matrix of size 2 * max(n, m), each of which scans the whole matrix.
+ *
+ * The initialization heuristics of the original paper (column reduction and augmenting row reduction) are left out,
+ * since the non-assignment columns make most of their work redundant at the sizes tracked here.
+ *
+ * Note on the cost of leaving a box unassigned: in OptimalAssigner, the rows of the null animals always
+ * cost DEFAULT_COST_OF_NON_ASSIGNMENT, whichever boxes they end up with, so in effect an unassigned box costs nothing
+ * and an animal takes a box whenever the distance to it is lower than the animal's own non-assignment cost.
+ * The default box non-assignment cost of 0 here gives the same assignments (except when there are ties).
+ * A higher value makes the animals more willing to take distant boxes rather than leaving them unused.
+ *
+ * The working memory is kept between calls and only grows. An instance is not thread safe.
+ */
+public class JonkerVolgenantAssigner implements AssignmentSolver {
+
+    private static final double INFINITY = Double.POSITIVE_INFINITY;
+
+    private final double boxNonAssignmentCost;
+
+    private int numbAnimals, numbBoxes;
+    private int animalCapacity, boxCapacity;
+
+    // Arrays over the columns are indexed from 1: boxes are columns 1..numbBoxes, and the non-assignment
+    // column of animal i is numbBoxes + i. Column 0 is the start of each augmenting path.
+    // Animals (rows) are also indexed from 1, so that 0 can mean "no animal".
+    private double[][] costMatrix;       // [animal - 1][box - 1], distances
+    private double[] nonAssignmentCost;  // [animal - 1]
+    private double[] boxX, boxY;         // [box - 1], centers of the boxes
+    private double[] rowPotential;
+    private double[] colPotential;
+    private int[] colAssignment;         // animal assigned to each column, or 0
+    private int[] rowAssignment;         // column assigned to each animal
+    private int[] pathPredecessor;       // previous column on the shortest path to each column
+    private double[] pathDistance;       // reduced cost of the shortest path found so far to each column
+    private boolean[] visited;
+
+    private final List<OptimalAssigner.Assignment> assignmentPool = new ArrayList<>();
+
+    public JonkerVolgenantAssigner() {
+        this(0.0);
+    }
+
+    /**
+     * @param boxNonAssignmentCost cost of a BoundingBox not being assigned to any animal, see class description
+     */
+    public JonkerVolgenantAssigner(double boxNonAssignmentCost) {
+        if (boxNonAssignmentCost < 0) {
+            throw new IllegalArgumentException("Non-assignment cost cannot be negative: " + boxNonAssignmentCost);
+        }
+        this.boxNonAssignmentCost = boxNonAssignmentCost;
+    }
+
+    @Override
+    public List<OptimalAssigner.Assignment> getOptimalAssignments(final List<Animal> anmls, final List<BoundingBox> boxes,
+                                                                  final List<OptimalAssigner.Assignment> out) {
+        return getOptimalAssignments(anmls, boxes, out, null);
+    }
+
+    /**
+     * Same as getOptimalAssignments(anmls, boxes, out), except that the pairs rejected by `gate`
+     * are given an infinite cost, so that they are never assigned
+     *
+     * @param gate decides which animal-box pairs may be assigned, or null to allow all pairs
+     */
+    List<OptimalAssigner.Assignment> getOptimalAssignments(final List<Animal> anmls, final List<BoundingBox> boxes,
+                                                           final List<OptimalAssigner.Assignment> out, PairGate gate) {
+        ensureCapacity(anmls.size(), boxes.size());
+        for (int j = 0; j < boxes.size(); j++) {
+            boxX[j] = boxes.get(j).centerX;
+            boxY[j] = boxes.get(j).centerY;
+        }
+        return assign(anmls, boxes, out, gate);
+    }
+
+    /**
+     * Reads the box positions from the batch's arrays, rather than from BoundingBox instances
+     */
+    @Override
+    public List<OptimalAssigner.Assignment> getOptimalAssignments(final List<Animal> anmls, final DetectionBatch detections,
+                                                                  final List<OptimalAssigner.Assignment> out) {
+        ensureCapacity(anmls.size(), detections.size());
+        for (int j = 0; j < detections.size(); j++) {
+            boxX[j] = detections.getCenterX(j);
+            boxY[j] = detections.getCenterY(j);
+        }
+        return assign(anmls, detections.asBoundingBoxes(), out, null);
+    }
+
+    /**
+     * @param boxes the boxes whose centers have been copied into boxX and boxY
+     */
+    private List<OptimalAssigner.Assignment> assign(final List<Animal> anmls, final List<BoundingBox> boxes,
+                                                    final List<OptimalAssigner.Assignment> out, PairGate gate) {
+        out.clear();
+
+        numbAnimals = anmls.size();
+        numbBoxes = boxes.size();
+
+        for (int i = 0; i < numbAnimals; i++) {
+            Animal anml = anmls.get(i);
+            double[] costRow = costMatrix[i];
+            for (int j = 0; j < numbBoxes; j++) {
+                double dx = anml.x - boxX[j];
+                double dy = anml.y - boxY[j];
+                costRow[j] = (gate == null || gate.allows(i, j)) ? Math.sqrt(dx * dx + dy * dy) : INFINITY;
+            }
+            nonAssignmentCost[i] = anml.getCurrNonAssignmentCost();
+        }
+
+        solve();
+
+        for (int i = 1; i <= numbAnimals; i++) {
+            int col = rowAssignment[i];
+            BoundingBox box = col <= numbBoxes ? boxes.get(col - 1) : null;
+            out.add(pooledAssignment(i - 1, anmls.get(i - 1), box));
+        }
+        return out;
+    }
+
+    /**
+     * Decides whether an animal may be assigned to a box at all, see GatedAssigner
+     */
+    interface PairGate {
+
+        /**
+         * @param animal index of the animal in the list passed to getOptimalAssignments()
+         * @param box index of the box in the list passed to getOptimalAssignments()
+         */
+        boolean allows(int animal, int box);
+    }
+
+    /**
+     * Cost of assigning column `col` to animal `row`, relative to leaving the box of that column unassigned
+     */
+    private double cost(int row, int col) {
+        if (col <= numbBoxes) {
+            return costMatrix[row - 1][col - 1] - boxNonAssignmentCost;
+        }
+        return col - numbBoxes == row ? nonAssignmentCost[row - 1] : INFINITY;
+    }
+
+    private void solve() {
+
+        int numbCols = numbBoxes + numbAnimals;
+
+        Arrays.fill(rowPotential, 0, numbAnimals + 1, 0.0);
+        Arrays.fill(colPotential, 0, numbCols + 1, 0.0);
+        Arrays.fill(colAssignment, 0, numbCols + 1, 0);
+
+        for (int row = 1; row <= numbAnimals; row++) {
+
+            // shortest path from `row` to an unassigned column, through the columns already assigned
+            colAssignment[0] = row;
+            int currCol = 0;
+            Arrays.fill(pathDistance, 0, numbCols + 1, INFINITY);
+            Arrays.fill(visited, 0, numbCols + 1, false);
+
+            do {
+                visited[currCol] = true;
+                int currRow = colAssignment[currCol];
+                double delta = INFINITY;
+                int nextCol = -1;
+
+                // only the boxes and currRow's own non-assignment column are reachable from currRow
+                for (int col = 1; col <= numbBoxes; col++) {
+                    if (!visited[col]) {
+                        double reduced = cost(currRow, col) - rowPotential[currRow] - colPotential[col];
+                        if (reduced < pathDistance[col]) {
+                            pathDistance[col] = reduced;
+                            pathPredecessor[col] = currCol;
+                        }
+                        if (pathDistance[col] < delta) {
+                            delta = pathDistance[col];
+                            nextCol = col;
+                        }
+                    }
+                }
+                int ownCol = numbBoxes + currRow;
+                if (!visited[ownCol]) {
+                    double reduced = cost(currRow, ownCol) - rowPotential[currRow] - colPotential[ownCol];
+                    if (reduced < pathDistance[ownCol]) {
+                        pathDistance[ownCol] = reduced;
+                        pathPredecessor[ownCol] = currCol;
+                    }
+                }
+                // other non-assignment columns may have been reached from rows visited earlier
+                for (int col = numbBoxes + 1; col <= numbCols; col++) {
+                    if (!visited[col] && pathDistance[col] < delta) {
+                        delta = pathDistance[col];
+                        nextCol = col;
+                    }
+                }
+
+                // update the potentials, so that the reduced costs along the tree stay zero
+                for (int col = 0; col <= numbCols; col++) {
+                    if (visited[col]) {
+                        rowPotential[colAssignment[col]] += delta;
+                        colPotential[col] -= delta;
+                    } else {
+                        pathDistance[col] -= delta;
+                    }
+                }
+                currCol = nextCol;
+
+            } while (colAssignment[currCol] != 0);
+
+            // swap the assignments along the path
+            do {
+                int prevCol = pathPredecessor[currCol];
+                colAssignment[currCol] = colAssignment[prevCol];
+                currCol = prevCol;
+            } while (currCol != 0);
+        }
+
+        for (int col = 1; col <= numbCols; col++) {
+            if (colAssignment[col] != 0) {
+                rowAssignment[colAssignment[col]] = col;
+            }
+        }
+    }
+
+    private void ensureCapacity(int animals, int boxes) {
+
+        if (costMatrix != null && animals <= animalCapacity && boxes <= boxCapacity) {
+            return;
+        }
+        animalCapacity = Math.max(animals, animalCapacity);
+        boxCapacity = Math.max(boxes, boxCapacity);
+        int colCapacity = animalCapacity + boxCapacity + 1;
+
+        costMatrix = new double[animalCapacity][boxCapacity];
+        nonAssignmentCost = new double[animalCapacity];
+        boxX = new double[boxCapacity];
+        boxY = new double[boxCapacity];
+        rowPotential = new double[animalCapacity + 1];
+        rowAssignment = new int[animalCapacity + 1];
+        colPotential = new double[colCapacity];
+        colAssignment = new int[colCapacity];
+        pathPredecessor = new int[colCapacity];
+        pathDistance = new double[colCapacity];
+        visited = new boolean[colCapacity];
+    }
+
+    private OptimalAssigner.Assignment pooledAssignment(int index, Animal animal, BoundingBox box) {
+        if (index < assignmentPool.size()) {
+            OptimalAssigner.Assignment assignment = assignmentPool.get(index);
+            assignment.animal = animal;
+            assignment.box = box;
+            return assignment;
+        }
+        OptimalAssigner.Assignment assignment = new OptimalAssigner.Assignment(animal, box);
+        assignmentPool.add(assignment);
+        return assignment;
+    }
+}
@@ -3,7 +3,6 @@ package sproj.assignment;
 import sproj.tracking.Animal;
 import sproj.util.BoundingBox;
 
-import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -26,8 +25,12 @@ import java.util.List;
  * Note that my implementation is different from the version in the link above,
  * in that it uses (both predetermined and dynamically calculated) non-assignment
  * cost values to fill in missing cells in the matrix at each time step.
+ *
+ * The matrices are kept between calls and only reallocated when the number of animals
+ * or detections grows past the largest size seen so far, so that one instance can be
+ * reused on every frame without creating garbage. An instance is not thread safe.
  */
-public class OptimalAssigner {
+public class OptimalAssigner implements AssignmentSolver {
 
     private final boolean DEBUG = false;
 
@@ -56,16 +59,20 @@ public class OptimalAssigner {
      */
     public static double DEFAULT_COST_OF_NON_ASSIGNMENT = 30.0;
 
-    private DecimalFormat df = new DecimalFormat("#.###");
-
     private boolean foundOptimalSolution;
 
+    // these are allocated with `capacity` rows and columns, of which only the first `rows` and `cols` are in use
     private double[][] costMatrix;
     private int[][] maskMatrix;     // todo:     add explanation
     private int[][] pathMatrix;     // todo:     add explanation
     private int[] rowCover;
     private int[] colCover;
     private int rows, cols;
+    private int capacity;
+
+    private int zeroRow, zeroCol;   // position of the last zero found by findaZero()
+
+    private final List<Assignment> assignmentPool = new ArrayList<>();
 
     public OptimalAssigner() {}
 
@@ -111,7 +118,16 @@ public class OptimalAssigner {
     private double costOfAssignment(Animal anml, BoundingBox box) {
         if (anml == null) { return DEFAULT_COST_OF_NON_ASSIGNMENT; }
         else if (box == null) { return anml.getCurrNonAssignmentCost(); }
-        return  Math.pow(Math.pow(anml.x - box.centerX, 2) + Math.pow(anml.y - box.centerY, 2), 0.5);
+        double dx = anml.x - box.centerX;
+        double dy = anml.y - box.centerY;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Rounds the cost to 3 decimal places, so that nearly equal costs are treated as equal
+     */
+    private static double roundCost(double cost) {
+        return Math.round(cost * 1000.0) / 1000.0;
     }
 
 
@@ -141,87 +157,143 @@ public class OptimalAssigner {
      * @return List of Assignment instances
      */
     public List<Assignment> getOptimalAssignments(final List<Animal> anmls, final List<BoundingBox> boxes) {
+        List<Assignment> assignments = new ArrayList<>(anmls.size() * 2);
+        solve(anmls, boxes);
+        parseSolvedMatrix(anmls, boxes, assignments, false);
+        return assignments;
+    }
 
-        // Note: Animals are on rows, Bounding Boxes are on columns.
+    /**
+     * Same as getOptimalAssignments(anmls, boxes), but writes the assignments into `out` instead of
+     * creating a new list. The Assignment instances are owned by this OptimalAssigner and are
+     * reused on the next call, so they must not be kept after that.
+     *
+     * @param anmls List of animal instances belonging to SinglePlateTracker class
+     * @param boxes List of BoundingBoxes generated by the DetectionsParser class
+     * @param out list that is cleared and then filled with the Assignment instances
+     * @return `out`
+     */
+    @Override
+    public List<Assignment> getOptimalAssignments(final List<Animal> anmls, final List<BoundingBox> boxes,
+                                                  final List<Assignment> out) {
+        out.clear();
+        solve(anmls, boxes);
+        parseSolvedMatrix(anmls, boxes, out, true);
+        return out;
+    }
 
-        this.foundOptimalSolution = false;
+    private void solve(final List<Animal> anmls, final List<BoundingBox> boxes) {
 
-        final List<Animal> animals = new ArrayList<>(anmls.size() * 2);
-        final List<BoundingBox> boundingBoxes = new ArrayList<>(boxes.size() * 2);
+        // Note: Animals are on rows, Bounding Boxes are on columns.
 
-        // pad every Animal instance with an extra null value.
-        for (Animal a : anmls) {
-            animals.add(a);
-            animals.add(null);
-        }
+        this.foundOptimalSolution = false;
 
-        // pad every BoundingBox instance with extra null value
-        for (BoundingBox b : boxes) {
-            boundingBoxes.add(b);
-            boundingBoxes.add(null);
-        }
+        // Every Animal instance and every BoundingBox instance is padded with an extra null value,
+        // so that row i holds anmls.get(i/2) if i is even and null if it is odd, and the same for the columns.
+        // See animalAt() and boxAt()
 
-        int anmlsSize = animals.size();              // the true value of how many animals there are
+        int anmlsSize = anmls.size() * 2;            // the true value of how many animals there are
 
-        int boxesSize = boundingBoxes.size();        // can be <, ==, or > than animals.size()
+        int boxesSize = boxes.size() * 2;            // can be <, ==, or > than anmlsSize
 
         // construct square matrix using whichever size is larger as the dimensions
         int dimension = Math.max(anmlsSize, boxesSize);
+        ensureCapacity(dimension);
         rows = cols = dimension;
 
-        costMatrix = new double[dimension][dimension];
-        maskMatrix = new int[dimension][dimension];
-        pathMatrix = new int[dimension*2 + 1][2];
-
-        rowCover = new int[rows];
-        colCover = new int[cols];
-
-        // fill cost matrix with cost values
-        for (int i=0; i<anmlsSize; i++) {
-            for (int j=0; j<boxesSize; j++) {
-                costMatrix[i][j] = Double.parseDouble(df.format(
-                        costOfAssignment(animals.get(i), boundingBoxes.get(j))
-                ));
+        // fill cost matrix with cost values, and clear the cells left over from the previous call
+        for (int i=0; i<dimension; i++) {
+            double[] costRow = costMatrix[i];
+            for (int j=0; j<dimension; j++) {
+                costRow[j] = (i < anmlsSize && j < boxesSize)
+                        ? roundCost(costOfAssignment(animalAt(anmls, i), boxAt(boxes, j)))
+                        : 0;
             }
+            Arrays.fill(maskMatrix[i], 0, dimension, UNSTARRED);
         }
+        Arrays.fill(rowCover, 0, dimension, UNCOVERED);
+        Arrays.fill(colCover, 0, dimension, UNCOVERED);
 
         // (no longer used, to be removed soon)
         // fillBlanks(anmlsSize, boxesSize);
 
-        return parseSolvedMatrix(munkresSolve(), animals, boundingBoxes);
+        munkresSolve();
+    }
+
+    private static Animal animalAt(final List<Animal> anmls, int row) {
+        return row % 2 == 0 ? anmls.get(row / 2) : null;
+    }
+
+    private static BoundingBox boxAt(final List<BoundingBox> boxes, int col) {
+        return col % 2 == 0 ? boxes.get(col / 2) : null;
+    }
+
+    /**
+     * Makes sure the matrices have room for a `dimension` x `dimension` problem.
+     * They only grow, and are never shrunk.
+     */
+    private void ensureCapacity(int dimension) {
+        if (costMatrix != null && dimension <= capacity) {
+            return;
+        }
+        costMatrix = new double[dimension][dimension];
+        maskMatrix = new int[dimension][dimension];
+        pathMatrix = new int[dimension*2 + 1][2];
+
+        rowCover = new int[dimension];
+        colCover = new int[dimension];
+        capacity = dimension;
     }
 
+    /**
+     * Note that the returned matrix may be larger than the last problem solved,
+     * only the first getDimension() rows and columns belong to it.
+     */
     public double[][] getCostMatrix() {
         return costMatrix;
     }
 
+    /**
+     * See getCostMatrix()
+     */
     public int[][] getMaskMatrix() {
         return maskMatrix;
     }
 
+    /**
+     * @return number of rows and columns of the last matrix solved, including the null padding
+     */
+    public int getDimension() {
+        return rows;
+    }
+
     /**
      * Parse solved cost matrix and create corresponding Assignment instances.
      *
-     * @param solvedMatrix  costMatrix generated by solveMatrix()
-     * @param animals
-     * @param boundingBoxes
-     * @return
+     * @param anmls
+     * @param boxes
+     * @param assignments list the Assignment instances are added to
+     * @param reuse take the Assignment instances from assignmentPool instead of creating new ones
      */
-    private List<Assignment> parseSolvedMatrix(final int[][] solvedMatrix,
-               final List<Animal> animals, final List<BoundingBox> boundingBoxes) {
+    private void parseSolvedMatrix(final List<Animal> anmls, final List<BoundingBox> boxes,
+                                   final List<Assignment> assignments, boolean reuse) {
 
-        ArrayList<Assignment> assignments = new ArrayList<>();
+        int anmlsSize = anmls.size() * 2;
+        int boxesSize = boxes.size() * 2;
 
         for (int r = 0; r < rows; r++) {
             for (int c = 0; c < cols; c++) {
-                if (solvedMatrix[r][c] == STARRED) {
+                if (maskMatrix[r][c] == STARRED) {
+
+                    if (r < anmlsSize) {
 
-                    if (r < animals.size()) {
+                        Animal animal = animalAt(anmls, r);
+                        BoundingBox box = c < boxesSize ? boxAt(boxes, c) : null;
 
-                        if (c < boundingBoxes.size()) {
-                            assignments.add(new Assignment(animals.get(r), boundingBoxes.get(c)));
+                        if (reuse) {
+                            assignments.add(pooledAssignment(assignments.size(), animal, box));
                         } else {
-                            assignments.add(new Assignment(animals.get(r), null));
+                            assignments.add(new Assignment(animal, box));
                         }
 
                     } else {
@@ -230,7 +302,18 @@ public class OptimalAssigner {
                 }
             }
         }
-        return assignments;
+    }
+
+    private Assignment pooledAssignment(int index, Animal animal, BoundingBox box) {
+        if (index < assignmentPool.size()) {
+            Assignment assignment = assignmentPool.get(index);
+            assignment.animal = animal;
+            assignment.box = box;
+            return assignment;
+        }
+        Assignment assignment = new Assignment(animal, box);
+        assignmentPool.add(assignment);
+        return assignment;
     }
 
 
@@ -280,13 +363,11 @@ public class OptimalAssigner {
 
                 case 4: // goes to either step 3 or 6
 
-                    int[] position = primeZeros();
-
-                    if (position == null) {
+                    if (!primeZeros()) {
                         nextStep = 6;
 
                     } else {               // Step 5 happens right after 4
-                        augmentingPathAlgorithm(position[0], position[1]);
+                        augmentingPathAlgorithm(zeroRow, zeroCol);
                         nextStep = 3;
                     }
                     break;
@@ -360,8 +441,7 @@ public class OptimalAssigner {
                 }
             }
         }
-        Arrays.fill(rowCover, 0);
-        Arrays.fill(colCover, 0);
+        clearCoverMatrices();
     }
 
     /**
@@ -403,27 +483,26 @@ public class OptimalAssigner {
      *
      * Changes: maskMatrix, rowCover, and colCover
      *
-     * @return
+     * @return true if step 5 should follow, with the primed zero at zeroRow, zeroCol.
+     *         false if step 6 should follow
      */
-    private int[] primeZeros() {
+    private boolean primeZeros() {
 
         int row;
         int col;
 
         while (true) {
 
-            int[] position = findaZero();
-
-            if (position == null) {
+            if (!findaZero()) {
                 // goes to step 6
-                return null;
+                return false;
 
             } else {
 
                 // todo add explanation
 
-                row = position[0];
-                col = position[1];
+                row = zeroRow;
+                col = zeroCol;
 
                 maskMatrix[row][col] = PRIMED;
 
@@ -436,7 +515,7 @@ public class OptimalAssigner {
 
                 } else {
                     // goes to step 5
-                    return new int[]{row, col};
+                    return true;
                 }
             }
         }
@@ -539,8 +618,8 @@ public class OptimalAssigner {
     }
 
     private void clearCoverMatrices() {
-        Arrays.fill(rowCover, UNCOVERED);
-        Arrays.fill(colCover, UNCOVERED);
+        Arrays.fill(rowCover, 0, rows, UNCOVERED);
+        Arrays.fill(colCover, 0, cols, UNCOVERED);
     }
 
 
@@ -564,7 +643,10 @@ public class OptimalAssigner {
         }
     }
 
-    private int[] findaZero() {
+    /**
+     * @return true if an uncovered zero was found, in which case its position is stored in zeroRow and zeroCol
+     */
+    private boolean findaZero() {
 
         for (int r = 0; r < rows; r++) {
             for (int c = 0; c < cols; c++) {
@@ -572,12 +654,14 @@ public class OptimalAssigner {
                 if (costMatrix[r][c] == UNSTARRED
                     && rowCover[r] == UNCOVERED
                     && colCover[c] == UNCOVERED) {
-                        return new int[]{r, c};
+                        zeroRow = r;
+                        zeroCol = c;
+                        return true;
                 }
             }
 
         }
-        return null;
+        return false;
     }
 
 
@@ -650,6 +734,8 @@ public class OptimalAssigner {
      */
     public int[][] munkresSolveMatrix(double[][] matrix) {
 
+        this.foundOptimalSolution = false;
+
         int dimension = Math.max(matrix.length, matrix[0].length);
         rows = cols = dimension;
 
@@ -659,6 +745,7 @@ public class OptimalAssigner {
 
         rowCover = new int[rows];
         colCover = new int[cols];
+        capacity = dimension;
 
         for (int r=0; r<matrix.length; r++) {
             if (matrix[r].length >= 0) System.arraycopy(
@@ -0,0 +1,63 @@
+package sproj.prediction;
+
+import org.apache.commons.math3.filter.KalmanFilter;
+
+/**
+ * TrackingFilter around the general Apache Commons KalmanFilter, as built by KalmanFilterBuilder.getNewKalmanFilter().
+ * Kept for comparison with PrimitiveKalmanFilter, which is much faster.
+ */
+public class CommonsKalmanFilter implements TrackingFilter {
+
+    private KalmanFilter kalmanFilter;
+    private final KalmanFilterBuilder builder;
+
+    /**
+     * @param kalmanFilter filter built by builder.getNewKalmanFilter()
+     * @param builder builds the filter again in restore()
+     */
+    public CommonsKalmanFilter(KalmanFilter kalmanFilter, KalmanFilterBuilder builder) {
+        this.kalmanFilter = kalmanFilter;
+        this.builder = builder;
+    }
+
+    public KalmanFilter getKalmanFilter() {
+        return kalmanFilter;
+    }
+
+    @Override
+    public void predict() {
+        kalmanFilter.predict();
+    }
+
+    @Override
+    public void correct(double[] measurement) {
+        kalmanFilter.correct(measurement);
+    }
+
+    @Override
+    public double[] getStateEstimation() {
+        return kalmanFilter.getStateEstimation();
+    }
+
+    @Override
+    public double getStateEstimation(int i) {
+        return kalmanFilter.getStateEstimationVector().getEntry(i);
+    }
+
+    @Override
+    public double getErrorCovariance(int row, int col) {
+        return kalmanFilter.getErrorCovarianceMatrix().getEntry(row, col);
+    }
+
+    /**
+     * The Apache Commons KalmanFilter has no way to set its state, so it is replaced with a new one
+     * for the same model, which starts from the given state and covariance
+     */
+    @Override
+    public void restore(double[] state, double[][] errorCovariance) {
+        if (state.length != 6 || errorCovariance.length != 6) {
+            throw new IllegalArgumentException("State and error covariance must have 6 values");
+        }
+        kalmanFilter = builder.getNewKalmanFilter(state, errorCovariance);
+    }
+}
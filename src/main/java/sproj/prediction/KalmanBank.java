@@ -0,0 +1,500 @@
+package sproj.prediction;
+
+import java.util.Arrays;
+
+/**
+ * The Kalman filters of all animals in a tracker, for the same model as PrimitiveKalmanFilter, with the state
+ * of every track stored in contiguous primitive arrays (one array per value) instead of one filter object
+ * per animal. predictAll() and correctAll() then update every track in simple loops over those arrays.
+ *
+ * The error covariance of a Kalman filter does not depend on the measurements, only on the sequence of predict
+ * and correct steps. As long as all tracks were added before the first step, and are only updated by predictAll()
+ * and correctAll() (which is what a tracker does when every animal is updated on every frame), they all have
+ * the same covariance and so the same Kalman gain. The bank then keeps a single covariance and computes the gain
+ * once per frame, and the loops over the tracks only apply it, without any divisions.
+ * As soon as a track is updated on its own, each track gets its own copy of the covariance, until predictAll()
+ * finds that all tracks have the same covariance again (e.g. once every track has been restored from a checkpoint).
+ *
+ * Each track is used through a TrackingFilter view returned by add(), so that Animal keeps working with
+ * any TrackingFilter. The views connect to the batched updates as follows:
+ *
+ *  - predictAll() does the next predict() of every track ahead of time, so the next call to predict()
+ *    on each view does nothing. A view that is predicted again after that is advanced as usual.
+ *  - correct() on a view only stores the measurement. The stored measurements of all tracks are applied
+ *    together by correctAll(). A track's own measurement is applied before one of its values is read,
+ *    or before it is predicted again.
+ *
+ * A tracker calls predictAll() at the start of each frame, and correctAll() once all animals have been updated.
+ * A KalmanBank is not thread safe.
+ */
+public class KalmanBank {
+
+    private final double sv;
+    private final double processNoise;
+    private final double measurementNoise;
+
+    private int size;
+    private boolean started;        // a track has been predicted or corrected
+
+    // state of each track: x, y, vx, vy, and the rate terms of x and y (state values 4 and 5)
+    private double[] x = new double[0], y = new double[0];
+    private double[] vx = new double[0], vy = new double[0];
+    private double[] rateX = new double[0], rateY = new double[0];
+
+    // error covariance {p00, p01, p10, p11, velocityVariance} of all tracks while sharedCovariance is true,
+    // see PrimitiveKalmanFilter for the layout
+    private boolean sharedCovariance = true;
+    private final double[] shared = new double[5];
+
+    // error covariance of each track, once sharedCovariance is false
+    private double[] p00 = new double[0], p01 = new double[0], p10 = new double[0], p11 = new double[0];
+    private double[] velocityVariance = new double[0];
+
+    private boolean[] predictedAhead = new boolean[0];  // predictAll() has already done the next predict() of the track
+
+    // measurements stored by correct(), until correctAll()
+    private double[] measuredX = new double[0], measuredY = new double[0];
+    private double[] measuredVx = new double[0], measuredVy = new double[0];
+    private double[] measuredRateX = new double[0], measuredRateY = new double[0];
+    private boolean[] pending = new boolean[0];
+    private int numbPending;
+
+    // working arrays for the steps of a single covariance
+    private final double[] covariance = new double[5];
+    private final double[] gain = new double[5];        // k00, k01, k10, k11, velocity gain
+
+    /**
+     * @param sv coefficient of the rate term in the state transition, see KalmanFilterBuilder
+     * @param processNoise variance of the process noise of each state value
+     * @param measurementNoise variance of the noise of each measured value
+     */
+    public KalmanBank(double sv, double processNoise, double measurementNoise) {
+        this.sv = sv;
+        this.processNoise = processNoise;
+        this.measurementNoise = measurementNoise;
+    }
+
+    /**
+     * Adds a track with the given initial state and a zero error covariance
+     *
+     * @return view of the new track
+     */
+    public TrackingFilter add(double x0, double y0, double vx0, double vy0) {
+        if (size == x.length) {
+            grow(Math.max(8, size * 2));
+        }
+        if (started) {
+            unshareCovariance();    // the new track starts from a different covariance than the others
+        }
+        int i = size++;
+        x[i] = x0;
+        y[i] = y0;
+        vx[i] = vx0;
+        vy[i] = vy0;
+        return new Track(i);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Advances every track by one time step, see the class description
+     */
+    public void predictAll() {
+
+        correctAll();
+        started = true;
+        if (!sharedCovariance) {
+            shareCovarianceIfEqual();
+        }
+
+        // x = A x
+        for (int i = 0; i < size; i++) {
+            x[i] += sv * rateX[i];
+            y[i] += sv * rateY[i];
+        }
+
+        // P = A P A^T + Q
+        if (sharedCovariance) {
+            predictCovariance(shared);
+        } else {
+            for (int i = 0; i < size; i++) {
+                double a00 = p00[i] + sv * p10[i];
+                double a01 = p01[i] + sv * p11[i];
+                p00[i] = a00 + sv * a01 + processNoise;
+                p01[i] = a01;
+                p10[i] = p10[i] + sv * p11[i];
+                p11[i] = p11[i] + processNoise;
+                velocityVariance[i] += processNoise;
+            }
+        }
+
+        Arrays.fill(predictedAhead, 0, size, true);
+    }
+
+    /**
+     * Applies the measurements stored by the correct() calls of the views since the last correctAll()
+     */
+    public void correctAll() {
+
+        if (numbPending == 0) {
+            return;
+        }
+        if (numbPending < size) {
+            unshareCovariance();    // only some of the tracks are corrected
+        }
+
+        if (!sharedCovariance) {
+            for (int i = 0; i < size; i++) {
+                if (pending[i]) {
+                    correctTrack(i);
+                }
+            }
+            return;
+        }
+
+        // every track has the same gain, so the loop only applies it
+        computeGain(shared);
+        correctCovariance(shared);
+        double k00 = gain[0], k01 = gain[1], k10 = gain[2], k11 = gain[3], velocityGain = gain[4];
+
+        for (int i = 0; i < size; i++) {
+            double innovationX = measuredX[i] - (x[i] + rateX[i]);
+            double innovationRateX = measuredRateX[i] - rateX[i];
+            x[i] += k00 * innovationX + k01 * innovationRateX;
+            rateX[i] += k10 * innovationX + k11 * innovationRateX;
+
+            double innovationY = measuredY[i] - (y[i] + rateY[i]);
+            double innovationRateY = measuredRateY[i] - rateY[i];
+            y[i] += k00 * innovationY + k01 * innovationRateY;
+            rateY[i] += k10 * innovationY + k11 * innovationRateY;
+
+            vx[i] += velocityGain * (measuredVx[i] - vx[i]);
+            vy[i] += velocityGain * (measuredVy[i] - vy[i]);
+        }
+        Arrays.fill(pending, 0, size, false);
+        numbPending = 0;
+    }
+
+    /**
+     * Correction of a single track with its stored measurement and its own covariance
+     */
+    private void correctTrack(int i) {
+
+        loadCovariance(i);
+        computeGain(covariance);
+        correctCovariance(covariance);
+        storeCovariance(i);
+
+        double innovationX = measuredX[i] - (x[i] + rateX[i]);
+        double innovationRateX = measuredRateX[i] - rateX[i];
+        x[i] += gain[0] * innovationX + gain[1] * innovationRateX;
+        rateX[i] += gain[2] * innovationX + gain[3] * innovationRateX;
+
+        double innovationY = measuredY[i] - (y[i] + rateY[i]);
+        double innovationRateY = measuredRateY[i] - rateY[i];
+        y[i] += gain[0] * innovationY + gain[1] * innovationRateY;
+        rateY[i] += gain[2] * innovationY + gain[3] * innovationRateY;
+
+        vx[i] += gain[4] * (measuredVx[i] - vx[i]);
+        vy[i] += gain[4] * (measuredVy[i] - vy[i]);
+
+        pending[i] = false;
+        numbPending--;
+    }
+
+    /**
+     * Predict step of a single track, the same as one iteration of predictAll()
+     */
+    private void predict(int i) {
+        flush(i);
+        started = true;
+        if (predictedAhead[i]) {
+            predictedAhead[i] = false;
+            return;
+        }
+        unshareCovariance();
+        x[i] += sv * rateX[i];
+        y[i] += sv * rateY[i];
+        loadCovariance(i);
+        predictCovariance(covariance);
+        storeCovariance(i);
+    }
+
+    /**
+     * P = A P A^T + Q, with A = [[1, sv], [0, 1]] for the position groups
+     */
+    private void predictCovariance(double[] p) {
+        double a00 = p[0] + sv * p[2];
+        double a01 = p[1] + sv * p[3];
+        p[0] = a00 + sv * a01 + processNoise;
+        p[1] = a01;
+        p[2] = p[2] + sv * p[3];
+        p[3] = p[3] + processNoise;
+        p[4] += processNoise;
+    }
+
+    /**
+     * Kalman gain for the covariance p, into `gain`. Same steps as PrimitiveKalmanFilter.correct()
+     */
+    private void computeGain(double[] p) {
+
+        // P H^T, with H = [[1, 1], [0, 1]]
+        double ph00 = p[0] + p[1];
+        double ph01 = p[1];
+        double ph10 = p[2] + p[3];
+        double ph11 = p[3];
+
+        // S = H P H^T + R, and its inverse
+        double s00 = ph00 + ph10 + measurementNoise;
+        double s01 = ph01 + ph11;
+        double s10 = ph10;
+        double s11 = ph11 + measurementNoise;
+        double inverseDeterminant = 1.0 / (s00 * s11 - s01 * s10);
+        double i00 = s11 * inverseDeterminant;
+        double i01 = -s01 * inverseDeterminant;
+        double i10 = -s10 * inverseDeterminant;
+        double i11 = s00 * inverseDeterminant;
+
+        // K = P H^T S^-1
+        gain[0] = ph00 * i00 + ph01 * i10;
+        gain[1] = ph00 * i01 + ph01 * i11;
+        gain[2] = ph10 * i00 + ph11 * i10;
+        gain[3] = ph10 * i01 + ph11 * i11;
+        gain[4] = p[4] / (p[4] + measurementNoise);
+    }
+
+    /**
+     * P = (I - K H) P, with the gain computed by computeGain()
+     */
+    private void correctCovariance(double[] p) {
+        double m00 = 1 - gain[0];
+        double m01 = -gain[0] - gain[1];
+        double m10 = -gain[2];
+        double m11 = 1 - gain[2] - gain[3];
+        double n00 = m00 * p[0] + m01 * p[2];
+        double n01 = m00 * p[1] + m01 * p[3];
+        double n10 = m10 * p[0] + m11 * p[2];
+        double n11 = m10 * p[1] + m11 * p[3];
+        p[0] = n00;
+        p[1] = n01;
+        p[2] = n10;
+        p[3] = n11;
+        p[4] = (1 - gain[4]) * p[4];
+    }
+
+    private void loadCovariance(int i) {
+        covariance[0] = p00[i];
+        covariance[1] = p01[i];
+        covariance[2] = p10[i];
+        covariance[3] = p11[i];
+        covariance[4] = velocityVariance[i];
+    }
+
+    private void storeCovariance(int i) {
+        p00[i] = covariance[0];
+        p01[i] = covariance[1];
+        p10[i] = covariance[2];
+        p11[i] = covariance[3];
+        velocityVariance[i] = covariance[4];
+    }
+
+    /**
+     * Gives each track its own copy of the shared covariance
+     */
+    private void unshareCovariance() {
+        if (!sharedCovariance) {
+            return;
+        }
+        Arrays.fill(p00, 0, size, shared[0]);
+        Arrays.fill(p01, 0, size, shared[1]);
+        Arrays.fill(p10, 0, size, shared[2]);
+        Arrays.fill(p11, 0, size, shared[3]);
+        Arrays.fill(velocityVariance, 0, size, shared[4]);
+        sharedCovariance = false;
+    }
+
+    /**
+     * Goes back to a single covariance if every track has the same one
+     */
+    private void shareCovarianceIfEqual() {
+        for (int i = 1; i < size; i++) {
+            if (p00[i] != p00[0] || p01[i] != p01[0] || p10[i] != p10[0] || p11[i] != p11[0]
+                    || velocityVariance[i] != velocityVariance[0]) {
+                return;
+            }
+        }
+        if (size > 0) {
+            shared[0] = p00[0];
+            shared[1] = p01[0];
+            shared[2] = p10[0];
+            shared[3] = p11[0];
+            shared[4] = velocityVariance[0];
+        }
+        sharedCovariance = true;
+    }
+
+    /**
+     * Replaces the state and covariance of track i. A measurement stored for the track is dropped,
+     * since it was meant for the replaced state
+     */
+    private void restore(int i, double[] state, double[][] errorCovariance) {
+        if (state.length != 6 || errorCovariance.length != 6) {
+            throw new IllegalArgumentException("State and error covariance must have 6 values");
+        }
+        if (pending[i]) {
+            pending[i] = false;
+            numbPending--;
+        }
+        predictedAhead[i] = false;
+        x[i] = state[0];
+        y[i] = state[1];
+        vx[i] = state[2];
+        vy[i] = state[3];
+        rateX[i] = state[4];
+        rateY[i] = state[5];
+        unshareCovariance();
+        p00[i] = errorCovariance[0][0];
+        p01[i] = errorCovariance[0][4];
+        p10[i] = errorCovariance[4][0];
+        p11[i] = errorCovariance[4][4];
+        velocityVariance[i] = errorCovariance[2][2];
+    }
+
+    private void storeMeasurement(int i, double[] measurement) {
+        if (measurement.length != 6) {
+            throw new IllegalArgumentException("Measurement must have 6 values: " + measurement.length);
+        }
+        flush(i);       // two corrections of the same track without a predict in between
+        started = true;
+        measuredX[i] = measurement[0];
+        measuredY[i] = measurement[1];
+        measuredVx[i] = measurement[2];
+        measuredVy[i] = measurement[3];
+        measuredRateX[i] = measurement[4];
+        measuredRateY[i] = measurement[5];
+        predictedAhead[i] = false;
+        pending[i] = true;
+        numbPending++;
+    }
+
+    /**
+     * Applies the stored measurement of track i, if there is one
+     */
+    private void flush(int i) {
+        if (pending[i]) {
+            unshareCovariance();
+            correctTrack(i);
+        }
+    }
+
+    private double getState(int i, int k) {
+        flush(i);
+        switch (k) {
+            case 0: return x[i];
+            case 1: return y[i];
+            case 2: return vx[i];
+            case 3: return vy[i];
+            case 4: return rateX[i];
+            case 5: return rateY[i];
+            default: throw new IndexOutOfBoundsException("State value " + k + " of 6");
+        }
+    }
+
+    private double getCovariance(int i, int row, int col) {
+        flush(i);
+        if (row % 2 != col % 2) {       // the x and y values are independent
+            return 0;
+        }
+        boolean velocityRow = row == 2 || row == 3;
+        boolean velocityCol = col == 2 || col == 3;
+        int entry;
+        if (velocityRow || velocityCol) {
+            if (velocityRow != velocityCol) {
+                return 0;
+            }
+            entry = 4;
+        } else {
+            entry = (row < 2 ? 0 : 2) + (col < 2 ? 0 : 1);
+        }
+        if (sharedCovariance) {
+            return shared[entry];
+        }
+        switch (entry) {
+            case 0: return p00[i];
+            case 1: return p01[i];
+            case 2: return p10[i];
+            case 3: return p11[i];
+            default: return velocityVariance[i];
+        }
+    }
+
+    private void grow(int capacity) {
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        vx = Arrays.copyOf(vx, capacity);
+        vy = Arrays.copyOf(vy, capacity);
+        rateX = Arrays.copyOf(rateX, capacity);
+        rateY = Arrays.copyOf(rateY, capacity);
+        p00 = Arrays.copyOf(p00, capacity);
+        p01 = Arrays.copyOf(p01, capacity);
+        p10 = Arrays.copyOf(p10, capacity);
+        p11 = Arrays.copyOf(p11, capacity);
+        velocityVariance = Arrays.copyOf(velocityVariance, capacity);
+        predictedAhead = Arrays.copyOf(predictedAhead, capacity);
+        measuredX = Arrays.copyOf(measuredX, capacity);
+        measuredY = Arrays.copyOf(measuredY, capacity);
+        measuredVx = Arrays.copyOf(measuredVx, capacity);
+        measuredVy = Arrays.copyOf(measuredVy, capacity);
+        measuredRateX = Arrays.copyOf(measuredRateX, capacity);
+        measuredRateY = Arrays.copyOf(measuredRateY, capacity);
+        pending = Arrays.copyOf(pending, capacity);
+    }
+
+    /**
+     * TrackingFilter view of one track in the bank
+     */
+    private class Track implements TrackingFilter {
+
+        private final int index;
+
+        Track(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void predict() {
+            KalmanBank.this.predict(index);
+        }
+
+        @Override
+        public void correct(double[] measurement) {
+            storeMeasurement(index, measurement);
+        }
+
+        @Override
+        public double[] getStateEstimation() {
+            double[] state = new double[6];
+            for (int k = 0; k < 6; k++) {
+                state[k] = getState(index, k);
+            }
+            return state;
+        }
+
+        @Override
+        public double getStateEstimation(int i) {
+            return getState(index, i);
+        }
+
+        @Override
+        public double getErrorCovariance(int row, int col) {
+            return getCovariance(index, row, col);
+        }
+
+        @Override
+        public void restore(double[] state, double[][] errorCovariance) {
+            KalmanBank.this.restore(index, state, errorCovariance);
+        }
+    }
+}
@@ -8,7 +8,8 @@ import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.RealVector;
 
 /**
- * Builds an instance of the Apache Commons KalmanFilter with custom matrix values
+ * Builds an instance of the Apache Commons KalmanFilter with custom matrix values,
+ * or a PrimitiveKalmanFilter or KalmanBank for the same model
  */
 public class KalmanFilterBuilder {
 
@@ -20,9 +21,38 @@ public class KalmanFilterBuilder {
 
     private final double sv = 0.8;          // sensitivity value for state transition matrix.  --> the closer to 1.0 this is,
                                             // the faster the filter adjusts to changes in data, which affects estimation accuracy
+    private final double processNoise = 0.1;        // diagonal values of actionUncertainty_mQ
+    private final double measurementNoise = 0.1;    // diagonal values of sensorNoise_mR
+
+    private boolean useCommonsMath = false;
+
     public KalmanFilterBuilder() {
     }
 
+    /**
+     * @param useCommonsMath if true, getNewTrackingFilter() returns the Apache Commons KalmanFilter instead of a PrimitiveKalmanFilter
+     */
+    public void setUseCommonsMath(boolean useCommonsMath) {
+        this.useCommonsMath = useCommonsMath;
+    }
+
+    /**
+     * @return a new filter for an Animal, a PrimitiveKalmanFilter unless setUseCommonsMath(true) was called
+     */
+    public TrackingFilter getNewTrackingFilter(double x0, double y0, double vx0, double vy0) {
+        if (useCommonsMath) {
+            return new CommonsKalmanFilter(getNewKalmanFilter(x0, y0, vx0, vy0), this);
+        }
+        return new PrimitiveKalmanFilter(x0, y0, vx0, vy0, sv, processNoise, measurementNoise);
+    }
+
+    /**
+     * @return an empty KalmanBank for the same model, to which the filters of all animals in a tracker are added
+     */
+    public KalmanBank getNewKalmanBank() {
+        return new KalmanBank(sv, processNoise, measurementNoise);
+    }
+
     public KalmanFilter getNewKalmanFilter(double x0, double y0, double vx0, double vy0) {
 
         double placeHolder = 0.0;
@@ -31,16 +61,25 @@ public class KalmanFilterBuilder {
                 new double[]{x0,y0,vx0,vy0,placeHolder,placeHolder}                 // initial position and velocity values
         );
 
-        ProcessModel pM = getProcessModel(initialStateEstimate_xHat);
+        ProcessModel pM = getProcessModel(initialStateEstimate_xHat, initialStateCovariance_mP);
         MeasurementModel mM = getMeasurementModel();
         return new KalmanFilter(pM, mM);
 
     }
 
-    private ProcessModel getProcessModel(RealVector initialStateEstimate_xHat) {
+    /**
+     * @return a KalmanFilter for the same model, which starts from the given state estimation and error covariance
+     *         instead of the initial ones, e.g. to restore a filter from a TrackerCheckpoint
+     */
+    public KalmanFilter getNewKalmanFilter(double[] state, double[][] errorCovariance) {
+        ProcessModel pM = getProcessModel(new ArrayRealVector(state), new Array2DRowRealMatrix(errorCovariance));
+        return new KalmanFilter(pM, getMeasurementModel());
+    }
+
+    private ProcessModel getProcessModel(RealVector initialStateEstimate_xHat, RealMatrix initialStateCovariance) {
         return new DefaultProcessModel(
                 stateTransition_mA, inputControl_mB, actionUncertainty_mQ,
-                initialStateEstimate_xHat, initialStateCovariance_mP);
+                initialStateEstimate_xHat, initialStateCovariance);
     }
 
     private MeasurementModel getMeasurementModel() {
@@ -0,0 +1,184 @@
+package sproj.prediction;
+
+/**
+ * Kalman filter for the model built by KalmanFilterBuilder, written out for that model with primitive doubles
+ * instead of general 6x6 matrix operations. Gives the same estimates as the Apache Commons KalmanFilter
+ * (up to rounding), without allocating any matrices or inverting one on each step.
+ *
+ * The model's matrices only couple the state values in independent groups:
+ *
+ *      (x, s4)     x is moved by sv * s4 on each step, and measured as x + s4
+ *      (y, s5)     the same for y
+ *      vx, vy      constant, measured directly
+ *
+ * so the filter is run as two 2x2 filters and two scalar filters. Since the error covariance of a Kalman filter
+ * does not depend on the measurements, and the x and y groups have the same matrices and start from the same
+ * covariance, they always share a single 2x2 covariance (and the velocities a single variance).
+ * The 2x2 matrix inverse of the correction step is computed in closed form.
+ *
+ * The state is updated in place. An instance is not thread safe.
+ */
+public class PrimitiveKalmanFilter implements TrackingFilter {
+
+    // position of each of the 6 state values in the groups described above
+    private static final int[] AXIS = {0, 1, 0, 1, 0, 1};           // 0: x group, 1: y group
+    private static final int[] PART = {0, 0, 2, 2, 1, 1};           // 0: position, 1: its rate term, 2: velocity
+
+    private final double sv;                    // rate term coefficient of the state transition
+    private final double processNoise;          // diagonal of the process noise covariance Q
+    private final double measurementNoise;      // diagonal of the measurement noise covariance R
+
+    // state estimation, in the order of the 6 state values
+    private final double[] state = new double[6];
+
+    // error covariance of the position groups: [[p00, p01], [p10, p11]] over (position, rate term)
+    private double p00, p01, p10, p11;
+    // error variance of the velocities
+    private double velocityVariance;
+
+    /**
+     * @param x0 initial x position
+     * @param y0 initial y position
+     * @param vx0 initial x velocity
+     * @param vy0 initial y velocity
+     * @param sv coefficient of the rate term in the state transition, see KalmanFilterBuilder
+     * @param processNoise variance of the process noise of each state value
+     * @param measurementNoise variance of the noise of each measured value
+     */
+    public PrimitiveKalmanFilter(double x0, double y0, double vx0, double vy0,
+                                 double sv, double processNoise, double measurementNoise) {
+        this.sv = sv;
+        this.processNoise = processNoise;
+        this.measurementNoise = measurementNoise;
+        state[0] = x0;
+        state[1] = y0;
+        state[2] = vx0;
+        state[3] = vy0;
+        // the initial error covariance is zero, as in KalmanFilterBuilder
+    }
+
+    @Override
+    public void predict() {
+
+        // x = A x
+        state[0] += sv * state[4];
+        state[1] += sv * state[5];
+
+        // P = A P A^T + Q, with A = [[1, sv], [0, 1]] for the position groups
+        double a00 = p00 + sv * p10;
+        double a01 = p01 + sv * p11;
+        p00 = a00 + sv * a01 + processNoise;
+        p01 = a01;
+        p10 = p10 + sv * p11;
+        p11 = p11 + processNoise;
+
+        velocityVariance += processNoise;
+    }
+
+    @Override
+    public void correct(double[] measurement) {
+
+        if (measurement.length != 6) {
+            throw new IllegalArgumentException("Measurement must have 6 values: " + measurement.length);
+        }
+
+        // position groups, with H = [[1, 1], [0, 1]]
+
+        // P H^T
+        double ph00 = p00 + p01;
+        double ph01 = p01;
+        double ph10 = p10 + p11;
+        double ph11 = p11;
+
+        // S = H P H^T + R, and its inverse
+        double s00 = ph00 + ph10 + measurementNoise;
+        double s01 = ph01 + ph11;
+        double s10 = ph10;
+        double s11 = ph11 + measurementNoise;
+        double inverseDeterminant = 1.0 / (s00 * s11 - s01 * s10);
+        double i00 = s11 * inverseDeterminant;
+        double i01 = -s01 * inverseDeterminant;
+        double i10 = -s10 * inverseDeterminant;
+        double i11 = s00 * inverseDeterminant;
+
+        // K = P H^T S^-1
+        double k00 = ph00 * i00 + ph01 * i10;
+        double k01 = ph00 * i01 + ph01 * i11;
+        double k10 = ph10 * i00 + ph11 * i10;
+        double k11 = ph10 * i01 + ph11 * i11;
+
+        correctPositionGroup(0, 4, measurement, k00, k01, k10, k11);
+        correctPositionGroup(1, 5, measurement, k00, k01, k10, k11);
+
+        // P = (I - K H) P
+        double m00 = 1 - k00;
+        double m01 = -k00 - k01;
+        double m10 = -k10;
+        double m11 = 1 - k10 - k11;
+        double n00 = m00 * p00 + m01 * p10;
+        double n01 = m00 * p01 + m01 * p11;
+        double n10 = m10 * p00 + m11 * p10;
+        double n11 = m10 * p01 + m11 * p11;
+        p00 = n00;
+        p01 = n01;
+        p10 = n10;
+        p11 = n11;
+
+        // velocities, with H = 1
+        double gain = velocityVariance / (velocityVariance + measurementNoise);
+        state[2] += gain * (measurement[2] - state[2]);
+        state[3] += gain * (measurement[3] - state[3]);
+        velocityVariance = (1 - gain) * velocityVariance;
+    }
+
+    private void correctPositionGroup(int position, int rate, double[] measurement,
+                                      double k00, double k01, double k10, double k11) {
+        // innovation = z - H x
+        double innovation0 = measurement[position] - (state[position] + state[rate]);
+        double innovation1 = measurement[rate] - state[rate];
+        state[position] += k00 * innovation0 + k01 * innovation1;
+        state[rate] += k10 * innovation0 + k11 * innovation1;
+    }
+
+    @Override
+    public double[] getStateEstimation() {
+        return state.clone();
+    }
+
+    @Override
+    public double getStateEstimation(int i) {
+        return state[i];
+    }
+
+    @Override
+    public double getErrorCovariance(int row, int col) {
+        if (AXIS[row] != AXIS[col]) {
+            return 0;
+        }
+        int partRow = PART[row];
+        int partCol = PART[col];
+        if (partRow == 2 || partCol == 2) {
+            return partRow == partCol ? velocityVariance : 0;
+        }
+        if (partRow == 0) {
+            return partCol == 0 ? p00 : p01;
+        }
+        return partCol == 0 ? p10 : p11;
+    }
+
+    /**
+     * Only the entries of the x group are read from the covariance, since the y group always has the same values
+     */
+    @Override
+    public void restore(double[] state, double[][] errorCovariance) {
+        if (state.length != 6 || errorCovariance.length != 6) {
+            throw new IllegalArgumentException("State and error covariance must have 6 values");
+        }
+        System.arraycopy(state, 0, this.state, 0, 6);
+        p00 = errorCovariance[0][0];
+        p01 = errorCovariance[0][4];
+        p10 = errorCovariance[4][0];
+        p11 = errorCovariance[4][4];
+        velocityVariance = errorCovariance[2][2];
+    }
+}
@@ -0,0 +1,47 @@
+package sproj.prediction;
+
+/**
+ * Motion filter used by each Animal to estimate its state from the noisy positions it is assigned.
+ *
+ * The state has the 6 values of the model in KalmanFilterBuilder: x, y, vx, vy, and two terms that are added
+ * to x and y by the state transition. Measurements have the same 6 values.
+ *
+ * Implemented by PrimitiveKalmanFilter, and by CommonsKalmanFilter around the Apache Commons KalmanFilter.
+ */
+public interface TrackingFilter {
+
+    /**
+     * Advances the state estimation by one time step. Must be called before correct().
+     */
+    void predict();
+
+    /**
+     * Corrects the state estimation with a measurement
+     *
+     * @param measurement array of 6 values, see the class description
+     */
+    void correct(double[] measurement);
+
+    /**
+     * @return a copy of the state estimation
+     */
+    double[] getStateEstimation();
+
+    /**
+     * @return value i of the state estimation, without copying the state
+     */
+    double getStateEstimation(int i);
+
+    /**
+     * @return entry (row, col) of the error covariance matrix, without copying the matrix
+     */
+    double getErrorCovariance(int row, int col);
+
+    /**
+     * Replaces the state estimation and the error covariance, e.g. with the values saved in a TrackerCheckpoint
+     *
+     * @param state array of 6 values, see the class description
+     * @param errorCovariance 6x6 matrix, with the entries given by getErrorCovariance()
+     */
+    void restore(double[] state, double[][] errorCovariance);
+}
@@ -1,13 +1,10 @@
 package sproj.tracking;
 
-import org.apache.commons.collections4.queue.CircularFifoQueue;
-import org.apache.commons.math3.filter.KalmanFilter;
 import org.bytedeco.javacpp.opencv_core.Scalar;
 import sproj.assignment.OptimalAssigner;
+import sproj.prediction.TrackingFilter;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 
 /**
  * Class used to record the motion data of individual
@@ -27,15 +24,19 @@ public class Animal {
 
     public static final int DATA_BUFFER_ARRAY_SIZE = 60;
 
-    private ArrayList<double[]> dataPoints;
-    private CircularFifoQueue<int[]> linePoints;
+    private final TrajectoryBuffer dataPoints;
+    private final TrailBuffer linePoints;
+    private final TrajectoryBuffer.Cursor dataPointsCursor;
+    private final TrailBuffer.Cursor linePointsCursor;
 
     public int x, y;
     public double vx, vy;
     public double ax, ay;   // acceleration
     public double currentHeading;
 
-    public KalmanFilter trackingFilter;
+    public TrackingFilter trackingFilter;
+    private final double[] filterMeasurement = new double[6];   // reused for every correction of the filter
+    private boolean filterPredicted;    // true if the filter has already been advanced to the current time step
     private int[] positionBounds;
 
     // count of consecutive time steps that have not had true assignment updates
@@ -48,14 +49,16 @@ public class Animal {
 
     private boolean PREDICT_WITH_VELOCITY = true;
 
-    public Animal(int _x, int _y, final int[] positionBounds, final Scalar clr, KalmanFilter kFilter) {
+    public Animal(int _x, int _y, final int[] positionBounds, final Scalar clr, TrackingFilter kFilter) {
 
         this.x = _x; this.y = _y;
         this.positionBounds = positionBounds;
         currentHeading = 0;
         color = clr; // new Scalar(clr[0], clr[1], clr[2], 1.0);
-        linePoints = new CircularFifoQueue<>(LINE_POINTS_SIZE);
-        dataPoints = new ArrayList<>(DATA_BUFFER_ARRAY_SIZE);
+        linePoints = new TrailBuffer(LINE_POINTS_SIZE);
+        dataPoints = new TrajectoryBuffer(DATA_BUFFER_ARRAY_SIZE);
+        linePointsCursor = linePoints.cursor();
+        dataPointsCursor = dataPoints.cursor();
         trackingFilter = kFilter;
 
         this.timeStepsPredicted = 0;
@@ -76,9 +79,20 @@ public class Animal {
         return currCostNonAssignnmnt;
     }
 
-    public void clearPoints() {     // todo check impact on performance of calling this
-        this.dataPoints.clear();    // obviously the time requirement is directly proportional to the size of the array,
-    }                               // since this nullifies all the array elements, so keep the array size relatively small  
+    int getTimeStepsPredicted() {
+        return timeStepsPredicted;
+    }
+
+    /**
+     * Only used to restore the animal from a TrackerCheckpoint
+     */
+    void setTimeStepsPredicted(int timeStepsPredicted) {
+        this.timeStepsPredicted = timeStepsPredicted;
+    }
+
+    public void clearPoints() {
+        this.dataPoints.clear();    // constant time, the columns are kept for the next points
+    }
 
     /**
      * Called once per timestep, after optimal assignments have been solved
@@ -108,8 +122,8 @@ public class Animal {
 
         this.x = _x; this.y = _y;
         applyBoundsConstraints();
-        dataPoints.add(new double[]{timePos, this.x, this.y, predicted});
-        linePoints.add(new int[]{this.x, this.y});   // calls the addFirst() method, adds to front of Deque
+        dataPoints.add(timePos, this.x, this.y, predicted);
+        linePoints.add(this.x, this.y);     // replaces the oldest point once the trail is full
         updateVelocity(dt);
         updateKFilter();
     }
@@ -124,18 +138,18 @@ public class Animal {
 
     public void predictTrajectory(double dt, long timePos) {
 
-        double[] predictedState = getPredictedState();
+        predictState();
 
         if (DEBUG) {
             System.out.println(String.format("Current [(%d,%d)(%.3f,%.3f)], estimation: %s",
-                    this.x, this.y, this.vx, this.vy, Arrays.toString(predictedState))
+                    this.x, this.y, this.vx, this.vy, Arrays.toString(trackingFilter.getStateEstimation()))
             );
         }
 
-        double predX = predictedState[0]; //(int) Math.round(predictedState[0]);
-        double predY = predictedState[1]; //(int) Math.round(predictedState[1]);
-        double vx = predictedState[2];
-        double vy = predictedState[3];
+        double predX = trackingFilter.getStateEstimation(0); //(int) Math.round(predictedState[0]);
+        double predY = trackingFilter.getStateEstimation(1); //(int) Math.round(predictedState[1]);
+        double vx = trackingFilter.getStateEstimation(2);
+        double vy = trackingFilter.getStateEstimation(3);
 
         int newx, newy;
         if (PREDICT_WITH_VELOCITY) {
@@ -172,38 +186,65 @@ public class Animal {
 
         } else {
             // todo average these out so the change in values isnt so drastic
-            int[] prevPoint = linePoints.get(linePoints.size() - 1 - subtractionIdx);   // the most recent point is at the end index
-            this.vx = (this.x - prevPoint[0]) / (subtractionIdx * dt);
+            int prevIdx = linePoints.size() - 1 - subtractionIdx;   // the most recent point is at the end index
+            this.vx = (this.x - linePoints.getX(prevIdx)) / (subtractionIdx * dt);
             /* flip the subtraction because y axis in graphics increases by going down instead of up */
-             this.vy = ((prevPoint[1] - this.y) / (subtractionIdx * dt));
+             this.vy = ((linePoints.getY(prevIdx) - this.y) / (subtractionIdx * dt));
         }
     }
 
     private void updateKFilter() {
-        double[] stateCorrection = new double[]{this.x, this.y, this.vx, this.vy, this.ax, this.ay};
-        this.trackingFilter.predict();      // this needs to be called before calling correct()
+        filterMeasurement[0] = this.x;
+        filterMeasurement[1] = this.y;
+        filterMeasurement[2] = this.vx;
+        filterMeasurement[3] = this.vy;
+        filterMeasurement[4] = this.ax;
+        filterMeasurement[5] = this.ay;
+        if (!filterPredicted) {
+            this.trackingFilter.predict();      // this needs to be called before calling correct()
+        }
+        filterPredicted = false;
         if (DEBUG) {System.out.println(String.format("\nUpdating filter: %d %d %.4f %.4f", this.x, this.y, this.vx, this.vy));}
-        this.trackingFilter.correct(stateCorrection);
+        this.trackingFilter.correct(filterMeasurement);
         if (DEBUG) {System.out.println(String.format("Prediction: %s", Arrays.toString(this.trackingFilter.getStateEstimation())));}
     }
 
-    private double[] getPredictedState() {
+    /**
+     * Advances the filter to the current time step. The correction with the predicted position then
+     * follows in updateKFilter(), which does not advance the filter a second time for the same step.
+     */
+    private void predictState() {
         this.trackingFilter.predict();
-        return this.trackingFilter.getStateEstimation();
-//        double[] predictedState = this.trackingFilter.getStateEstimation();
-//        this.trackingFilter.correct(predictedState);        // this is already called when predictTrajectory() calls updateLocation
-//        return predictedState;
+        filterPredicted = true;
     }
 
     private enum MovementState {
         INMOTION, STATIONARY, STARTLED
     }
 
-    public Iterator<int[]> getLinePointsIterator() {      // TODO  figure out how to use this instead?   -->   use linePoints.size() to know when to stop
-        return linePoints.iterator();
+    public TrailBuffer getLinePoints() {
+        return linePoints;
+    }
+
+    public TrajectoryBuffer getDataPoints() {
+        return dataPoints;
     }
 
-    public Iterator<double[]> getDataPointsIterator() {      // TODO  figure out how to use this instead?   -->   use linePoints.size() to know when to stop
-        return dataPoints.iterator();
+    /**
+     * @return the animal's cursor over its trail points, reset to the oldest point.
+     *         The same cursor is returned on each call, so only one iteration can be in progress at a time.
+     */
+    public TrailBuffer.Cursor getLinePointsCursor() {
+        linePointsCursor.reset();
+        return linePointsCursor;
+    }
+
+    /**
+     * @return the animal's cursor over its data points, reset to the oldest point.
+     *         The same cursor is returned on each call, so only one iteration can be in progress at a time.
+     */
+    public TrajectoryBuffer.Cursor getDataPointsCursor() {
+        dataPointsCursor.reset();
+        return dataPointsCursor;
     }
 }
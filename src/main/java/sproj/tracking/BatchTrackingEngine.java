@@ -0,0 +1,345 @@
+package sproj.tracking;
+
+import org.apache.commons.collections4.map.HashedMap;
+import sproj.assignment.AssignmentSolver;
+import sproj.assignment.GatedAssigner;
+import sproj.assignment.JonkerVolgenantAssigner;
+import sproj.assignment.OptimalAssigner;
+import sproj.util.IOUtils;
+import sproj.util.Logger;
+import sproj.util.NonMaxSuppression;
+import sproj.util.TrajectoryWriter;
+import sproj.yolo.ModelPool;
+import sproj.yolo.YOLOModelContainer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Tracks a list of videos in parallel, using a fixed pool of warmed-up model instances.
+ *
+ * Each worker thread takes the next video from the manifest, borrows a model from the ModelPool,
+ * and runs a SinglePlateTracker on the video without any display. The number of workers is
+ * the same as the number of model instances in the pool.
+ *
+ * The manifest is a text file with one video per line, with comma separated values in this format:
+ *
+ *      full/video/path,number of animals in video,crop dimensions,path/to/data/save/prefix
+ *
+ * where the crop dimensions are space separated integers of the form:  x y width height
+ * e.g.   /home/Videos/IMG_5193.MOV,4,245 30 660 660,/home/data/IMG_5193_data
+ *
+ * Blank lines and lines starting with '#' are ignored.
+ *
+ * If checkpoints are enabled, each video saves its tracking state to `prefix`.checkpoint while it is tracked.
+ * A video whose checkpoint file still exists when the batch is run again (i.e. its run was stopped before
+ * the end) is resumed from the checkpoint instead of being tracked from the start.
+ */
+public class BatchTrackingEngine {
+
+    private static final Logger logger = new Logger();
+
+    private static final int INIT_DETECTION_FRAMES = 10;            // same as Tracker.NUMB_FRAMES_FOR_INIT
+    private static final double DEFAULT_MAX_DISPLACEMENT = 10.0;    // pixels between detections, for -adaptiveStride
+
+    private final ModelPool modelPool;
+    private DecoderOptions decoderOptions = new DecoderOptions();
+    private Supplier<DetectionScheduler> schedulerFactory = DetectionScheduler::everyFrame;
+    private Supplier<AssignmentSolver> solverFactory = OptimalAssigner::new;
+    private NonMaxSuppression.Method nmsMethod = NonMaxSuppression.Method.GREEDY;
+    private TrajectoryWriter.Format outputFormat = TrajectoryWriter.Format.CSV;
+    private int checkpointInterval;     // frames, 0 if checkpoints are disabled
+
+    /**
+     * Simple container for one line of the manifest file
+     */
+    public static class VideoJob {
+
+        public final String videoPath;
+        public final int numbAnimals;
+        public final int[] crop;
+        public final String dataSavePrefix;
+
+        public VideoJob(String videoPath, int numbAnimals, int[] crop, String dataSavePrefix) {
+            this.videoPath = videoPath;
+            this.numbAnimals = numbAnimals;
+            this.crop = crop;
+            this.dataSavePrefix = dataSavePrefix;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%d animals, crop %s)", videoPath, numbAnimals, Arrays.toString(crop));
+        }
+    }
+
+    public BatchTrackingEngine(ModelPool modelPool) {
+        this.modelPool = modelPool;
+    }
+
+    /**
+     * @param decoderOptions decoder settings used for every video. Only read, never modified,
+     *                       so the same instance is shared by all workers
+     */
+    public void setDecoderOptions(DecoderOptions decoderOptions) {
+        this.decoderOptions = decoderOptions;
+    }
+
+    /**
+     * Parses the manifest file, see class description for the format
+     *
+     * @param manifest text file listing the videos to track
+     * @return list of VideoJob instances, in the same order as the file
+     * @throws IOException if the file could not be read
+     */
+    public static List<VideoJob> readManifest(File manifest) throws IOException {
+
+        List<VideoJob> jobs = new ArrayList<>();
+        int lineNumber = 0;
+
+        for (String line : IOUtils.readInLargeFile(manifest)) {
+
+            lineNumber++;
+            line = line.trim();
+
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] values = line.split(",");
+            if (values.length != 4) {
+                throw new IOException(String.format("Invalid manifest line %d, expected 4 comma separated values: %s",
+                        lineNumber, line));
+            }
+
+            String[] cropValues = values[2].trim().split("\\s+");
+            if (cropValues.length != 4) {
+                throw new IOException(String.format("Invalid crop dimensions on manifest line %d: %s",
+                        lineNumber, values[2]));
+            }
+
+            try {
+                int[] crop = new int[4];
+                for (int i = 0; i < 4; i++) {
+                    crop[i] = Integer.parseInt(cropValues[i]);
+                }
+                jobs.add(new VideoJob(values[0].trim(), Integer.parseInt(values[1].trim()), crop, values[3].trim()));
+
+            } catch (NumberFormatException e) {
+                throw new IOException(String.format("Invalid number on manifest line %d: %s", lineNumber, line), e);
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * @param schedulerFactory creates a new DetectionScheduler for each video, since schedulers keep per-video state
+     */
+    public void setDetectionSchedulerFactory(Supplier<DetectionScheduler> schedulerFactory) {
+        this.schedulerFactory = schedulerFactory;
+    }
+
+    /**
+     * @param solverFactory creates a new AssignmentSolver for each video, since solvers keep their working memory
+     */
+    public void setAssignmentSolverFactory(Supplier<AssignmentSolver> solverFactory) {
+        this.solverFactory = solverFactory;
+    }
+
+    /**
+     * @param nmsMethod non maximum suppression method applied to the detections of every video, see NonMaxSuppression
+     */
+    public void setNmsMethod(NonMaxSuppression.Method nmsMethod) {
+        this.nmsMethod = nmsMethod;
+    }
+
+    /**
+     * @param outputFormat format the trajectories of every video are saved in, see SinglePlateTracker.setOutputFormat()
+     */
+    public void setOutputFormat(TrajectoryWriter.Format outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    /**
+     * @param checkpointInterval save a checkpoint of each video every this many frames, or 0 for no checkpoints.
+     *                           See SinglePlateTracker.enableCheckpoints()
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Tracks all videos, with as many running at once as there are models in the pool.
+     * A video that fails does not stop the others from being tracked.
+     *
+     * @param jobs videos to track
+     * @return list of the videos that could not be tracked
+     * @throws InterruptedException if interrupted while waiting for the workers to finish
+     */
+    public List<VideoJob> trackAll(List<VideoJob> jobs) throws InterruptedException {
+
+        ExecutorService workers = Executors.newFixedThreadPool(modelPool.getSize());
+        List<Future<?>> results = new ArrayList<>(jobs.size());
+        List<VideoJob> failed = new ArrayList<>();
+
+        long startTime = System.currentTimeMillis();
+
+        try {
+            for (VideoJob job : jobs) {
+                results.add(workers.submit(() -> {
+                    trackVideo(job);
+                    return null;
+                }));
+            }
+
+            for (int i = 0; i < jobs.size(); i++) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    logger.error("Failed to track video: " + jobs.get(i), cause instanceof Exception ? (Exception) cause : e);
+                    failed.add(jobs.get(i));
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+
+        logger.info(String.format("Tracked %d of %d videos in %.1fs",
+                jobs.size() - failed.size(), jobs.size(), (System.currentTimeMillis() - startTime) / 1000.0));
+
+        return failed;
+    }
+
+    private void trackVideo(VideoJob job) throws IOException, InterruptedException {
+
+        YOLOModelContainer model = modelPool.acquire();
+
+        try {
+            logger.info(Thread.currentThread().getName() + " tracking " + job);
+            long startTime = System.currentTimeMillis();
+
+            model.getNonMaxSuppression().setMethod(nmsMethod);     // the models are shared with other videos
+            SinglePlateTracker tracker = new SinglePlateTracker(
+                    job.numbAnimals, false, job.crop, job.videoPath, job.dataSavePrefix, model
+            );
+            tracker.setDecoderOptions(decoderOptions);
+            tracker.setDetectionScheduler(schedulerFactory.get());
+            tracker.setAssignmentSolver(solverFactory.get());
+            tracker.setOutputFormat(outputFormat);
+            if (checkpointInterval > 0) {
+                File checkpoint = new File(job.dataSavePrefix + ".checkpoint");
+                if (checkpoint.exists()) {
+                    tracker.resumeFrom(checkpoint);
+                }
+                tracker.enableCheckpoints(checkpoint, checkpointInterval);
+            }
+            tracker.trackWithoutDisplay();
+
+            logger.info(String.format("Finished %s in %.1fs", job.videoPath,
+                    (System.currentTimeMillis() - startTime) / 1000.0));
+        } finally {
+            modelPool.release(model);
+        }
+    }
+
+    /**
+     * @return factory for the detection scheduler chosen by the -stride or -adaptiveStride argument,
+     *         a scheduler that detects on every frame if there is neither
+     */
+    static Supplier<DetectionScheduler> parseDetectionScheduler(HashedMap<String, List<String>> parameters) {
+        if (parameters.containsKey("-adaptiveStride")) {
+            int maxStride = Integer.parseInt(parameters.get("-adaptiveStride").get(0));
+            return () -> DetectionScheduler.adaptive(maxStride, DEFAULT_MAX_DISPLACEMENT, INIT_DETECTION_FRAMES);
+        } else if (parameters.containsKey("-stride")) {
+            int stride = Integer.parseInt(parameters.get("-stride").get(0));
+            return () -> DetectionScheduler.fixedStride(stride, INIT_DETECTION_FRAMES);
+        }
+        return DetectionScheduler::everyFrame;
+    }
+
+    /**
+     * @return factory for the assignment solver chosen by the -gate or -lapjv argument, Munkres if there is neither
+     */
+    static Supplier<AssignmentSolver> parseAssignmentSolver(HashedMap<String, List<String>> parameters) {
+        if (parameters.containsKey("-gate")) {
+            double gate = Double.parseDouble(parameters.get("-gate").get(0));
+            return () -> new GatedAssigner(gate);
+        } else if (parameters.containsKey("-lapjv")) {
+            return JonkerVolgenantAssigner::new;
+        }
+        return OptimalAssigner::new;
+    }
+
+    /**
+     * Arguments:
+     *      -manifest <file>        text file listing the videos to track (required)
+     *      -workers <n>            number of videos to track in parallel (default: 1)
+     *      -model <file>           path to the saved model zip file (default: src/main/resources/inference/yolov2_80000.zip)
+     *      -decodeThreads <n>      decoder threads for each video (default: number of cores / number of workers)
+     *      -skipNonRef             skip decoding of non-reference frames, see DecoderOptions
+     *      -stride <k>             run detection on every k-th frame only, see DetectionScheduler
+     *      -adaptiveStride <k>     run detection at most every k-th frame, depending on how fast the animals move
+     *      -lapjv                  assign detections with the Jonker-Volgenant solver instead of Munkres
+     *      -gate <pixels>          only consider detections within this distance of each animal, see GatedAssigner
+     *      -nms <method>           greedy (default), grid or soft, see NonMaxSuppression
+     *      -format <format>        csv (default), binary (.traj, see TrajectoryFile) or chunked (.trajz, see TrajectoryStore)
+     *      -checkpoint <frames>    save a checkpoint of each video every n frames, and resume stopped videos from it
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        HashedMap<String, List<String>> parameters = IOUtils.parseArgs(args);
+
+        if (!parameters.containsKey("-manifest") || parameters.get("-manifest").isEmpty()) {
+            System.out.println("Usage: BatchTrackingEngine -manifest <file> [-workers <n>] [-model <file>] [-decodeThreads <n>] [-skipNonRef] [-stride <k> | -adaptiveStride <k>] [-lapjv | -gate <pixels>] [-nms greedy|grid|soft] [-format csv|binary|chunked] [-checkpoint <frames>]");
+            return;
+        }
+
+        File manifest = new File(parameters.get("-manifest").get(0));
+        int numbWorkers = parameters.containsKey("-workers") ? Integer.parseInt(parameters.get("-workers").get(0)) : 1;
+        File modelPath = new File(parameters.containsKey("-model") ?
+                parameters.get("-model").get(0) : YOLOModelContainer.DEFAULT_MODEL_PATH);
+
+        List<VideoJob> jobs = readManifest(manifest);
+        logger.info(String.format("Tracking %d videos with %d workers", jobs.size(), numbWorkers));
+
+        // avoid each of the videos being decoded in parallel starting one decoder thread per core
+        DecoderOptions decoderOptions = new DecoderOptions();
+        decoderOptions.setThreads(parameters.containsKey("-decodeThreads") ?
+                Integer.parseInt(parameters.get("-decodeThreads").get(0)) :
+                Math.max(1, Runtime.getRuntime().availableProcessors() / numbWorkers));
+        decoderOptions.setSkipNonReferenceFrames(parameters.containsKey("-skipNonRef"));
+
+        ModelPool modelPool = new ModelPool(modelPath, numbWorkers, true);
+        modelPool.divideCpuThreads();
+
+        BatchTrackingEngine engine = new BatchTrackingEngine(modelPool);
+        engine.setDecoderOptions(decoderOptions);
+
+        engine.setDetectionSchedulerFactory(parseDetectionScheduler(parameters));
+        engine.setAssignmentSolverFactory(parseAssignmentSolver(parameters));
+        if (parameters.containsKey("-nms")) {
+            engine.setNmsMethod(NonMaxSuppression.Method.valueOf(parameters.get("-nms").get(0).toUpperCase()));
+        }
+        if (parameters.containsKey("-format")) {
+            engine.setOutputFormat(TrajectoryWriter.Format.valueOf(parameters.get("-format").get(0).toUpperCase()));
+        }
+        if (parameters.containsKey("-checkpoint")) {
+            engine.setCheckpointInterval(Integer.parseInt(parameters.get("-checkpoint").get(0)));
+        }
+        List<VideoJob> failed = engine.trackAll(jobs);
+
+        for (VideoJob job : failed) {
+            logger.warn("Failed: " + job);
+        }
+        System.exit(failed.isEmpty() ? 0 : 1);
+    }
+}
@@ -0,0 +1,153 @@
+package sproj.tracking;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.avutil;
+import org.bytedeco.javacpp.opencv_core.Rect;
+import org.bytedeco.javacv.FFmpegFrameFilter;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameFilter;
+import org.bytedeco.javacv.FrameGrabber;
+
+import java.io.IOException;
+
+/**
+ * Crops and downscales decoded video frames inside FFmpeg, so that only the pixels the tracker actually
+ * uses are converted to BGR and copied into Java. For a 4K video cropped to 660x660 and resized to 416x416,
+ * the default grabber would otherwise convert all 8 million pixels of each frame to BGR first.
+ *
+ * For 4:2:0 YUV video (almost all H.264 / HEVC files), frames are grabbed without the grabber's own BGR
+ * conversion, the crop region of each Y, U and V plane is copied out of the decoded frame, and an FFmpeg filter
+ * graph scales that to the output size and converts it to BGR. Note that FFmpegFrameFilter.push() cannot be given
+ * the decoded frame directly, because it assumes all planes are stored one after another in the same buffer.
+ * The grabber's RAW image mode is not used either, as in javacv 1.4.2 it makes grabber.release() free memory
+ * owned by the decoder.
+ * Any other pixel format falls back to running crop and scale filters on the grabber's normal BGR output.
+ *
+ * The crop x and y coordinates are rounded down to even numbers for 4:2:0 video, the same as FFmpeg's crop filter.
+ */
+public class CropScaleFilter {
+
+    private final FFmpegFrameGrabber grabber;
+    private final FFmpegFrameFilter filter;
+    private final boolean rawMode;
+    private final int pixelFormat;          // of the decoded frames
+
+    private final int cropX, cropY, cropWidth, cropHeight;
+    private BytePointer croppedPlanes;      // Y, U and V planes of the crop region, one after another
+
+    /**
+     * @param grabber grabber that has already been started
+     * @param crop region of the full video frame to keep
+     * @param outputWidth width of the output frames
+     * @param outputHeight height of the output frames
+     * @throws FrameFilter.Exception if the FFmpeg filter graph could not be created
+     */
+    public CropScaleFilter(FFmpegFrameGrabber grabber, Rect crop, int outputWidth, int outputHeight)
+            throws FrameFilter.Exception {
+
+        if (crop.x() < 0 || crop.y() < 0 || crop.width() <= 0 || crop.height() <= 0
+                || crop.x() + crop.width() > grabber.getImageWidth()
+                || crop.y() + crop.height() > grabber.getImageHeight()) {
+            throw new IllegalArgumentException(String.format("Crop region %d %d %d %d is outside the %dx%d video",
+                    crop.x(), crop.y(), crop.width(), crop.height(), grabber.getImageWidth(), grabber.getImageHeight()));
+        }
+
+        this.grabber = grabber;
+
+        // in raw mode the grabber reports the decoder's own pixel format, rather than the BGR format it converts to.
+        // No frames are grabbed in raw mode, so switching back straight away is safe
+        grabber.setImageMode(FrameGrabber.ImageMode.RAW);
+        this.pixelFormat = grabber.getPixelFormat();
+        grabber.setImageMode(FrameGrabber.ImageMode.COLOR);
+        this.rawMode = pixelFormat == avutil.AV_PIX_FMT_YUV420P || pixelFormat == avutil.AV_PIX_FMT_YUVJ420P;
+
+        String scale = String.format("scale=%d:%d:flags=bilinear", outputWidth, outputHeight);
+
+        if (rawMode) {
+            cropX = crop.x() & ~1;
+            cropY = crop.y() & ~1;
+            cropWidth = crop.width() & ~1;
+            cropHeight = crop.height() & ~1;
+            croppedPlanes = new BytePointer(cropWidth * cropHeight * 3 / 2);
+
+            filter = new FFmpegFrameFilter(scale + ",format=bgr24", cropWidth, cropHeight);
+            filter.setPixelFormat(pixelFormat);
+        } else {
+            cropX = crop.x();
+            cropY = crop.y();
+            cropWidth = crop.width();
+            cropHeight = crop.height();
+
+            filter = new FFmpegFrameFilter(String.format("crop=%d:%d:%d:%d,%s",
+                    cropWidth, cropHeight, cropX, cropY, scale), grabber.getImageWidth(), grabber.getImageHeight());
+            filter.setPixelFormat(avutil.AV_PIX_FMT_BGR24);
+        }
+        filter.start();
+    }
+
+    /**
+     * @return true if the crop is done on the raw YUV planes, false if the full frame is converted to BGR first
+     */
+    public boolean isRawMode() {
+        return rawMode;
+    }
+
+    /**
+     * Grabs the next video frame from the grabber, then crops and resizes it.
+     * The grabber's frame number and timestamp are updated the same as with grabImage().
+     *
+     * @return the cropped and resized 8-bit BGR frame, which is only valid until the next call to this function,
+     *         or null at the end of the video
+     * @throws IOException if the frame could not be decoded, or the filter graph failed on it
+     */
+    public Frame grab() throws IOException {
+
+        if (!rawMode) {
+            Frame decoded = grabber.grabImage();
+            if (decoded == null) {
+                return null;
+            }
+            filter.push(decoded);
+            return filter.pull();
+        }
+
+        // doAudio, doVideo, processImage, keyFrames: skips the conversion of the whole frame to BGR
+        Frame decoded = grabber.grabFrame(false, true, false, false);
+        if (decoded == null) {
+            return null;
+        }
+
+        avutil.AVFrame picture = (avutil.AVFrame) decoded.opaque;
+        int lumaSize = cropWidth * cropHeight;
+
+        copyPlane(picture, 0, 0, cropX, cropY, cropWidth, cropHeight);
+        copyPlane(picture, 1, lumaSize, cropX / 2, cropY / 2, cropWidth / 2, cropHeight / 2);
+        copyPlane(picture, 2, lumaSize + lumaSize / 4, cropX / 2, cropY / 2, cropWidth / 2, cropHeight / 2);
+
+        filter.pushImage(cropWidth, cropHeight, Frame.DEPTH_UBYTE, 1, cropWidth, pixelFormat,
+                croppedPlanes.position(0).limit(lumaSize * 3 / 2).asByteBuffer());
+        return filter.pull();
+    }
+
+    private void copyPlane(avutil.AVFrame picture, int plane, int destOffset, int x, int y, int width, int height) {
+        int lineSize = picture.linesize(plane);
+        BytePointer source = picture.data(plane);
+        source.position((long) y * lineSize + x);
+        avutil.av_image_copy_plane(croppedPlanes.position(destOffset), width, source, lineSize, width, height);
+    }
+
+    /**
+     * Releases the filter graph. The grabber itself is not released
+     */
+    public void release() {
+        try {
+            filter.release();
+        } catch (FrameFilter.Exception ignored) {
+        }
+        if (croppedPlanes != null) {
+            croppedPlanes.deallocate();
+            croppedPlanes = null;
+        }
+    }
+}
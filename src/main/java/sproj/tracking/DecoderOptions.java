@@ -0,0 +1,110 @@
+package sproj.tracking;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+
+/**
+ * Settings for the FFmpeg video decoder used by the Tracker's frame grabber.
+ *
+ * By default FFmpeg decodes H.264 / HEVC on a single thread, which for 1080p and 4K video
+ * can take about as long as running the network on each frame. These options are passed to
+ * the decoder through FFmpegFrameGrabber.setVideoOption(), so they must be applied before
+ * the grabber is started.
+ */
+public class DecoderOptions {
+
+    /**
+     * How the decoder splits work between its threads:
+     *      FRAME   decodes several consecutive frames at once. Best throughput, but adds
+     *              a delay of one frame per thread before the first frame is returned.
+     *      SLICE   decodes the slices of a single frame in parallel. No added delay, but only
+     *              helps if the video was encoded with multiple slices per frame.
+     */
+    public enum ThreadType {
+        FRAME("frame"),
+        SLICE("slice"),
+        FRAME_AND_SLICE("frame+slice");
+
+        private final String ffmpegValue;
+
+        ThreadType(String ffmpegValue) {
+            this.ffmpegValue = ffmpegValue;
+        }
+    }
+
+    private int threads = 0;                                // 0 lets FFmpeg pick, based on the number of cores
+    private ThreadType threadType = ThreadType.FRAME_AND_SLICE;
+    private boolean skipNonReferenceFrames = false;
+    private String decoderName = null;                      // e.g. "h264_cuvid" for NVDEC, null for FFmpeg's default decoder
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads number of decoder threads, or 0 to use one per CPU core
+     */
+    public void setThreads(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("Number of decoder threads cannot be negative: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    public ThreadType getThreadType() {
+        return threadType;
+    }
+
+    public void setThreadType(ThreadType threadType) {
+        if (threadType == null) {
+            throw new IllegalArgumentException("Thread type cannot be null");
+        }
+        this.threadType = threadType;
+    }
+
+    public boolean isSkipNonReferenceFrames() {
+        return skipNonReferenceFrames;
+    }
+
+    /**
+     * If set, frames that no other frame depends on (usually the B-frames) are not decoded at all.
+     * This can roughly halve the decoding cost of some videos, but the grabber then skips those
+     * frames, so the effective frame rate of the tracking data is lower and the frame numbers are not consecutive.
+     */
+    public void setSkipNonReferenceFrames(boolean skipNonReferenceFrames) {
+        this.skipNonReferenceFrames = skipNonReferenceFrames;
+    }
+
+    public String getDecoderName() {
+        return decoderName;
+    }
+
+    /**
+     * @param decoderName name of a specific FFmpeg decoder, e.g. "h264_cuvid" or "hevc_cuvid" to decode
+     *                    on an NVIDIA GPU, or null to use the default decoder for the video's codec.
+     *                    The decoder must be included in the FFmpeg build that javacv ships with.
+     */
+    public void setDecoderName(String decoderName) {
+        this.decoderName = decoderName;
+    }
+
+    /**
+     * Sets these options on a grabber that has not been started yet
+     */
+    void applyTo(FFmpegFrameGrabber grabber) {
+        grabber.setVideoOption("threads", threads == 0 ? "auto" : Integer.toString(threads));
+        grabber.setVideoOption("thread_type", threadType.ffmpegValue);
+        if (skipNonReferenceFrames) {
+            grabber.setVideoOption("skip_frame", "noref");
+        }
+        if (decoderName != null) {
+            grabber.setVideoCodecName(decoderName);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("threads=%s, thread_type=%s, skip non-reference frames=%b, decoder=%s",
+                threads == 0 ? "auto" : threads, threadType.ffmpegValue, skipNonReferenceFrames,
+                decoderName == null ? "default" : decoderName);
+    }
+}
@@ -0,0 +1,144 @@
+package sproj.tracking;
+
+import java.util.List;
+
+/**
+ * Decides on which frames the tracker runs the detection model. On the frames in between,
+ * each Animal's position is filled in from its Kalman filter with Animal.predictTrajectory(),
+ * and the data point is marked as predicted.
+ *
+ * Three modes:
+ *      every frame     the default, the same as tracking without a scheduler
+ *      fixed stride    detection runs on every k-th frame
+ *      adaptive        the stride is recalculated after each detection, so that the fastest animal
+ *                      (according to the velocity estimate of its Kalman filter) moves no more than
+ *                      a given number of pixels between two detections, up to a maximum stride
+ *
+ * In all modes, detection runs on every frame during the first initFrames frames of the video, while
+ * the Animal objects are still attaching themselves to the detections, and on the frame right after
+ * any detection that left an animal without an assignment.
+ *
+ * shouldDetect() and detectionDone() may be called from different threads, e.g. the inference
+ * and the tracking threads of a FramePipeline. In that case the stride changes take effect
+ * a few frames late, i.e. after the frames that were already waiting in the pipeline.
+ */
+public class DetectionScheduler {
+
+    private final int maxStride;
+    private final boolean adaptive;
+    private final double maxDisplacement;       // pixels, only used in adaptive mode
+    private final int initFrames;
+
+    private volatile int stride = 1;
+    private int framesSinceDetection;
+    private int framesSeen;
+
+    private long detectedFrames;
+    private long skippedFrames;
+
+    /**
+     * @return a scheduler that runs detection on every frame
+     */
+    public static DetectionScheduler everyFrame() {
+        return new DetectionScheduler(1, false, 0, 0);
+    }
+
+    /**
+     * @param stride run detection on every `stride`-th frame
+     * @param initFrames number of frames at the start of the video on which detection always runs
+     */
+    public static DetectionScheduler fixedStride(int stride, int initFrames) {
+        return new DetectionScheduler(stride, false, 0, initFrames);
+    }
+
+    /**
+     * @param maxStride largest number of frames from one detection to the next
+     * @param maxDisplacement number of pixels the fastest animal may move between two detections
+     * @param initFrames number of frames at the start of the video on which detection always runs
+     */
+    public static DetectionScheduler adaptive(int maxStride, double maxDisplacement, int initFrames) {
+        if (maxDisplacement <= 0) {
+            throw new IllegalArgumentException("Maximum displacement must be positive: " + maxDisplacement);
+        }
+        return new DetectionScheduler(maxStride, true, maxDisplacement, initFrames);
+    }
+
+    private DetectionScheduler(int maxStride, boolean adaptive, double maxDisplacement, int initFrames) {
+        if (maxStride < 1) {
+            throw new IllegalArgumentException("Stride must be at least 1: " + maxStride);
+        }
+        this.maxStride = maxStride;
+        this.adaptive = adaptive;
+        this.maxDisplacement = maxDisplacement;
+        this.initFrames = initFrames;
+        this.stride = adaptive ? 1 : maxStride;
+    }
+
+    /**
+     * Called once for every frame, in video order
+     *
+     * @return true if detection should be run on this frame, false if the positions should be predicted
+     */
+    public boolean shouldDetect() {
+
+        framesSeen++;
+        framesSinceDetection++;
+
+        if (framesSeen <= initFrames || framesSinceDetection >= stride) {
+            framesSinceDetection = 0;
+            detectedFrames++;
+            return true;
+        }
+        skippedFrames++;
+        return false;
+    }
+
+    /**
+     * Called after the tracking has been updated with the detections of a frame, to choose the next stride
+     *
+     * @param animals all tracked animals
+     * @param allAssigned false if any animal was not assigned to a detection on this frame
+     * @param dt time between two frames, in seconds
+     */
+    public void detectionDone(List<Animal> animals, boolean allAssigned, double dt) {
+
+        if (!allAssigned) {
+            stride = 1;         // look again on the next frame rather than predicting for several frames
+            return;
+        }
+        if (!adaptive) {
+            stride = maxStride;
+            return;
+        }
+
+        double maxSpeed = 0;    // pixels per second
+        for (Animal animal : animals) {
+            maxSpeed = Math.max(maxSpeed, Math.hypot(
+                    animal.trackingFilter.getStateEstimation(2), animal.trackingFilter.getStateEstimation(3)));
+        }
+
+        if (maxSpeed * dt * maxStride <= maxDisplacement) {
+            stride = maxStride;
+        } else {
+            stride = Math.max(1, Math.min(maxStride, (int) (maxDisplacement / (maxSpeed * dt))));
+        }
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * @return fraction of the frames so far on which detection was run
+     */
+    public double getDetectionFraction() {
+        long total = detectedFrames + skippedFrames;
+        return total == 0 ? 1.0 : (double) detectedFrames / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("detection ran on %d of %d frames (%.0f%%)", detectedFrames,
+                detectedFrames + skippedFrames, 100 * getDetectionFraction());
+    }
+}
@@ -0,0 +1,225 @@
+package sproj.tracking;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import sproj.util.DetectionBatch;
+import sproj.util.Logger;
+import sproj.yolo.InputBuffer;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs the decode, preprocess and inference stages of the tracker on three separate threads,
+ * joined by bounded queues, so that the video decoder does not sit idle while the network runs
+ * (and vice versa). Tracking itself stays on the consumer thread that calls next().
+ *
+ * Each stage is a single thread reading from a FIFO queue, so frames always come out in the
+ * same order they were decoded. A fixed number of FrameSlot instances circulate through the
+ * stages; once all of them are in use, the decode thread blocks until the consumer hands one
+ * back, which provides back-pressure without any frames being dropped.
+ */
+public class FramePipeline {
+
+    private static final Logger logger = new Logger();
+
+    /**
+     * Container for one frame as it moves through the pipeline.
+     * The Mat objects and input tensor are reused each time the slot is recycled.
+     */
+    public static class FrameSlot {
+
+        public final Mat cropped = new Mat();     // copy of the cropped region of the decoded frame, at full resolution
+        public final Mat input = new Mat();       // cropped and resized to the network input size
+        public InputBuffer inputBuffer;           // off-heap model input for this slot, null for the end of stream marker
+        public final DetectionBatch detections = new DetectionBatch();
+        public boolean detected;                  // false if detection was skipped on this frame
+        public int frameNumber;
+        public long timestamp;                    // in milliseconds
+    }
+
+    /**
+     * One unit of work performed on a FrameSlot by a pipeline stage
+     */
+    public interface Stage {
+        void process(FrameSlot slot) throws IOException;
+    }
+
+    /**
+     * The first stage of the pipeline. Fills in the next frame from the video,
+     * or returns false when the end of the video has been reached.
+     */
+    public interface Source {
+        boolean grab(FrameSlot slot) throws IOException;
+    }
+
+    // marks the end of the video (or a failure in one of the stages)
+    private static final FrameSlot END_OF_STREAM = new FrameSlot();
+
+    private final BlockingQueue<FrameSlot> freeSlots;
+    private final BlockingQueue<FrameSlot> decodedQueue;
+    private final BlockingQueue<FrameSlot> preprocessedQueue;
+    private final BlockingQueue<FrameSlot> detectedQueue;
+
+    private final Thread[] threads;
+
+    private FrameSlot lastReturned;        // slot currently held by the consumer
+    private volatile Exception failure;
+    private volatile boolean stopped;
+    private boolean finished;
+
+    /**
+     * @param source decode stage, grabs frames from the video
+     * @param preprocessor preprocess stage, resizes frames to the network input size
+     * @param detector inference stage, runs the model and parses the detections
+     * @param queueCapacity maximum number of frames waiting between two stages
+     */
+    public FramePipeline(Source source, Stage preprocessor, Stage detector, int queueCapacity) {
+
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be at least 1: " + queueCapacity);
+        }
+
+        // enough slots to fill every queue, plus one in progress in each stage and one held by the consumer
+        int numbSlots = 3 * queueCapacity + 4;
+
+        freeSlots = new ArrayBlockingQueue<>(numbSlots);
+        decodedQueue = new ArrayBlockingQueue<>(queueCapacity);
+        preprocessedQueue = new ArrayBlockingQueue<>(queueCapacity);
+        detectedQueue = new ArrayBlockingQueue<>(queueCapacity);
+
+        for (int i = 0; i < numbSlots; i++) {
+            FrameSlot slot = new FrameSlot();
+            slot.inputBuffer = new InputBuffer(1);
+            freeSlots.add(slot);
+        }
+
+        threads = new Thread[]{
+                new Thread(() -> runSource(source), "pipeline-decode"),
+                new Thread(() -> runStage(preprocessor, decodedQueue, preprocessedQueue), "pipeline-preprocess"),
+                new Thread(() -> runStage(detector, preprocessedQueue, detectedQueue), "pipeline-inference")
+        };
+
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+        }
+    }
+
+    public void start() {
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Blocks until the next frame has passed through all stages.
+     *
+     * The returned slot (and its Mat objects) is only valid until the next call to this function,
+     * at which point it is handed back to the decode stage for reuse.
+     *
+     * @return the next FrameSlot in video order, or null once the end of the video has been reached
+     * @throws IOException if any of the stages failed
+     */
+    public FrameSlot next() throws IOException {
+
+        if (lastReturned != null) {
+            freeSlots.offer(lastReturned);
+            lastReturned = null;
+        }
+
+        if (finished) {
+            return null;
+        }
+
+        FrameSlot slot;
+        try {
+            slot = detectedQueue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for pipeline", e);
+        }
+
+        if (slot == END_OF_STREAM) {
+            finished = true;
+            if (failure != null) {
+                throw new IOException("Frame pipeline stage failed", failure);
+            }
+            return null;
+        }
+
+        lastReturned = slot;
+        return slot;
+    }
+
+    /**
+     * Stops all stage threads. Frames still in the queues are discarded.
+     */
+    public void stop() {
+        stopped = true;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    private void runSource(Source source) {
+        try {
+            while (!stopped) {
+                FrameSlot slot = freeSlots.take();
+                if (!source.grab(slot)) {
+                    freeSlots.offer(slot);
+                    break;
+                }
+                decodedQueue.put(slot);
+            }
+        } catch (InterruptedException ignored) {
+            // pipeline was stopped
+        } catch (Exception e) {
+            fail(e);
+        } finally {
+            signalEnd(decodedQueue);
+        }
+    }
+
+    private void runStage(Stage stage, BlockingQueue<FrameSlot> in, BlockingQueue<FrameSlot> out) {
+        try {
+            while (!stopped) {
+                FrameSlot slot = in.take();
+                if (slot == END_OF_STREAM) {
+                    break;
+                }
+                stage.process(slot);
+                out.put(slot);
+            }
+        } catch (InterruptedException ignored) {
+            // pipeline was stopped
+        } catch (Exception e) {
+            fail(e);
+        } finally {
+            signalEnd(out);
+        }
+    }
+
+    private void fail(Exception e) {
+        if (failure == null) {
+            failure = e;
+        }
+        logger.error("Frame pipeline stage failed on thread " + Thread.currentThread().getName(), e);
+    }
+
+    private void signalEnd(BlockingQueue<FrameSlot> out) {
+        try {
+            if (!stopped) {
+                out.put(END_OF_STREAM);
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package sproj.tracking;
+
+import org.apache.commons.collections4.map.HashedMap;
+import sproj.util.IOUtils;
+import sproj.util.Logger;
+import sproj.util.NonMaxSuppression;
+import sproj.util.TrajectoryWriter;
+import sproj.yolo.YOLOModelContainer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Command line entry point that tracks a single video with a SinglePlateTracker, without any display.
+ *
+ * Unlike TrackerApp, which steps the tracker from a JavaFX AnimationTimer and so at most once per screen
+ * refresh, the frames are tracked as fast as they can be decoded and run through the model, using
+ * SinglePlateTracker.trackWithoutDisplay(). No JavaFX or Swing classes are loaded, so it can run on a
+ * server without a display. For many videos at once, see BatchTrackingEngine.
+ */
+public class HeadlessTracker {
+
+    private static final Logger logger = new Logger();
+
+    private HeadlessTracker() {/* not to be instantiated*/}
+
+    /**
+     * Arguments:
+     *      -video <file>           video to track (required)
+     *      -animals <n>            number of animals in the video (required)
+     *      -crop <x y w h>         region of the video frame to track (required)
+     *      -output <prefix>        save the trajectories to files starting with this prefix (default: not saved)
+     *      -format <format>        csv (default), binary (.traj, see TrajectoryFile) or chunked (.trajz, see TrajectoryStore)
+     *      -model <file>           path to the saved model zip file (default: src/main/resources/inference/yolov2_80000.zip)
+     *      -decodeThreads <n>      decoder threads (default: chosen by FFmpeg)
+     *      -decoder <name>         FFmpeg decoder to use, e.g. h264_cuvid, see DecoderOptions
+     *      -skipNonRef             skip decoding of non-reference frames, see DecoderOptions
+     *      -ffmpegCrop             crop and scale the frames in FFmpeg, see SinglePlateTracker.enableFFmpegCropAndScale()
+     *      -pipeline <n>           decode, preprocess and run inference on separate threads, with up to n frames
+     *                              buffered between them
+     *      -stride <k>             run detection on every k-th frame only, see DetectionScheduler
+     *      -adaptiveStride <k>     run detection at most every k-th frame, depending on how fast the animals move
+     *      -lapjv                  assign detections with the Jonker-Volgenant solver instead of Munkres
+     *      -gate <pixels>          only consider detections within this distance of each animal, see GatedAssigner
+     *      -nms <method>           greedy (default), grid or soft, see NonMaxSuppression
+     *      -checkpoint <frames>    save a checkpoint to `prefix`.checkpoint every n frames, and resume from it
+     *                              if it exists, see SinglePlateTracker.enableCheckpoints()
+     */
+    public static void main(String[] args) throws IOException {
+
+        System.setProperty("java.awt.headless", "true");
+
+        HashedMap<String, List<String>> parameters = IOUtils.parseArgs(args);
+
+        if (!parameters.containsKey("-video") || parameters.get("-video").isEmpty()
+                || !parameters.containsKey("-animals") || parameters.get("-animals").isEmpty()
+                || !parameters.containsKey("-crop") || parameters.get("-crop").size() != 4) {
+            System.out.println("Usage: HeadlessTracker -video <file> -animals <n> -crop <x y w h> [-output <prefix>] [-format csv|binary|chunked] [-model <file>] [-decodeThreads <n>] [-decoder <name>] [-skipNonRef] [-ffmpegCrop] [-pipeline <n>] [-stride <k> | -adaptiveStride <k>] [-lapjv | -gate <pixels>] [-nms greedy|grid|soft] [-checkpoint <frames>]");
+            return;
+        }
+
+        String videoPath = parameters.get("-video").get(0);
+        int numbAnimals = Integer.parseInt(parameters.get("-animals").get(0));
+        int[] crop = new int[4];
+        for (int i = 0; i < 4; i++) {
+            crop[i] = Integer.parseInt(parameters.get("-crop").get(i));
+        }
+        String outputPrefix = parameters.containsKey("-output") ? parameters.get("-output").get(0) : null;
+        if (outputPrefix == null && parameters.containsKey("-checkpoint")) {
+            throw new IllegalArgumentException("-checkpoint needs an -output prefix");
+        }
+        File modelPath = new File(parameters.containsKey("-model") ?
+                parameters.get("-model").get(0) : YOLOModelContainer.DEFAULT_MODEL_PATH);
+
+        DecoderOptions decoderOptions = new DecoderOptions();
+        if (parameters.containsKey("-decodeThreads")) {
+            decoderOptions.setThreads(Integer.parseInt(parameters.get("-decodeThreads").get(0)));
+        }
+        if (parameters.containsKey("-decoder")) {
+            decoderOptions.setDecoderName(parameters.get("-decoder").get(0));
+        }
+        decoderOptions.setSkipNonReferenceFrames(parameters.containsKey("-skipNonRef"));
+
+        YOLOModelContainer model = new YOLOModelContainer(modelPath, true);
+        if (parameters.containsKey("-nms")) {
+            model.getNonMaxSuppression().setMethod(
+                    NonMaxSuppression.Method.valueOf(parameters.get("-nms").get(0).toUpperCase()));
+        }
+
+        SinglePlateTracker tracker = new SinglePlateTracker(numbAnimals, false, crop, videoPath, outputPrefix, model);
+        tracker.setDecoderOptions(decoderOptions);
+        tracker.setDetectionScheduler(BatchTrackingEngine.parseDetectionScheduler(parameters).get());
+        tracker.setAssignmentSolver(BatchTrackingEngine.parseAssignmentSolver(parameters).get());
+        if (parameters.containsKey("-format")) {
+            tracker.setOutputFormat(TrajectoryWriter.Format.valueOf(parameters.get("-format").get(0).toUpperCase()));
+        }
+        if (parameters.containsKey("-ffmpegCrop")) {
+            tracker.enableFFmpegCropAndScale();
+        }
+        if (parameters.containsKey("-checkpoint")) {
+            File checkpoint = new File(outputPrefix + ".checkpoint");
+            if (checkpoint.exists()) {
+                tracker.resumeFrom(checkpoint);
+            }
+            tracker.enableCheckpoints(checkpoint, Integer.parseInt(parameters.get("-checkpoint").get(0)));
+        }
+        if (parameters.containsKey("-pipeline")) {
+            tracker.enablePipelining(Integer.parseInt(parameters.get("-pipeline").get(0)));
+        }
+
+        int firstFrame = tracker.getFrameNumb();
+        long startTime = System.currentTimeMillis();
+        logger.info("Tracking " + videoPath);
+
+        tracker.trackWithoutDisplay();
+
+        double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+        int frames = tracker.getFrameNumb() - firstFrame;
+        logger.info(String.format("Tracked %d frames in %.1fs (%.1f frames/s)", frames, seconds, frames / seconds));
+    }
+}
@@ -0,0 +1,233 @@
+package sproj.tracking;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Rect;
+import sproj.util.DetectionBatch;
+import sproj.util.NonMaxSuppression;
+import sproj.yolo.InputBuffer;
+import sproj.yolo.YOLOModelContainer;
+import sproj.yolo.YoloOutputDecoder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Region of interest detection: instead of running the model on the whole (downscaled) plate,
+ * runs it on a batch of small square tiles cut out of the full resolution frame, centered on the
+ * position where each animal is expected to be on the next frame.
+ *
+ * The network is fully convolutional, so the tiles are passed in at a smaller input size than 416x416
+ * (160x160 by default), which makes a batch of a few tiles cheaper than a single full frame. The tiles can
+ * also be cut out at a higher resolution than the downscaled full frame (see `magnification`).
+ * The detections in each tile are mapped back to the coordinates of the tracking frame by the YoloOutputDecoder,
+ * and detections of the same animal in two overlapping tiles are merged.
+ *
+ * A full frame detection is needed at the start of the video (while the animals' positions are unknown),
+ * every `fullFrameInterval` detections (to pick up animals that left their tile), and after any
+ * detection that left an animal without an assignment. needsFullFrame() returns true in these cases.
+ *
+ * The tiles are placed from the predictions made on the previous frame, so the detection of a frame must not
+ * start before the previous frame has been tracked. For that reason ROI detection is not available in
+ * pipelined mode (see SinglePlateTracker.enablePipelining()), and all methods are called from the tracking thread.
+ */
+public class RoiDetector {
+
+    private final YOLOModelContainer model;
+
+    private final int tileInputSize;            // width and height of each tile passed to the network
+    private final double magnification;         // resolution of the tiles, relative to the full frame detection
+    private final int fullFrameInterval;
+    private final int initDetections;
+
+    private final int trackingWidth = YOLOModelContainer.IMG_WIDTH;     // coordinate system of the Animal positions
+    private final int trackingHeight = YOLOModelContainer.IMG_HEIGHT;
+
+    private final double mergeIouThreshold = 0.3;
+    private final NonMaxSuppression tileMerger = new NonMaxSuppression(mergeIouThreshold, false);
+
+    private int[][] predictedPositions;     // in tracking frame coordinates
+    private boolean tracksLost = true;
+
+    private int detectionsSinceFullFrame;
+    private int detectionsRun;
+    private long tileDetections;
+    private long fullFrameDetections;
+    private long tilesProcessed;
+
+    private InputBuffer[] tileBuffers;      // indexed by number of tiles, each created the first time that many are placed
+    private final List<Rect> tiles = new ArrayList<>();        // the first numbTiles are placed on the current frame
+    private int numbTiles;
+    private final Mat tileView = new Mat();     // header pointed at each tile of the full resolution frame in turn
+
+    /**
+     * @param model model to run on the tiles
+     * @param tileInputSize width and height of the tiles passed to the network, a multiple of 32
+     * @param magnification 1.0 to cut out the tiles at the same scale the full frame is downscaled to,
+     *                      2.0 for twice the resolution (covering half the width and height of the dish), etc.
+     * @param fullFrameInterval run a full frame detection at least once every this many detections
+     * @param initDetections number of full frame detections at the start of the video
+     */
+    public RoiDetector(YOLOModelContainer model, int tileInputSize, double magnification,
+                       int fullFrameInterval, int initDetections) {
+
+        if (tileInputSize <= 0 || tileInputSize % 32 != 0) {
+            throw new IllegalArgumentException("Tile size must be a positive multiple of 32: " + tileInputSize);
+        }
+        if (magnification <= 0) {
+            throw new IllegalArgumentException("Magnification must be positive: " + magnification);
+        }
+        if (fullFrameInterval < 1) {
+            throw new IllegalArgumentException("Full frame interval must be at least 1: " + fullFrameInterval);
+        }
+        this.model = model;
+        this.tileInputSize = tileInputSize;
+        this.magnification = magnification;
+        this.fullFrameInterval = fullFrameInterval;
+        this.initDetections = initDetections;
+    }
+
+    /**
+     * Stores where each animal is expected to be on the next frame, from its current position and velocity.
+     * Called after every tracked frame.
+     *
+     * @param animals all tracked animals
+     * @param dt time between two frames, in seconds
+     */
+    public void updatePredictions(List<Animal> animals, double dt) {
+        if (predictedPositions == null || predictedPositions.length != animals.size()) {
+            predictedPositions = new int[animals.size()][2];
+            tileBuffers = new InputBuffer[animals.size() + 1];      // never more tiles than animals
+        }
+        for (int i = 0; i < animals.size(); i++) {
+            Animal animal = animals.get(i);
+            // the y velocity is positive upwards, see Animal.updateVelocity()
+            predictedPositions[i][0] = (int) Math.round(animal.x + animal.vx * dt);
+            predictedPositions[i][1] = (int) Math.round(animal.y - animal.vy * dt);
+        }
+    }
+
+    /**
+     * Called after each detection with the result of the assignment step
+     *
+     * @param lost true if any animal was not assigned to a detection, forcing a full frame detection next time
+     */
+    public void markTracksLost(boolean lost) {
+        tracksLost = lost;
+    }
+
+    /**
+     * Called once before each detection, in frame order
+     *
+     * @return true if the next detection must be run on the full frame rather than on tiles
+     */
+    public boolean needsFullFrame() {
+
+        detectionsRun++;
+        detectionsSinceFullFrame++;
+
+        if (detectionsRun <= initDetections || tracksLost || predictedPositions == null
+                || detectionsSinceFullFrame >= fullFrameInterval) {
+            detectionsSinceFullFrame = 0;
+            fullFrameDetections++;
+            return true;
+        }
+        tileDetections++;
+        return false;
+    }
+
+    /**
+     * Runs the model on tiles around the predicted animal positions
+     *
+     * @param fullResolution the cropped dish region of the video frame, before it was downscaled for tracking
+     * @param out cleared, then filled with the detections in the coordinates of the (downscaled) tracking frame
+     */
+    public void detectInTiles(Mat fullResolution, DetectionBatch out) {
+
+        out.clear();
+
+        double scaleX = (double) fullResolution.cols() / trackingWidth;     // full resolution pixels per tracking pixel
+        double scaleY = (double) fullResolution.rows() / trackingHeight;
+
+        // size of each tile in full resolution pixels, at the same scale as the full frame detection when magnification == 1
+        int tileWidth = Math.min(fullResolution.cols(), (int) Math.round(tileInputSize * scaleX / magnification));
+        int tileHeight = Math.min(fullResolution.rows(), (int) Math.round(tileInputSize * scaleY / magnification));
+
+        placeTiles(predictedPositions, scaleX, scaleY, tileWidth, tileHeight, fullResolution.cols(), fullResolution.rows());
+        if (numbTiles == 0) {
+            return;
+        }
+
+        // the number of tiles changes whenever animals move into or out of each other's tiles,
+        // so the buffer of each count is kept rather than replaced
+        InputBuffer tileBuffer = tileBuffers[numbTiles];
+        if (tileBuffer == null) {
+            tileBuffer = new InputBuffer(numbTiles, tileInputSize, tileInputSize);
+            tileBuffers[numbTiles] = tileBuffer;
+        }
+        for (int i = 0; i < numbTiles; i++) {
+            Rect tile = tiles.get(i);
+            // point the reused header at the whole frame, then shrink it to the tile, without copying any pixels
+            tileView.put(fullResolution);
+            tileView.adjustROI(-tile.y(), tile.y() + tile.height() - fullResolution.rows(),
+                    -tile.x(), tile.x() + tile.width() - fullResolution.cols());
+            tileBuffer.put(i, tileView);
+        }
+
+        YoloOutputDecoder output = model.predict(tileBuffer);
+
+        for (int i = 0; i < numbTiles; i++) {
+            Rect tile = tiles.get(i);
+            output.decode(i, out,
+                    tile.x() / scaleX, tile.y() / scaleY,
+                    tile.width() / (scaleX * tileInputSize), tile.height() / (scaleY * tileInputSize));
+        }
+        tilesProcessed += numbTiles;
+
+        // where tiles overlap, the same animal can be detected in more than one of them.
+        // Keeps only the most confident of any boxes that overlap by more than mergeIouThreshold
+        tileMerger.apply(out, 0);
+    }
+
+    /**
+     * One tile per animal, except that an animal whose predicted position is already well inside
+     * another tile (within its central half) does not get its own. The Rects are kept from one frame to the next
+     * and reused, and new ones are only added when there are more tiles than on any earlier frame.
+     */
+    private void placeTiles(int[][] positions, double scaleX, double scaleY, int tileWidth, int tileHeight,
+                            int frameWidth, int frameHeight) {
+        numbTiles = 0;
+
+        for (int[] position : positions) {
+
+            int centerX = (int) Math.round(position[0] * scaleX);
+            int centerY = (int) Math.round(position[1] * scaleY);
+
+            boolean covered = false;
+            for (int i = 0; i < numbTiles; i++) {
+                Rect tile = tiles.get(i);
+                if (Math.abs(centerX - (tile.x() + tile.width() / 2)) <= tile.width() / 4
+                        && Math.abs(centerY - (tile.y() + tile.height() / 2)) <= tile.height() / 4) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (covered) {
+                continue;
+            }
+
+            // keep the whole tile inside the frame, shifting it rather than shrinking it
+            int x = Math.max(0, Math.min(frameWidth - tileWidth, centerX - tileWidth / 2));
+            int y = Math.max(0, Math.min(frameHeight - tileHeight, centerY - tileHeight / 2));
+            if (numbTiles == tiles.size()) {
+                tiles.add(new Rect());
+            }
+            tiles.get(numbTiles++).x(x).y(y).width(tileWidth).height(tileHeight);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ROI detection: %d tile detections (%.1f tiles each), %d full frame detections",
+                tileDetections, tileDetections == 0 ? 0.0 : (double) tilesProcessed / tileDetections, fullFrameDetections);
+    }
+}
@@ -4,23 +4,26 @@ import org.bytedeco.javacpp.opencv_core.*;
 import org.bytedeco.javacv.CanvasFrame;
 import org.bytedeco.javacv.Frame;
 import org.bytedeco.javacv.OpenCVFrameConverter;
-import org.deeplearning4j.nn.layers.objdetect.DetectedObject;
+import sproj.assignment.AssignmentSolver;
 import sproj.assignment.OptimalAssigner;
+import sproj.prediction.KalmanBank;
 import sproj.prediction.KalmanFilterBuilder;
-import sproj.util.BoundingBox;
-import sproj.util.DetectionsParser;
+import sproj.util.DetectionBatch;
+import sproj.util.TrajectoryFile;
+import sproj.util.TrajectoryWriter;
 import sproj.yolo.YOLOModelContainer;
 
 import javax.swing.*;
 import java.awt.event.KeyEvent;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 
 import static org.bytedeco.javacpp.opencv_imgproc.*;
-import static sproj.util.IOUtils.writeAnimalsToCSV;
 
 //import org.apache.logging.log4j.LogManager;
 //import org.apache.logging.log4j.Logger;
@@ -35,10 +38,18 @@ import static sproj.util.IOUtils.writeAnimalsToCSV;
 public class SinglePlateTracker extends Tracker {
 
     private ArrayList<Animal> animals = new ArrayList<>();
-    private DetectionsParser detectionsParser = new DetectionsParser();
-    private OptimalAssigner optimalAssigner = new OptimalAssigner();
+    private AssignmentSolver optimalAssigner = new OptimalAssigner();
+    private final List<OptimalAssigner.Assignment> assignmentBuffer = new ArrayList<>();
+    private KalmanBank kalmanBank;      // Kalman filters of all animals, see createAnimalObjects()
+    private final DetectionBatch detectionBatch = new DetectionBatch();     // reused for the detections of every frame
     private OpenCVFrameConverter frameConverter = new OpenCVFrameConverter.ToMat();
     private YOLOModelContainer yoloModelContainer;
+    private FramePipeline pipeline;     // only used if enablePipelining() has been called
+    private DetectionScheduler detectionScheduler = DetectionScheduler.everyFrame();
+    private RoiDetector roiDetector;    // only used if enableRoiDetection() has been called
+
+    private final Size inputSize = new Size(IMG_WIDTH, IMG_HEIGHT);
+    private final Mat inputFrame = new Mat();       // cropped and resized frame, reused every time step
 
     private String dataSaveNamePrefix;
     private Rect cropRect;
@@ -46,11 +57,29 @@ public class SinglePlateTracker extends Tracker {
     private int videoFrameWidth;
     private int videoFrameHeight;
     private int[] positionBounds;       // x1, x2, y1, y2
+    private int lastFrameNumber;        // frame number of the most recently tracked frame
+    private long lastTimePos;           // time position of that frame, in milliseconds
 
     private boolean SAVE_TO_FILE;
+    private TrajectoryWriter.Format outputFormat = TrajectoryWriter.Format.CSV;
+    private TrajectoryWriter trajectoryWriter;  // writes the data points to file, opened on the first save
+    private long resumeOutputSize = -1;         // size of the data file to go on from, see resumeFrom()
+
+    private File checkpointFile;                // only used if enableCheckpoints() has been called
+    private int checkpointInterval;
+    private int framesSinceCheckpoint;
 
     public SinglePlateTracker(final int n_objs, final boolean drawShapes,
                               final int[] crop, String videoPath, String saveDataFilePrefix) throws IOException {
+        this(n_objs, drawShapes, crop, videoPath, saveDataFilePrefix, null);
+    }
+
+    /**
+     * @param model an already loaded (and warmed-up) model, e.g. from a ModelPool,
+     *              or null to load a new YOLOModelContainer from file
+     */
+    public SinglePlateTracker(final int n_objs, final boolean drawShapes, final int[] crop, String videoPath,
+                              String saveDataFilePrefix, YOLOModelContainer model) throws IOException {
 
         this.numb_of_anmls = n_objs;
         this.DRAW_ANML_TRACKS = drawShapes;
@@ -75,14 +104,17 @@ public class SinglePlateTracker extends Tracker {
             SAVE_TO_FILE = true;
             this.dataSaveNamePrefix = saveDataFilePrefix;
             //createAnimalFiles(saveDataFilePrefix);
-            createAnimalCSVFiles(saveDataFilePrefix);
         }
-        logger.info("warming up model");
-        yoloModelContainer = new YOLOModelContainer();  // loads the model from file in its constructor
+        if (model != null) {
+            yoloModelContainer = model;
+        } else {
+            logger.info("warming up model");
+            yoloModelContainer = new YOLOModelContainer(true);  // loads the model from file in its constructor, runs inference in a reusable workspace
+        }
     }
 
     public int getFrameNumb() {
-        return grabber.getFrameNumber();
+        return lastFrameNumber;
     }
 
     public int getTotalFrames() {
@@ -99,38 +131,394 @@ public class SinglePlateTracker extends Tracker {
     @Override
     public Frame timeStep() throws IOException {
 
-        Frame frame  = grabber.grabImage();
+        Mat frameImg = trackNextFrame();
+        if (frameImg == null) {
+            return null;
+        }
+        return frameConverter.convert(frameImg);  // todo try to figure out a workaround to avoid having to convert back to Frame object
+    }
+
+    /**
+     * Grabs the next frame, runs detection on it and updates the tracking.
+     *
+     * @return the cropped and resized frame image, with the animal trajectories drawn on it if DRAW_ANML_TRACKS is set,
+     *         or null if the end of the video has been reached
+     */
+    private Mat trackNextFrame() throws IOException {
+
+        if (pipeline != null) {
+            return trackNextPipelinedFrame();
+        }
+
+        Frame frame  = grabFrame();
         if (frame == null) {
             return null;
         }
 
-        Mat frameImg = new Mat(frameConverter.convertToMat(frame), cropRect);   // crops the frame
-        // TODO: experiment with cloning this frame, and performing operations on cloned image, 
-        // and then rescaling the graphics so you can use the original resolution image in the display window
-        // --> what is the time and memory impact of cloning the Mat object every timestep?
-        
-        // resize image to dimensions of neural network  (416x416)
-        resize(frameImg, frameImg, new Size(IMG_WIDTH, IMG_HEIGHT));
+        // crop the frame, and resize it to the dimensions of the neural network (416x416).
+        // inputFrame is reused every time step, so its pixel memory is only allocated once
+        Mat fullResolution = null;
+        if (isCropScaleFilterEnabled()) {
+            frameConverter.convertToMat(frame).copyTo(inputFrame);     // already cropped and resized by FFmpeg
+        } else {
+            fullResolution = new Mat(frameConverter.convertToMat(frame), cropRect);
+            resize(fullResolution, inputFrame, inputSize);
+        }
+        Mat frameImg = inputFrame;
 
-        // run inference on image with model
-        List<DetectedObject> detectedObjects = yoloModelContainer.runInference(frameImg);
-        
-        // convert DetectedObject instances to BoundingBox instances
-        List<BoundingBox> boundingBoxes = detectionsParser.parseDetections(detectedObjects);
+        // run inference on image with model, and decode its output into the detections of a DetectionBatch.
+        // null on the frames skipped by the detection scheduler
+        DetectionBatch detections = detectionScheduler.shouldDetect() ?
+                detectObjects(frameImg, fullResolution) : null;
 
-        // execute identity retainment and trajectory prediction algorithms, updates all Animal instance locations
-        updateObjectTracking(boundingBoxes, frameImg, grabber.getFrameNumber(), grabber.getTimestamp() / 1000L);
+        lastFrameNumber = grabber.getFrameNumber();
+        lastTimePos = grabber.getTimestamp() / 1000L;
+
+        trackFrame(detections, frameImg, lastFrameNumber, lastTimePos);
+        return frameImg;
+    }
+
+    /**
+     * Same as trackNextFrame(), except that the frame has already been decoded, cropped,
+     * resized and run through the model by the stages of the FramePipeline
+     */
+    private Mat trackNextPipelinedFrame() throws IOException {
+
+        FramePipeline.FrameSlot slot = pipeline.next();
+        if (slot == null) {
+            return null;
+        }
+
+        lastFrameNumber = slot.frameNumber;
+        lastTimePos = slot.timestamp;
+
+        trackFrame(slot.detected ? slot.detections : null, slot.input, slot.frameNumber, slot.timestamp);
+        return slot.input;
+    }
+
+    private DetectionBatch detectObjects(Mat frameImg) throws IOException {
+        yoloModelContainer.runInference(frameImg, detectionBatch);
+        return detectionBatch;
+    }
+
+    /**
+     * Runs detection on tiles of the full resolution frame if ROI detection is enabled and the
+     * animal positions are known well enough, otherwise on the whole resized frame
+     */
+    private DetectionBatch detectObjects(Mat frameImg, Mat fullResolution) throws IOException {
+        if (roiDetector != null && !roiDetector.needsFullFrame()) {
+            roiDetector.detectInTiles(fullResolution, detectionBatch);
+            return detectionBatch;
+        }
+        return detectObjects(frameImg);
+    }
+
+    /**
+     * @param detections detections on this frame, or null if detection was skipped on this frame
+     */
+    private void trackFrame(DetectionBatch detections, Mat frameImg, int frameNumber, long timePos) {
+
+        double dt = 1.0 / videoFrameRate;
+
+        // advance the Kalman filters of all animals at once. Their corrections are applied together after the updates
+        kalmanBank.predictAll();
+
+        if (detections == null) {
+            for (Animal animal : animals) {
+                animal.predictTrajectory(dt, timePos);
+            }
+            kalmanBank.correctAll();
+        } else {
+            // execute identity retainment and trajectory prediction algorithms, updates all Animal instance locations
+            boolean allAssigned = updateObjectTracking(detections, frameImg, frameNumber, timePos);
+            kalmanBank.correctAll();
+            detectionScheduler.detectionDone(animals, allAssigned, dt);
+            if (roiDetector != null) {
+                roiDetector.markTracksLost(!allAssigned);
+            }
+        }
+
+        if (roiDetector != null) {
+            roiDetector.updatePredictions(animals, dt);
+        }
 
         // trace animal trajectories on the image to display
         if (DRAW_ANML_TRACKS) {
             for (Animal animal : animals) {
-                traceAnimalOnFrame(frameImage, animal, 1.0);
+                traceAnimalOnFrame(frameImg, animal, 1.0);
             }
         }
-        
-        return frameConverter.convert(frameImg);  // todo try to figure out a workaround to avoid having to convert back to Frame object
     }
 
+    /**
+     * Tracks the whole video as fast as possible, without drawing anything or displaying any frames.
+     * The data points are handed to the trajectory writer after every frame, and written to file in the background.
+     * If checkpoints are enabled, one is saved every checkpointInterval frames, and the checkpoint file is
+     * deleted once the whole video has been tracked.
+     *
+     * The grabber is released when this function returns.
+     *
+     * @throws IOException if the video could not be read or the data could not be written to file
+     */
+    public void trackWithoutDisplay() throws IOException {
+
+        DRAW_ANML_TRACKS = false;
+        DRAW_RECTANGLES = false;
+
+        try {
+            while (trackNextFrame() != null) {
+                if (SAVE_TO_FILE) {
+                    saveAnimalData();
+                }
+                if (checkpointFile != null && ++framesSinceCheckpoint >= checkpointInterval) {
+                    saveCheckpoint();
+                }
+            }
+            if (trajectoryWriter != null) {
+                trajectoryWriter.close();       // waits for the remaining points to be written
+            }
+            if (checkpointFile != null) {
+                Files.deleteIfExists(checkpointFile.toPath());
+            }
+            logger.info(detectionScheduler.toString());
+            if (roiDetector != null) {
+                logger.info(roiDetector.toString());
+            }
+        } finally {
+            tearDown();
+        }
+    }
+
+    /**
+     * Sets the format the data points are saved in:
+     *
+     *      CSV         `saveDataFilePrefix`.csv (default)
+     *      BINARY      `saveDataFilePrefix`.traj, see TrajectoryFile
+     *      CHUNKED     `saveDataFilePrefix`.trajz, see TrajectoryStore
+     *
+     * Must be called before tracking starts.
+     */
+    public void setOutputFormat(TrajectoryWriter.Format outputFormat) {
+        if (trajectoryWriter != null) {
+            throw new IllegalStateException("Output format must be set before tracking starts");
+        }
+        this.outputFormat = outputFormat;
+    }
+
+    /**
+     * Saves a TrackerCheckpoint to `file` every `intervalFrames` frames while tracking with trackWithoutDisplay(),
+     * from which resumeFrom() can go on if the tracker is stopped before the end of the video.
+     *
+     * Each checkpoint waits for the data file to be written up to the current frame. With the CHUNKED output format,
+     * this also ends the current chunk, so the interval should be at least TrajectoryStore.DEFAULT_CHUNK_FRAMES.
+     */
+    public void enableCheckpoints(File file, int intervalFrames) {
+        if (intervalFrames < 1) {
+            throw new IllegalArgumentException("Checkpoint interval must be at least 1 frame: " + intervalFrames);
+        }
+        this.checkpointFile = file;
+        this.checkpointInterval = intervalFrames;
+    }
+
+    /**
+     * Goes on from a checkpoint saved by an earlier run of the tracker on the same video, with the same
+     * number of animals and crop: the video is moved to the frame after the checkpoint, the animals are restored,
+     * and the data file is truncated back to the checkpoint and written on from there, in the format it was
+     * saved in. The detection scheduler starts over, so detection runs on every frame for its first few frames.
+     *
+     * Must be called before the first call to timeStep(), and before enablePipelining().
+     *
+     * @throws IOException if the checkpoint could not be read, or the video ends before the checkpoint
+     */
+    public void resumeFrom(File checkpoint) throws IOException {
+        if (pipeline != null || trajectoryWriter != null || lastFrameNumber != 0) {
+            throw new IllegalStateException("Must resume before tracking starts");
+        }
+        TrackerCheckpoint state = TrackerCheckpoint.load(checkpoint);
+        if (state.numbAnimals != animals.size()) {
+            throw new IOException(String.format("Checkpoint has %d animals, tracker has %d",
+                    state.numbAnimals, animals.size()));
+        }
+
+        seekPast(state.timePos);
+        state.restore(animals);
+        lastFrameNumber = state.frameNumber;
+        lastTimePos = state.timePos;
+        if (state.outputFormat != null) {
+            outputFormat = state.outputFormat;
+            resumeOutputSize = state.outputSize;
+        }
+        logger.info(String.format("Resuming after frame %d (%.1fs)", lastFrameNumber, lastTimePos / 1000.0));
+    }
+
+    /**
+     * Writes the state of the tracker after the last tracked frame to the checkpoint file, once the data file
+     * holds every data point up to that frame
+     */
+    private void saveCheckpoint() throws IOException {
+        long outputSize = trajectoryWriter != null ? trajectoryWriter.sync() : -1;
+        TrackerCheckpoint.capture(lastFrameNumber, lastTimePos, trajectoryWriter != null ? outputFormat : null,
+                outputSize, animals).save(checkpointFile);
+        framesSinceCheckpoint = 0;
+    }
+
+    /**
+     * Queues the data points of all animals to be appended to the data file, then clears them from memory
+     */
+    private void saveAnimalData() throws IOException {
+        if (trajectoryWriter == null) {
+            openTrajectoryWriter();
+        }
+        trajectoryWriter.write(this.animals, lastFrameNumber);
+        for (Animal animal : animals) {
+            animal.clearPoints();
+        }
+    }
+
+    /**
+     * Switches timeStep() to pipelined mode, where decoding, preprocessing and inference
+     * each run on their own thread, and only the tracking is done on the calling thread.
+     *
+     * Must be called before the first call to timeStep().
+     * Cannot be used together with enableRoiDetection(): the frames are detected up to several queues ahead of
+     * the tracking, so the tiles would be placed around positions predicted from frames long gone.
+     *
+     * @param queueCapacity maximum number of frames buffered between two pipeline stages
+     */
+    public void enablePipelining(int queueCapacity) {
+
+        if (pipeline != null) {
+            return;
+        }
+        if (roiDetector != null) {
+            throw new IllegalStateException("Pipelining cannot be used together with ROI detection");
+        }
+
+        // OpenCVFrameConverter instances are not thread safe, so the decode stage gets its own
+        final OpenCVFrameConverter decodeConverter = new OpenCVFrameConverter.ToMat();
+        final boolean filterInFFmpeg = isCropScaleFilterEnabled();
+
+        FramePipeline.Source source = slot -> {
+            Frame frame = grabFrame();
+            if (frame == null) {
+                return false;
+            }
+            // the grabber reuses its frame buffer, so copy out the cropped region before grabbing the next frame
+            if (filterInFFmpeg) {
+                decodeConverter.convertToMat(frame).copyTo(slot.cropped);
+            } else {
+                new Mat(decodeConverter.convertToMat(frame), cropRect).copyTo(slot.cropped);
+            }
+            slot.frameNumber = grabber.getFrameNumber();
+            slot.timestamp = grabber.getTimestamp() / 1000L;
+            return true;
+        };
+
+        // the scaled pixel values are written into each slot's own input tensor here, off the inference thread
+        FramePipeline.Stage preprocessor = slot -> {
+            if (filterInFFmpeg) {
+                slot.cropped.copyTo(slot.input);
+            } else {
+                resize(slot.cropped, slot.input, inputSize);
+            }
+            slot.inputBuffer.put(0, slot.input);
+        };
+
+        // the detection scheduler is consulted in frame order on the inference thread
+        FramePipeline.Stage detector = slot -> {
+            slot.detected = detectionScheduler.shouldDetect();
+            if (!slot.detected) {
+                slot.detections.clear();
+            } else {
+                yoloModelContainer.runInference(slot.inputBuffer, slot.detections);
+            }
+        };
+
+        pipeline = new FramePipeline(source, preprocessor, detector, queueCapacity);
+        pipeline.start();
+    }
+
+    /**
+     * Sets on which frames the detection model is run, see DetectionScheduler.
+     * Must be called before the first call to timeStep().
+     *
+     * @param scheduler e.g. DetectionScheduler.fixedStride(3, NUMB_FRAMES_FOR_INIT)
+     */
+    public void setDetectionScheduler(DetectionScheduler scheduler) {
+        this.detectionScheduler = scheduler;
+    }
+
+    public DetectionScheduler getDetectionScheduler() {
+        return detectionScheduler;
+    }
+
+    /**
+     * Sets the algorithm used to assign the detections to the animals on each frame.
+     * The default is the Munkres implementation in OptimalAssigner.
+     *
+     * @param solver e.g. a new JonkerVolgenantAssigner, which is faster for large numbers of animals.
+     *               Must not be shared with another tracker
+     */
+    public void setAssignmentSolver(AssignmentSolver solver) {
+        this.optimalAssigner = solver;
+    }
+
+    /**
+     * Once the animals have been found, runs the detection model on small tiles of the full resolution frame
+     * around each animal's predicted position, instead of on the whole downscaled frame. See RoiDetector.
+     *
+     * Must be called before the first call to timeStep(). Cannot be used together with enablePipelining(),
+     * or with enableFFmpegCropAndScale(), which discards the full resolution frame.
+     *
+     * @param tileInputSize width and height of the tiles passed to the network, a multiple of 32 (e.g. 160)
+     * @param magnification resolution of the tiles relative to the downscaled full frame (1.0 for the same scale)
+     * @param fullFrameInterval run a detection on the whole frame at least once every this many detections
+     */
+    public void enableRoiDetection(int tileInputSize, double magnification, int fullFrameInterval) {
+        if (pipeline != null) {
+            throw new IllegalStateException("ROI detection cannot be used together with pipelining");
+        }
+        if (isCropScaleFilterEnabled()) {
+            throw new IllegalStateException("ROI detection needs the full resolution frames, "
+                    + "which are not available when FFmpeg crops and scales the frames");
+        }
+        roiDetector = new RoiDetector(yoloModelContainer, tileInputSize, magnification, fullFrameInterval,
+                NUMB_FRAMES_FOR_INIT);
+    }
+
+    /**
+     * Makes FFmpeg crop each frame to the crop region and resize it to the network input size,
+     * before the pixels are converted to BGR and copied into a Mat. For high resolution videos,
+     * this avoids converting the (large) part of each frame that is outside of the crop region.
+     *
+     * Must be called before the first call to timeStep(), and before enablePipelining().
+     *
+     * @throws IOException if the FFmpeg filter graph could not be created
+     */
+    public void enableFFmpegCropAndScale() throws IOException {
+        if (pipeline != null) {
+            throw new IllegalStateException("FFmpeg crop and scale must be enabled before pipelining");
+        }
+        if (roiDetector != null) {
+            throw new IllegalStateException("FFmpeg crop and scale cannot be used together with ROI detection");
+        }
+        enableCropScaleFilter(cropRect, IMG_WIDTH, IMG_HEIGHT);
+    }
+
+    @Override
+    public void tearDown() {
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+        if (trajectoryWriter != null) {
+            try {
+                trajectoryWriter.close();
+            } catch (IOException e) {
+                logger.error("Failed to save the data points", e);
+            }
+        }
+        super.tearDown();
+    }
     
     public final List<Animal> getAnimals() {
         return this.animals;
@@ -147,6 +535,7 @@ public class SinglePlateTracker extends Tracker {
     protected void createAnimalObjects() {
 
         KalmanFilterBuilder filterBuilder = new KalmanFilterBuilder();
+        kalmanBank = filterBuilder.getNewKalmanBank();
 
         // remember these are in BGR format not RGB!
         int[][] colors = {
@@ -166,7 +555,7 @@ public class SinglePlateTracker extends Tracker {
             clr = colors[i];
             this.animals.add(
                     new Animal(x, y, positionBounds, new Scalar(clr[0],clr[1], clr[2], 1.0),  //colors[i],
-                            filterBuilder.getNewKalmanFilter(x, y, 0.0, 0.0))
+                            kalmanBank.add(x, y, 0.0, 0.0))
             );
         }
     }
@@ -180,13 +569,42 @@ public class SinglePlateTracker extends Tracker {
 
         for (Animal a : animals) {
             try (FileWriter writer = new FileWriter(
-                String.format("%s_animal_%d.dat", baseFilePrefix, animals.indexOf(a))
+                String.format("%s_animal_%d.dat", baseFilePrefix, animals.indexOf(a)))
                 ) {
                     writer.write(String.format("Anml-BGRA-%s", a.color.toString()));
             }
         }
     }
 
+    /**
+     * Opens the .csv, .traj or .trajz data file for outputFormat, truncated to resumeOutputSize after resumeFrom()
+     */
+    private void openTrajectoryWriter() throws IOException {
+
+        String extension = outputFormat == TrajectoryWriter.Format.CSV ? ".csv" :
+                outputFormat == TrajectoryWriter.Format.BINARY ? ".traj" : ".trajz";
+        File file = new File(dataSaveNamePrefix + extension);
+
+        int[] ids = new int[animals.size()];
+        int[] colors = new int[animals.size()];
+        for (int i = 0; i < animals.size(); i++) {
+            Scalar color = animals.get(i).color;
+            ids[i] = i;
+            colors[i] = ((int) Math.round(color.red()) << 16) | ((int) Math.round(color.green()) << 8)
+                    | (int) Math.round(color.blue());
+        }
+        TrajectoryFile.Header header = new TrajectoryFile.Header(grabber.getFrameRate(), cropDimensions, ids, colors);
+
+        if (resumeOutputSize >= 0) {
+            trajectoryWriter = new TrajectoryWriter(file, header, outputFormat, resumeOutputSize);
+        } else if (outputFormat == TrajectoryWriter.Format.CSV) {
+            createAnimalCSVFiles(dataSaveNamePrefix);
+            trajectoryWriter = new TrajectoryWriter(file, animals.size());
+        } else {
+            trajectoryWriter = new TrajectoryWriter(file, header, outputFormat);
+        }
+    }
+
     /**
      * Create CSV files with headers: Timestamp, Animal 1, Animal 2, etc
      * instead of numbering animals, which is not useful,
@@ -220,12 +638,13 @@ public class SinglePlateTracker extends Tracker {
 
     /**
      * Runs once with each frame
-     * @param boundingBoxes list of BoundingBox objects
+     * @param detections boxes detected on this frame
      * @param frameImage the current video frame
      * @param frameNumber current frame number
      * @param timePos current time stamp in milliseconds
+     * @return true if every Animal was assigned to one of the bounding boxes
      */
-    private void updateObjectTracking(List<BoundingBox> boundingBoxes, Mat frameImage, int frameNumber, long timePos) {
+    private boolean updateObjectTracking(DetectionBatch detections, Mat frameImage, int frameNumber, long timePos) {
 
         if (frameNumber <= NUMB_FRAMES_FOR_INIT) {
 
@@ -255,18 +674,20 @@ public class SinglePlateTracker extends Tracker {
         double dt = 1.0 / videoFrameRate;
 
         // this rectangle drawing is just for debugging and will be removed later
-        for (BoundingBox box : boundingBoxes) {
-            if (DRAW_RECTANGLES) {
-                rectangle(frameImage, new Point(box.topleftX, box.topleftY),
-                        new Point(box.botRightX, box.botRightY), Scalar.RED, 1, CV_AA, 0);
+        if (DRAW_RECTANGLES) {
+            for (int i = 0; i < detections.size(); i++) {
+                rectangle(frameImage, new Point(detections.getTopLeftX(i), detections.getTopLeftY(i)),
+                        new Point(detections.getBotRightX(i), detections.getBotRightY(i)), Scalar.RED, 1, CV_AA, 0);
             }
         }
 
         // get optimal assignments
         final List<OptimalAssigner.Assignment> assignments = optimalAssigner.getOptimalAssignments(
-                animals, boundingBoxes
+                animals, detections, assignmentBuffer
         );
 
+        boolean allAssigned = true;
+
         // update Animal instances with assignments
         for (OptimalAssigner.Assignment assignment : assignments) {
 
@@ -277,12 +698,14 @@ public class SinglePlateTracker extends Tracker {
 
             if (assignment.box == null) {       // no assignment for current Animal
                 assignment.animal.predictTrajectory(dt, timePos);
+                allAssigned = false;
             } else {
                 assignment.animal.updateLocation(
                     assignment.box.centerX, assignment.box.centerY, dt, timePos, false
                 );
             }
         }
+        return allAssigned;
     }
 
     /* simple image filters */
@@ -334,26 +757,24 @@ public class SinglePlateTracker extends Tracker {
         */
 
         int msDelay = 10;
-        List<BoundingBox> boundingBoxes;
-        List<DetectedObject> detectedObjects;
 
         KeyEvent keyEvent;
         char keyChar;
 
         long time1;
         int frameNo;
-        int saveFrequency = 150;    // save data every 150 frames (5 seconds)
         int totalFrames = grabber.getLengthInVideoFrames();
 
         boolean exitLoop = false;
 
         Frame frame;
-        while ((frame = grabber.grabImage()) != null && !exitLoop) {
+        while ((frame = grabFrame()) != null && !exitLoop) {
 
             time1 = System.currentTimeMillis();
 
 //            Mat frameImg = frameConverter.convertToMat(frame);
-            Mat frameImg = new Mat(frameConverter.convertToMat(frame), cropRect);   // crop the frame
+            Mat frameImg = isCropScaleFilterEnabled() ? frameConverter.convertToMat(frame).clone() :
+                    new Mat(frameConverter.convertToMat(frame), cropRect);   // crop the frame
 
             Mat trackingOnly = frameImg.clone();
 
@@ -371,16 +792,18 @@ public class SinglePlateTracker extends Tracker {
 
 
             resize(frameImg, frameImg, new Size(IMG_WIDTH, IMG_HEIGHT));
-            detectedObjects = yoloModelContainer.runInference(frameImg);  // frameImg
+            yoloModelContainer.runInference(frameImg, detectionBatch);  // frameImg
 
 //            Java2DFrameConverter paintConverter = new Java2DFrameConverter();
 //            Component[] arr = canvasFrame.getComponents();
 //            canvasFrame.getComponent(0);
 //            paintConverter.getBufferedImage(frame);
 
-            boundingBoxes = detectionsParser.parseDetections(detectedObjects);
-
-            updateObjectTracking(boundingBoxes, frameImg, grabber.getFrameNumber(), grabber.getTimestamp() / 1000L);
+            lastFrameNumber = grabber.getFrameNumber();
+            // as in trackFrame(), the Kalman filters of all animals are advanced and corrected together
+            kalmanBank.predictAll();
+            updateObjectTracking(detectionBatch, frameImg, lastFrameNumber, grabber.getTimestamp() / 1000L);
+            kalmanBank.correctAll();
 
 //            System.out.println("Loop time: " + (System.currentTimeMillis() - time1) / 1000.0 + "s");
 
@@ -424,13 +847,9 @@ public class SinglePlateTracker extends Tracker {
             // todo System.out.print("\r" + (frameNo + 1) + " of " + totalFrames + " frames processed");
 
             // todo: calculate uncertainty of each point / assignment and write that value to file for each point
-            if (SAVE_TO_FILE && (frameNo+1) % saveFrequency == 0) {  // avoid saving when frameNo == 0
+            if (SAVE_TO_FILE) {
                 //writeAnimalPointsToSeparateFiles(this.animals, dataSaveNamePrefix, true, true);
-                writeAnimalsToCSV(this.animals, dataSaveNamePrefix, true);
-                for (Animal animal : animals) {
-                    animal.clearPoints();       // todo check if this has a noticeable effect on fps/memory/overall performance
-                }
-                System.out.println("Saved to CSV file");
+                saveAnimalData();
             }
         }
         canvasFrame.dispose();
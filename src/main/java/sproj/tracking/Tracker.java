@@ -6,10 +6,10 @@ import org.bytedeco.javacv.*;
 
 
 import sproj.util.Logger;
+import sproj.util.ThroughputCounter;
 import sproj.yolo.YOLOModelContainer;
 
 import java.io.IOException;
-import java.util.Iterator;
 
 import static org.bytedeco.javacpp.opencv_imgproc.circle;
 import static org.bytedeco.javacpp.opencv_imgproc.line;
@@ -44,6 +44,15 @@ public abstract class Tracker {          //  TODO make this an interface?
     int WINDOW_HEIGHT = 720;     // ask user for size
 
     protected FFmpegFrameGrabber grabber;
+    private String videoPath;
+    protected DecoderOptions decoderOptions = new DecoderOptions();     // multi-threaded decoding by default
+
+    private CropScaleFilter cropScaleFilter;     // only used if enableCropScaleFilter() has been called
+    private opencv_core.Rect filterCrop;
+    private int filterWidth, filterHeight;
+
+    private final int DECODE_LOG_INTERVAL = 1000;     // log the decoding rate every 1000 frames
+    protected final ThroughputCounter decodeCounter = new ThroughputCounter("decode", DECODE_LOG_INTERVAL);
 
 
 //    protected YOLOModelContainer yoloModelContainer = new YOLOModelContainer();
@@ -62,6 +71,12 @@ public abstract class Tracker {          //  TODO make this an interface?
 
 
     public void tearDown() {
+        if (decodeCounter.getCount() > 0) {
+            logger.info(decodeCounter.toString());
+        }
+        if (cropScaleFilter != null) {
+            cropScaleFilter.release();
+        }
         try {
             grabber.release();
         } catch (FrameGrabber.Exception ignored) {
@@ -72,11 +87,125 @@ public abstract class Tracker {          //  TODO make this an interface?
 
     protected abstract void createAnimalFiles(String baseFilePrefix) throws IOException;
 
-    protected void initializeFrameGrabber(String videoPath) throws FrameGrabber.Exception {
+    protected void initializeFrameGrabber(String videoPath) throws IOException {
         avutil.av_log_set_level(avutil.AV_LOG_QUIET);       // Suppress verbose FFMPEG metadata output to console
+        this.videoPath = videoPath;
         grabber = new FFmpegFrameGrabber(videoPath);
-        grabber.start();    // open video file
+        decoderOptions.applyTo(grabber);
+        String decoderInUse = decoderOptions.getDecoderName() == null ? "default" : decoderOptions.getDecoderName();
+
+        try {
+            grabber.start();    // open video file
+        } catch (FrameGrabber.Exception e) {
+            if (decoderOptions.getDecoderName() == null) {
+                throw e;
+            }
+            // e.g. a hardware decoder that is not available on this machine
+            logger.warn("Could not open video with decoder " + decoderOptions.getDecoderName()
+                    + ", falling back to the default decoder: " + e.getMessage());
+            grabber.release();
+            grabber = new FFmpegFrameGrabber(videoPath);
+            decoderOptions.applyTo(grabber);
+            grabber.setVideoCodecName(null);
+            grabber.start();
+            decoderInUse = "default (fallback from " + decoderOptions.getDecoderName() + ")";
+        }
         videoFrameRate = (int) grabber.getVideoFrameRate();
+        logger.info(String.format("Video decoder options: %s, decoder in use=%s", decoderOptions, decoderInUse));
+
+        if (filterCrop != null) {
+            createCropScaleFilter();
+        }
+    }
+
+    /**
+     * Crops and resizes every frame inside FFmpeg, before it is converted to BGR, so that grabFrame()
+     * returns frames of the given size rather than the full video frames. See CropScaleFilter.
+     * Must be called before the first frame is grabbed.
+     *
+     * @param crop region of the full video frame to keep
+     * @param width width of the frames returned by grabFrame()
+     * @param height height of the frames returned by grabFrame()
+     * @throws FrameFilter.Exception if the FFmpeg filter graph could not be created
+     */
+    protected void enableCropScaleFilter(opencv_core.Rect crop, int width, int height) throws FrameFilter.Exception {
+        if (cropScaleFilter != null) {
+            cropScaleFilter.release();
+        }
+        filterCrop = crop;
+        filterWidth = width;
+        filterHeight = height;
+        createCropScaleFilter();
+    }
+
+    private void createCropScaleFilter() throws FrameFilter.Exception {
+        cropScaleFilter = new CropScaleFilter(grabber, filterCrop, filterWidth, filterHeight);
+        logger.info(String.format("Cropping and scaling frames to %dx%d in FFmpeg (%s)", filterWidth, filterHeight,
+                cropScaleFilter.isRawMode() ? "cropped before BGR conversion" : "full frame converted to BGR first"));
+    }
+
+    protected boolean isCropScaleFilterEnabled() {
+        return cropScaleFilter != null;
+    }
+
+    /**
+     * Changes the decoder settings. The video has to be reopened for the new settings to take effect,
+     * so this must be called before the first frame is grabbed.
+     *
+     * @param options decoder settings to use from now on
+     * @throws IOException if the video could not be reopened with the new settings
+     */
+    public void setDecoderOptions(DecoderOptions options) throws IOException {
+        this.decoderOptions = options;
+        if (grabber != null) {
+            if (cropScaleFilter != null) {
+                cropScaleFilter.release();
+            }
+            grabber.release();
+            initializeFrameGrabber(videoPath);
+        }
+    }
+
+    /**
+     * Grabs the next video frame, and records how long the decoder took in decodeCounter.
+     * If the crop and scale filter is enabled, the frame has already been cropped and resized,
+     * and the time taken by the filter is included in decodeCounter.
+     * All tracking code should grab frames through this function rather than calling the grabber directly,
+     * so that the decoding rate can be compared with the inference rate.
+     *
+     * @return the next decoded frame, or null at the end of the video
+     * @throws IOException if the frame could not be decoded or filtered
+     */
+    protected Frame grabFrame() throws IOException {
+        long start = System.nanoTime();
+        Frame frame = cropScaleFilter != null ? cropScaleFilter.grab() : grabber.grabImage();
+        if (frame != null) {
+            decodeCounter.record(System.nanoTime() - start);
+        }
+        return frame;
+    }
+
+    /**
+     * Moves the grabber so that the next frame grabbed is the one after the frame at the given time position,
+     * e.g. to resume tracking from a checkpoint. FFmpeg seeks to the nearest key frame before that position,
+     * and the frames from there up to the given one are decoded and dropped.
+     *
+     * @param timePos time position of a frame in the video, in milliseconds, as given by the grabber's timestamp
+     * @throws IOException if the video ends before that position
+     */
+    protected void seekPast(long timePos) throws IOException {
+        grabber.setTimestamp(timePos * 1000L);
+        Frame frame;
+        do {
+            frame = grabFrame();
+        } while (frame != null && grabber.getTimestamp() / 1000L < timePos);
+        if (frame == null) {
+            throw new IOException("Video ends before " + timePos + " ms");
+        }
+    }
+
+    public ThroughputCounter getDecodeCounter() {
+        return decodeCounter;
     }
 
     /**
@@ -103,16 +232,15 @@ public abstract class Tracker {          //  TODO make this an interface?
 
         // draw trailing trajectory line behind current animal
         int lineThickness = animal.LINE_THICKNESS;
-        Iterator<int[]> linePointsIterator = animal.getLinePointsIterator();
+        TrailBuffer.Cursor linePoints = animal.getLinePointsCursor();
 
-        if (linePointsIterator.hasNext()) {
+        if (linePoints.next()) {
 
-            int[] pt1 = linePointsIterator.next();
-            int[] pt2;
+            int x1 = linePoints.getX(), y1 = linePoints.getY();
 
-            while (linePointsIterator.hasNext()) {
+            while (linePoints.next()) {
 
-                pt2 = linePointsIterator.next();
+                int x2 = linePoints.getX(), y2 = linePoints.getY();
                 // lineThickness = Math.round(Math.sqrt(animal.LINE_THICKNESS / (animal.LINE_POINTS_SIZE - i)) * 2);
 
 
@@ -120,25 +248,26 @@ public abstract class Tracker {          //  TODO make this an interface?
                     line(
                         videoFrameMat,
                         new opencv_core.Point(
-                                (int) Math.round(pt1[0] * scaleMultiplier), (int) Math.round(pt1[1] * scaleMultiplier)),
+                                (int) Math.round(x1 * scaleMultiplier), (int) Math.round(y1 * scaleMultiplier)),
                         new opencv_core.Point(
-                                (int) Math.round(pt2[0] * scaleMultiplier), (int) Math.round(pt2[1] * scaleMultiplier)),
+                                (int) Math.round(x2 * scaleMultiplier), (int) Math.round(y2 * scaleMultiplier)),
                         animal.color, lineThickness, LINE_AA, 0     // lineThickness, line type, shift
                     );
                 } else {
 
                     line(
                         videoFrameMat,
-                        new opencv_core.Point(pt1[0], pt1[1]),
-                        new opencv_core.Point(pt2[0], pt2[1]),
+                        new opencv_core.Point(x1, y1),
+                        new opencv_core.Point(x2, y2),
                         animal.color, lineThickness, LINE_AA, 0     // lineThickness, line type, shift
                     );
                 }
 
-                pt1 = pt2;                                           // -->  line type is LINE_4, LINE_8, or LINE_AA
+                x1 = x2;                                             // -->  line type is LINE_4, LINE_8, or LINE_AA
+                y1 = y2;
             }
         } else {
-            logger.warn("Line points iterator is empty, failed to draw trajectory paths.");
+            logger.warn("Line points are empty, failed to draw trajectory paths.");
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,213 @@
+package sproj.tracking;
+
+import sproj.prediction.TrackingFilter;
+import sproj.util.TrajectoryWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Snapshot of the tracking state of a SinglePlateTracker after a frame, so that tracking can go on from that frame
+ * after the tracker was stopped, instead of starting the video over. See SinglePlateTracker.enableCheckpoints().
+ *
+ * Layout, all little endian:
+ *
+ *      int     MAGIC
+ *      int     VERSION
+ *      int     frame number of the last tracked frame
+ *      long    time position of that frame in the video, in milliseconds
+ *      int     format of the data file (TrajectoryWriter.Format ordinal), or -1 if no data was saved
+ *      long    size of the data file, once all data points up to that frame had been written
+ *      int     number of animals
+ *      for each animal:
+ *          int         x, y
+ *          double      vx, vy, ax, ay, heading, cost of non-assignment
+ *          int         number of time steps predicted
+ *          double[6]   state estimation of the tracking filter
+ *          double[36]  error covariance of the tracking filter, row by row
+ *          int         number of trail points, followed by their x and their y values, oldest first
+ *      int     CRC32 of all the bytes before
+ *
+ * The data points of the animals are not part of the checkpoint: they are in the data file, which is
+ * truncated back to the saved size when tracking resumes.
+ */
+public class TrackerCheckpoint {
+
+    public static final int MAGIC = 0x54504B43;     // "CKPT" in a little endian file
+    public static final int VERSION = 1;
+
+    private static final int FIXED_SIZE = 36;
+    private static final int BYTES_PER_ANIMAL = 8 + 6 * 8 + 4 + 6 * 8 + 36 * 8 + 4;
+    private static final int NO_OUTPUT = -1;
+
+    public final int frameNumber;
+    public final long timePos;
+    public final TrajectoryWriter.Format outputFormat;     // null if no data was saved
+    public final long outputSize;                         // -1 if no data was saved
+    public final int numbAnimals;
+
+    private final ByteBuffer bytes;         // the whole checkpoint, as stored in the file
+
+    private TrackerCheckpoint(ByteBuffer bytes) {
+        this.bytes = bytes;
+        this.frameNumber = bytes.getInt(8);
+        this.timePos = bytes.getLong(12);
+        int format = bytes.getInt(20);
+        this.outputFormat = format == NO_OUTPUT ? null : TrajectoryWriter.Format.values()[format];
+        this.outputSize = bytes.getLong(24);
+        this.numbAnimals = bytes.getInt(32);
+    }
+
+    /**
+     * Records the current state of the animals
+     *
+     * @param outputFormat format of the data file, or null if no data is saved
+     * @param outputSize size of the data file, as returned by TrajectoryWriter.sync()
+     */
+    public static TrackerCheckpoint capture(int frameNumber, long timePos, TrajectoryWriter.Format outputFormat,
+                                            long outputSize, List<Animal> animals) {
+
+        int size = FIXED_SIZE + 4;
+        for (Animal animal : animals) {
+            size += BYTES_PER_ANIMAL + animal.getLinePoints().size() * 8;
+        }
+
+        ByteBuffer bytes = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.putInt(MAGIC).putInt(VERSION).putInt(frameNumber).putLong(timePos)
+                .putInt(outputFormat == null ? NO_OUTPUT : outputFormat.ordinal())
+                .putLong(outputFormat == null ? -1 : outputSize)
+                .putInt(animals.size());
+
+        for (Animal animal : animals) {
+            bytes.putInt(animal.x).putInt(animal.y);
+            bytes.putDouble(animal.vx).putDouble(animal.vy).putDouble(animal.ax).putDouble(animal.ay);
+            bytes.putDouble(animal.currentHeading).putDouble(animal.getCurrNonAssignmentCost());
+            bytes.putInt(animal.getTimeStepsPredicted());
+
+            TrackingFilter filter = animal.trackingFilter;
+            for (int i = 0; i < 6; i++) {
+                bytes.putDouble(filter.getStateEstimation(i));
+            }
+            for (int row = 0; row < 6; row++) {
+                for (int col = 0; col < 6; col++) {
+                    bytes.putDouble(filter.getErrorCovariance(row, col));
+                }
+            }
+
+            TrailBuffer trail = animal.getLinePoints();
+            bytes.putInt(trail.size());
+            for (int i = 0; i < trail.size(); i++) {
+                bytes.putInt(trail.getX(i));
+            }
+            for (int i = 0; i < trail.size(); i++) {
+                bytes.putInt(trail.getY(i));
+            }
+        }
+        bytes.putInt(crc(bytes.array(), size - 4));
+        bytes.flip();
+        return new TrackerCheckpoint(bytes);
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file next to `file`, then moves it in place of `file`,
+     * so that `file` always holds a whole checkpoint, even if the tracker is stopped while saving
+     */
+    public void save(File file) throws IOException {
+
+        File temporary = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer contents = bytes.duplicate();
+            while (contents.hasRemaining()) {
+                channel.write(contents);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @throws IOException if the file could not be read, or is not a whole checkpoint
+     */
+    public static TrackerCheckpoint load(File file) throws IOException {
+
+        byte[] contents = Files.readAllBytes(file.toPath());
+        ByteBuffer bytes = ByteBuffer.wrap(contents).order(ByteOrder.LITTLE_ENDIAN);
+
+        if (contents.length < FIXED_SIZE + 4 || bytes.getInt(0) != MAGIC) {
+            throw new IOException("Not a tracker checkpoint: " + file);
+        }
+        if (bytes.getInt(4) != VERSION) {
+            throw new IOException("Unsupported tracker checkpoint version: " + bytes.getInt(4));
+        }
+        int format = bytes.getInt(20);
+        if (bytes.getInt(contents.length - 4) != crc(contents, contents.length - 4)
+                || format < NO_OUTPUT || format >= TrajectoryWriter.Format.values().length) {
+            throw new IOException("Corrupt tracker checkpoint: " + file);
+        }
+        return new TrackerCheckpoint(bytes);
+    }
+
+    /**
+     * Puts the animals back in the state they were in at the checkpoint. The animals must be in the same
+     * order as when the checkpoint was captured
+     */
+    public void restore(List<Animal> animals) {
+
+        if (animals.size() != numbAnimals) {
+            throw new IllegalArgumentException("Checkpoint has " + numbAnimals + " animals: " + animals.size());
+        }
+
+        ByteBuffer bytes = this.bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        bytes.position(FIXED_SIZE);
+        double[] state = new double[6];
+        double[][] covariance = new double[6][6];
+
+        for (Animal animal : animals) {
+            animal.x = bytes.getInt();
+            animal.y = bytes.getInt();
+            animal.vx = bytes.getDouble();
+            animal.vy = bytes.getDouble();
+            animal.ax = bytes.getDouble();
+            animal.ay = bytes.getDouble();
+            animal.currentHeading = bytes.getDouble();
+            animal.setCurrCostNonAssignnmnt(bytes.getDouble());
+            animal.setTimeStepsPredicted(bytes.getInt());
+
+            for (int i = 0; i < 6; i++) {
+                state[i] = bytes.getDouble();
+            }
+            for (int row = 0; row < 6; row++) {
+                for (int col = 0; col < 6; col++) {
+                    covariance[row][col] = bytes.getDouble();
+                }
+            }
+            animal.trackingFilter.restore(state, covariance);
+
+            TrailBuffer trail = animal.getLinePoints();
+            trail.clear();
+            int trailSize = bytes.getInt();
+            int xStart = bytes.position();
+            int yStart = xStart + trailSize * 4;
+            for (int i = 0; i < trailSize; i++) {
+                trail.add(bytes.getInt(xStart + i * 4), bytes.getInt(yStart + i * 4));
+            }
+            bytes.position(yStart + trailSize * 4);
+        }
+    }
+
+    private static int crc(byte[] contents, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(contents, 0, length);
+        return (int) crc.getValue();
+    }
+}
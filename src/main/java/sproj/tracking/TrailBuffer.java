@@ -0,0 +1,112 @@
+package sproj.tracking;
+
+/**
+ * The most recent positions of an animal, used to draw its trail and to calculate its velocity,
+ * in a fixed size ring of primitive ints. Once full, each new position replaces the oldest one,
+ * the same as CircularFifoQueue, but without allocating an int[] per position.
+ *
+ * Positions are read by their index from the oldest position held, or with a Cursor.
+ * A buffer is not thread safe.
+ */
+public class TrailBuffer {
+
+    private final int[] x;
+    private final int[] y;
+    private int head;       // array index of the oldest position
+    private int size;
+
+    public TrailBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+        }
+        x = new int[capacity];
+        y = new int[capacity];
+    }
+
+    /**
+     * Adds a position after the newest one, replacing the oldest position if the buffer is full
+     */
+    public void add(int x, int y) {
+        int i;
+        if (size < this.x.length) {
+            i = (head + size++) % this.x.length;
+        } else {
+            i = head;
+            head = (head + 1) % this.x.length;
+        }
+        this.x[i] = x;
+        this.y[i] = y;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return x.length;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    public int getX(int i) {
+        return x[index(i)];
+    }
+
+    public int getY(int i) {
+        return y[index(i)];
+    }
+
+    /**
+     * @return a new cursor over the positions held, see Cursor
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    private int index(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Position " + i + " of " + size);
+        }
+        return (head + i) % x.length;
+    }
+
+    /**
+     * Reads the positions from the oldest to the newest, without creating any objects.
+     * Used the same way as TrajectoryBuffer.Cursor, and has to be reset after positions are added.
+     */
+    public final class Cursor {
+
+        private int position = -1;
+
+        private Cursor() {
+        }
+
+        public void reset() {
+            position = -1;
+        }
+
+        /**
+         * Moves to the next position
+         *
+         * @return false if there are no more positions
+         */
+        public boolean next() {
+            if (position + 1 >= size) {
+                return false;
+            }
+            position++;
+            return true;
+        }
+
+        public int getX() {
+            return x[index(position)];
+        }
+
+        public int getY() {
+            return y[index(position)];
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package sproj.tracking;
+
+/**
+ * Data points recorded for an animal, one per time step, stored in four primitive columns
+ * (time, x, y, confidence) instead of one double[] per point. The columns are used as a ring:
+ * points are added at the end and removed from the start, and the arrays only grow when
+ * more points are held than fit, so recording an animal does not allocate anything per frame.
+ *
+ * Points are read by their index from the oldest point held, or with a Cursor.
+ * A buffer is not thread safe.
+ */
+public class TrajectoryBuffer {
+
+    private double[] time;
+    private double[] x;
+    private double[] y;
+    private double[] confidence;
+    private int head;       // array index of the oldest point
+    private int size;
+
+    public TrajectoryBuffer(int initialCapacity) {
+        if (initialCapacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1: " + initialCapacity);
+        }
+        time = new double[initialCapacity];
+        x = new double[initialCapacity];
+        y = new double[initialCapacity];
+        confidence = new double[initialCapacity];
+    }
+
+    /**
+     * @param timePos time position of the point in the video, in milliseconds
+     * @param confidence calculated correctness of the point, see Animal.updateLocation()
+     */
+    public void add(double timePos, double x, double y, double confidence) {
+        if (size == time.length) {
+            grow();
+        }
+        int i = (head + size) % time.length;
+        this.time[i] = timePos;
+        this.x[i] = x;
+        this.y[i] = y;
+        this.confidence[i] = confidence;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Removes the `count` oldest points
+     */
+    public void removeFirst(int count) {
+        if (count < 0 || count > size) {
+            throw new IndexOutOfBoundsException("Cannot remove " + count + " of " + size + " points");
+        }
+        head = (head + count) % time.length;
+        size -= count;
+        if (size == 0) {
+            head = 0;
+        }
+    }
+
+    public double getTime(int i) {
+        return time[index(i)];
+    }
+
+    public double getX(int i) {
+        return x[index(i)];
+    }
+
+    public double getY(int i) {
+        return y[index(i)];
+    }
+
+    public double getConfidence(int i) {
+        return confidence[index(i)];
+    }
+
+    /**
+     * @return a new cursor over the points held, see Cursor
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    private int index(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Point " + i + " of " + size);
+        }
+        int index = head + i;
+        return index < time.length ? index : index - time.length;
+    }
+
+    private void grow() {
+        int capacity = time.length * 2;
+        time = unwrap(time, capacity);
+        x = unwrap(x, capacity);
+        y = unwrap(y, capacity);
+        confidence = unwrap(confidence, capacity);
+        head = 0;
+    }
+
+    /**
+     * Copies the points of the column to the start of a larger array, oldest first
+     */
+    private double[] unwrap(double[] column, int capacity) {
+        double[] copy = new double[capacity];
+        int firstPart = Math.min(size, column.length - head);
+        System.arraycopy(column, head, copy, 0, firstPart);
+        System.arraycopy(column, 0, copy, firstPart, size - firstPart);
+        return copy;
+    }
+
+    /**
+     * Reads the points from the oldest to the newest, without creating any objects:
+     *
+     *      cursor.reset();
+     *      while (cursor.next()) {
+     *          ... cursor.getX(), cursor.getY() ...
+     *      }
+     *
+     * A cursor can be reset and used again for as long as the buffer exists. Points added while
+     * iterating are also visited; after points are removed, the cursor has to be reset.
+     */
+    public final class Cursor {
+
+        private int position = -1;
+
+        private Cursor() {
+        }
+
+        public void reset() {
+            position = -1;
+        }
+
+        /**
+         * Moves to the next point
+         *
+         * @return false if there are no more points
+         */
+        public boolean next() {
+            if (position + 1 >= size) {
+                return false;
+            }
+            position++;
+            return true;
+        }
+
+        public double getTime() {
+            return time[index(position)];
+        }
+
+        public double getX() {
+            return x[index(position)];
+        }
+
+        public double getY() {
+            return y[index(position)];
+        }
+
+        public double getConfidence() {
+            return confidence[index(position)];
+        }
+    }
+}
@@ -11,6 +11,7 @@ public class BoundingBox {
     public int botRightY;
 
     public int centerX, centerY;
+    public double confidence;       // of the detection, if the box came from the model
 
     public BoundingBox(int x1, int y1, int x2, int y2) {
         this.topleftX = x1;
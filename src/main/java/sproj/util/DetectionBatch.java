@@ -0,0 +1,191 @@
+package sproj.util;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The detections of one frame, stored in parallel primitive arrays (one array per field) rather
+ * than as a list of BoundingBox objects. The arrays are kept when the batch is cleared, so
+ * one DetectionBatch can be refilled on every frame without allocating anything once it has
+ * grown to the largest number of detections seen.
+ *
+ * Code that still works with BoundingBox instances can use asBoundingBoxes(), a list view whose
+ * BoundingBox objects are also reused, and are only valid until the batch is next modified.
+ *
+ * Coordinates are in pixels of the image the detections are in, the same as BoundingBox.
+ * A DetectionBatch is not thread safe.
+ */
+public class DetectionBatch {
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private int size;
+
+    private int[] topLeftX = new int[INITIAL_CAPACITY];
+    private int[] topLeftY = new int[INITIAL_CAPACITY];
+    private int[] botRightX = new int[INITIAL_CAPACITY];
+    private int[] botRightY = new int[INITIAL_CAPACITY];
+    private int[] centerX = new int[INITIAL_CAPACITY];
+    private int[] centerY = new int[INITIAL_CAPACITY];
+    private double[] confidence = new double[INITIAL_CAPACITY];
+    private int[] classIndex = new int[INITIAL_CAPACITY];
+
+    private final List<BoundingBox> boxPool = new ArrayList<>();
+    private final BoxView boxView = new BoxView();
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return index of the new detection
+     */
+    public int add(int x1, int y1, int x2, int y2, double conf, int cls) {
+        if (size == centerX.length) {
+            grow(size * 2);
+        }
+        int i = size++;
+        topLeftX[i] = x1;
+        topLeftY[i] = y1;
+        botRightX[i] = x2;
+        botRightY[i] = y2;
+        centerX[i] = x1 + (int) ((x2 - x1) / 2.0);      // same as BoundingBox
+        centerY[i] = y1 + (int) ((y2 - y1) / 2.0);
+        confidence[i] = conf;
+        classIndex[i] = cls;
+        return i;
+    }
+
+    public int getTopLeftX(int i) { return topLeftX[i]; }
+    public int getTopLeftY(int i) { return topLeftY[i]; }
+    public int getBotRightX(int i) { return botRightX[i]; }
+    public int getBotRightY(int i) { return botRightY[i]; }
+    public int getCenterX(int i) { return centerX[i]; }
+    public int getCenterY(int i) { return centerY[i]; }
+    public double getConfidence(int i) { return confidence[i]; }
+    public int getClassIndex(int i) { return classIndex[i]; }
+
+    void setConfidence(int i, double conf) {
+        confidence[i] = conf;
+    }
+
+    /**
+     * Intersection over union of detections a and b
+     */
+    public double iou(int a, int b) {
+        int overlapWidth = Math.min(botRightX[a], botRightX[b]) - Math.max(topLeftX[a], topLeftX[b]);
+        int overlapHeight = Math.min(botRightY[a], botRightY[b]) - Math.max(topLeftY[a], topLeftY[b]);
+        if (overlapWidth <= 0 || overlapHeight <= 0) {
+            return 0;
+        }
+        double intersection = (double) overlapWidth * overlapHeight;
+        double union = (double) (botRightX[a] - topLeftX[a]) * (botRightY[a] - topLeftY[a])
+                + (double) (botRightX[b] - topLeftX[b]) * (botRightY[b] - topLeftY[b]) - intersection;
+        return union <= 0 ? 0 : intersection / union;
+    }
+
+    /**
+     * Removes the detections from index `from` onwards that are marked in `suppressed`,
+     * keeping the relative order of the rest. Used by NonMaxSuppression.
+     */
+    void removeSuppressed(int from, boolean[] suppressed) {
+        int write = from;
+        for (int read = from; read < size; read++) {
+            if (!suppressed[read]) {
+                copy(read, write++);
+            }
+        }
+        size = write;
+    }
+
+    private void copy(int from, int to) {
+        if (from == to) {
+            return;
+        }
+        topLeftX[to] = topLeftX[from];
+        topLeftY[to] = topLeftY[from];
+        botRightX[to] = botRightX[from];
+        botRightY[to] = botRightY[from];
+        centerX[to] = centerX[from];
+        centerY[to] = centerY[from];
+        confidence[to] = confidence[from];
+        classIndex[to] = classIndex[from];
+    }
+
+    /**
+     * @return read only view of the detections as BoundingBox instances. The BoundingBox objects are reused,
+     *         and only hold the right values until the batch is next modified
+     */
+    public List<BoundingBox> asBoundingBoxes() {
+        return boxView;
+    }
+
+    /**
+     * @return new BoundingBox instances for the detections, which stay valid after the batch is modified
+     */
+    public List<BoundingBox> toBoundingBoxes() {
+        List<BoundingBox> boxes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            boxes.add(newBox(i));
+        }
+        return boxes;
+    }
+
+    private BoundingBox newBox(int i) {
+        BoundingBox box = new BoundingBox(topLeftX[i], topLeftY[i], botRightX[i], botRightY[i]);
+        box.confidence = confidence[i];
+        return box;
+    }
+
+    private void grow(int capacity) {
+        topLeftX = Arrays.copyOf(topLeftX, capacity);
+        topLeftY = Arrays.copyOf(topLeftY, capacity);
+        botRightX = Arrays.copyOf(botRightX, capacity);
+        botRightY = Arrays.copyOf(botRightY, capacity);
+        centerX = Arrays.copyOf(centerX, capacity);
+        centerY = Arrays.copyOf(centerY, capacity);
+        confidence = Arrays.copyOf(confidence, capacity);
+        classIndex = Arrays.copyOf(classIndex, capacity);
+    }
+
+    /**
+     * List of the pooled BoundingBox instances, updated from the arrays when they are read
+     */
+    private class BoxView extends AbstractList<BoundingBox> implements RandomAccess {
+
+        @Override
+        public BoundingBox get(int i) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("Detection " + i + " of " + size);
+            }
+            while (boxPool.size() <= i) {
+                boxPool.add(newBox(boxPool.size()));
+            }
+            BoundingBox box = boxPool.get(i);
+            box.topleftX = topLeftX[i];
+            box.topleftY = topLeftY[i];
+            box.botRightX = botRightX[i];
+            box.botRightY = botRightY[i];
+            box.centerX = centerX[i];
+            box.centerY = centerY[i];
+            box.confidence = confidence[i];
+            return box;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
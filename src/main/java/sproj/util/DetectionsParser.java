@@ -1,16 +1,14 @@
 package sproj.util;
 
 import org.deeplearning4j.nn.layers.objdetect.DetectedObject;
-import org.deeplearning4j.nn.layers.objdetect.YoloUtils;
 import sproj.yolo.YOLOModelContainer;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
  * This class converts DetectedObject instances returned by
  * the YoloModelContainer.runInference(), which use grid cell units for location,
- * to BoundingBox instances, which use image coordinates
+ * to BoundingBox instances or a DetectionBatch, which use image coordinates
  */
 public class DetectionsParser {
 
@@ -18,7 +16,11 @@ public class DetectionsParser {
     private final int IMG_WIDTH = YOLOModelContainer.IMG_WIDTH;
     private final int IMG_HEIGHT = YOLOModelContainer.IMG_HEIGHT;
     private final double numberOfGridCells = 13.0;
-    private final double pixelsPerCell = (double) IMG_WIDTH / numberOfGridCells;    // NOTE: assumes a 1:1 image aspect ratio
+    // NOTE: assumes a 1:1 image aspect ratio. This is the downsampling factor of the network (32),
+    // so it is the same for inputs other than 416x416, which just have more or fewer grid cells
+    private final double pixelsPerCell = (double) IMG_WIDTH / numberOfGridCells;
+
+    private final NonMaxSuppression nonMaxSuppression = new NonMaxSuppression(iouThreshold, true);
 
     /**
      * This functions converts the detected objects positions from grid cell units to positions on the original input image.
@@ -34,33 +36,69 @@ public class DetectionsParser {
      * @return List of BoundingBox instances
      */
     public List<BoundingBox> parseDetections(List<DetectedObject> detections) {
+        return parseDetections(detections, 0, 0, 1.0, 1.0);
+    }
+
+    /**
+     * Same as parseDetections(detections), for detections in an image that was cut out of a larger frame
+     * and resized before being passed to the model, e.g. a tile around one animal. The returned boxes
+     * are in the coordinates of the larger frame:
+     *
+     *      frameX = offsetX + (pixels in the model input) * scaleX
+     *
+     * @param detections List of DetectedObject instances created by YoloModelContainer.runInference()
+     * @param offsetX x coordinate of the top left corner of the image within the larger frame
+     * @param offsetY y coordinate of the top left corner of the image within the larger frame
+     * @param scaleX width of the image in frame pixels, divided by the width of the model input
+     * @param scaleY height of the image in frame pixels, divided by the height of the model input
+     * @return List of BoundingBox instances
+     */
+    public List<BoundingBox> parseDetections(List<DetectedObject> detections,
+                                             double offsetX, double offsetY, double scaleX, double scaleY) {
+        DetectionBatch batch = new DetectionBatch();
+        parseDetections(detections, batch, offsetX, offsetY, scaleX, scaleY);
+        return batch.toBoundingBoxes();
+    }
+
+    /**
+     * Same as parseDetections(detections), but writes the boxes into a reusable DetectionBatch,
+     * so that no BoundingBox objects are created
+     *
+     * @param detections List of DetectedObject instances created by YoloModelContainer.runInference()
+     * @param out cleared, then filled with the detections left after non maxima suppression
+     */
+    public void parseDetections(List<DetectedObject> detections, DetectionBatch out) {
+        out.clear();
+        parseDetections(detections, out, 0, 0, 1.0, 1.0);
+    }
+
+    /**
+     * Adds the detections of one image to `out`, after any detections already in it,
+     * and applies non maxima suppression to the added detections only.
+     * See parseDetections(detections, offsetX, offsetY, scaleX, scaleY) for the coordinates.
+     */
+    public void parseDetections(List<DetectedObject> detections, DetectionBatch out,
+                                double offsetX, double offsetY, double scaleX, double scaleY) {
 
         double centerX, centerY;
         double width, height;
-        int topLeftX, topLeftY, botRightX, botRightY;
-        List<BoundingBox> boundingBoxes = new ArrayList<>(detections.size());
-
-        YoloUtils.nms(detections, iouThreshold); // apply non maxima suppression (NMS)
+        int first = out.size();
 
         for (DetectedObject object : detections) {
 
             // convert from grid cell units to pixels
-            centerX = object.getCenterX() * pixelsPerCell;
-            centerY = object.getCenterY() * pixelsPerCell;
-            width = object.getWidth() / numberOfGridCells * IMG_WIDTH;
-            height = object.getHeight() / numberOfGridCells * IMG_HEIGHT;
+            centerX = offsetX + object.getCenterX() * pixelsPerCell * scaleX;
+            centerY = offsetY + object.getCenterY() * pixelsPerCell * scaleY;
+            width = object.getWidth() * pixelsPerCell * scaleX;
+            height = object.getHeight() * pixelsPerCell * scaleY;
 
             // calculate corner points of box
-            topLeftX = (int) Math.round(centerX - (width / 2));
-            topLeftY = (int) Math.round(centerY - (height / 2));
-            botRightX = (int) Math.round(centerX + (width / 2));
-            botRightY = (int) Math.round(centerY + (height / 2));
-
-            boundingBoxes.add(
-                    new BoundingBox(topLeftX, topLeftY, botRightX, botRightY)
-            );
+            out.add((int) Math.round(centerX - (width / 2)), (int) Math.round(centerY - (height / 2)),
+                    (int) Math.round(centerX + (width / 2)), (int) Math.round(centerY + (height / 2)),
+                    object.getConfidence(), object.getPredictedClass());
         }
-        return boundingBoxes;
+
+        nonMaxSuppression.apply(out, first);   // apply non maxima suppression (NMS)
     }
 
 }
@@ -12,12 +12,12 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import sproj.tracking.Animal;
+import sproj.tracking.TrajectoryBuffer;
 
 
 /**
@@ -38,6 +38,8 @@ public abstract class IOUtils {
      * has already been created with headers by the createAnimalCSVFiles()
      * function in the constructor of the SinglePlateTracker class
      *
+     * The tracker itself writes the same format with a TrajectoryWriter, in the background
+     *
      * @param animals list of animal objects
      * @param baseFileName  String, filename without ".csv" extension
      * @param appendIfFileExists boolean
@@ -52,30 +54,30 @@ public abstract class IOUtils {
                 new FileWriter(baseFileName + ".csv", appendIfFileExists))
         ) {
 
-            // Create list of iterators so that points can be added in
+            // Create list of cursors so that points can be added in
             // adjacent columns in the CSV file
-            List<Iterator<double[]>> anmlPtsIterators = new ArrayList<>();
+            List<TrajectoryBuffer.Cursor> anmlPtsCursors = new ArrayList<>(animals.size());
 
             for (Animal animal : animals) {
-                anmlPtsIterators.add(animal.getDataPointsIterator());
+                anmlPtsCursors.add(animal.getDataPointsCursor());
             }
 
             StringBuilder sb = new StringBuilder();
 
-            boolean empty = false;  // animal iterators have the exact same number of data points,
-                                    // so if one is empty, they are all empty
+            boolean empty = false;  // animals have the exact same number of data points,
+                                    // so if one has none left, they all have none left
             while (! empty) {
 
-                for (Iterator<double[]> it : anmlPtsIterators) {
+                for (TrajectoryBuffer.Cursor cursor : anmlPtsCursors) {
 
-                    if (it.hasNext()) {
+                    if (cursor.next()) {
                         // Arrays.toString() uses commas to delimit array elements,
                         // which is a problem for writing to CSV values.
                         // this separates the values using a vertical bar
-                        double[] pt = it.next();
                         //                 time position (ms), x, y, calculated data correctness
                         //                 none of these values have non-zero decimals except the last
-                        sb.append(String.format("%.0f|%.0f|%.0f|%.3f,",pt[0], pt[1], pt[2], pt[3]));
+                        sb.append(String.format("%.0f|%.0f|%.0f|%.3f,",
+                                cursor.getTime(), cursor.getX(), cursor.getY(), cursor.getConfidence()));
                     } else {
                         empty = true;
                         break;
@@ -113,11 +115,10 @@ public abstract class IOUtils {
 
             try (FileWriter writer = new FileWriter(saveName, appendIfFileExists)) {
 
-                Iterator<double[]> pointsIterator = animal.getDataPointsIterator();
+                TrajectoryBuffer.Cursor cursor = animal.getDataPointsCursor();
 
-                while (pointsIterator.hasNext()) {
-                    double[] point = pointsIterator.next();
-                    writer.write(point[0] + "," + point[1] + "," + point[2] + "\n");
+                while (cursor.next()) {
+                    writer.write(cursor.getTime() + "," + cursor.getX() + "," + cursor.getY() + "\n");
                 }
 
                 if (clearPoints) {
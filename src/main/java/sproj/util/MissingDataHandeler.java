@@ -4,6 +4,7 @@ import com.google.common.base.CharMatcher;
 import sproj.assignment.OptimalAssigner;
 import sproj.prediction.KalmanFilterBuilder;
 import sproj.tracking.Animal;
+import sproj.tracking.TrajectoryBuffer;
 
 import java.io.File;
 import java.io.FileWriter;
@@ -146,7 +147,7 @@ public class MissingDataHandeler {
 
         for (int i = 0; i < numbAnimals; i++) {
             fakeAnimals.add(new Animal(center + i, center + i, new int[]{0, 700, 0, 700}, null,
-                    filterBuilder.getNewKalmanFilter(i, i, 0.0, 0.0)));
+                    filterBuilder.getNewTrackingFilter(i, i, 0.0, 0.0)));
 
             finalPoints.add(new ArrayList<>());
         }
@@ -187,35 +188,24 @@ public class MissingDataHandeler {
         }
 
 
-        List<Iterator<double[]>> anmlIterators = new ArrayList<>(numbAnimals);
+        List<TrajectoryBuffer.Cursor> anmlCursors = new ArrayList<>(numbAnimals);
 
         for (Animal anml : fakeAnimals) {
-            anmlIterators.add(anml.getDataPointsIterator());
+            anmlCursors.add(anml.getDataPointsCursor());
         }
 
         for (int i = 0; i < dataPoints.size(); i++) {
 
-            double[] points = null;
-
             int idx = 0;
 
-            for (Iterator<double[]> iterator : anmlIterators) {
-
-                if (iterator.hasNext()) {
-                    points = iterator.next();
-                    //System.out.print("[" + points[1] + ", " + points[2] + ", " + points[3] + "]");
-                    //System.out.print("\t");
+            for (TrajectoryBuffer.Cursor cursor : anmlCursors) {
 
+                if (cursor.next()) {
                     finalPoints.get(idx++).add(new Double[]{
-                            points[1], points[2], points[3], points[0]
+                            cursor.getX(), cursor.getY(), cursor.getConfidence(), cursor.getTime()
                     });
                 }
             }
-            if (points != null) {
-                //System.out.print(points[0]);
-            }
-            //System.out.println();
-
         }
         return finalPoints;
     }
@@ -0,0 +1,241 @@
+package sproj.util;
+
+import java.util.Arrays;
+
+/**
+ * Non maximum suppression over the primitive arrays of a DetectionBatch, which removes the duplicate
+ * boxes the network predicts for the same animal (from neighbouring grid cells and anchors).
+ *
+ * The method is chosen with setMethod():
+ *
+ *  GREEDY  the usual algorithm: going from the most to the least confident detection, each detection is
+ *          removed if it overlaps a more confident detection that was kept by more than iouThreshold.
+ *          The candidates are sorted once, and each pair is rejected as soon as the boxes are seen not
+ *          to overlap horizontally, before the full intersection over union is computed.
+ *  GRID    same result as GREEDY, but each kept detection is only compared with the detections whose
+ *          centers are close enough for the boxes to overlap, found with a SpatialGrid.
+ *          Faster when there are many candidates spread over the frame, e.g. on crowded plates.
+ *  SOFT    soft-NMS (Bodla et al. 2017): instead of removing the overlapping detections, their confidence
+ *          is multiplied by exp(-iou^2 / sigma), and they are only removed once it falls below minConfidence.
+ *          Two animals touching each other then keep both of their boxes, just with a lower confidence
+ *          on the second one, where greedy NMS would leave a single box for both.
+ *  NONE    keeps all detections, e.g. to record the raw candidates for NmsBenchmark.
+ *
+ * An instance keeps its working arrays between calls and is not thread safe.
+ */
+public class NonMaxSuppression {
+
+    public enum Method { GREEDY, GRID, SOFT, NONE }
+
+    private final double iouThreshold;
+    private final boolean perClass;
+
+    private Method method = Method.GREEDY;
+    private double softSigma = 0.5;
+    private double minConfidence = 0.2;
+
+    private long[] sortKeys = new long[32];
+    private boolean[] suppressed = new boolean[32];
+    private int[] rank = new int[32];
+    private int[] active = new int[32];
+    private final SpatialGrid grid = new SpatialGrid();
+
+    /**
+     * @param iouThreshold detections overlapping a kept detection by more than this are removed (GREEDY and GRID)
+     * @param perClass only suppress detections of the same class as the kept detection
+     */
+    public NonMaxSuppression(double iouThreshold, boolean perClass) {
+        if (iouThreshold < 0 || iouThreshold > 1) {
+            throw new IllegalArgumentException("IoU threshold must be in range [0,1]: " + iouThreshold);
+        }
+        this.iouThreshold = iouThreshold;
+        this.perClass = perClass;
+    }
+
+    public void setMethod(Method method) {
+        this.method = method;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * Sets the method to SOFT
+     *
+     * @param sigma spread of the gaussian confidence penalty: the smaller, the more an overlapping detection is penalized
+     * @param minConfidence detections whose confidence falls below this are removed
+     */
+    public void setSoftNms(double sigma, double minConfidence) {
+        if (!(sigma > 0)) {
+            throw new IllegalArgumentException("Sigma must be positive: " + sigma);
+        }
+        this.method = Method.SOFT;
+        this.softSigma = sigma;
+        this.minConfidence = minConfidence;
+    }
+
+    /**
+     * Applies non maximum suppression to the detections from index `from` onwards. The detections before `from`
+     * are left alone, e.g. those of another image. The remaining detections keep their relative order.
+     */
+    public void apply(DetectionBatch batch, int from) {
+
+        int count = batch.size() - from;
+        if (count < 2 || method == Method.NONE) {
+            return;
+        }
+        ensureCapacity(batch.size());
+        Arrays.fill(suppressed, from, batch.size(), false);
+
+        switch (method) {
+            case GREEDY: sortByConfidence(batch, from, count); greedy(batch, count); break;
+            case GRID: sortByConfidence(batch, from, count); gridGreedy(batch, from, count); break;
+            case SOFT: soft(batch, from, count); break;
+            default: return;
+        }
+        batch.removeSuppressed(from, suppressed);
+    }
+
+    /**
+     * Sorts the indices of the detections into sortKeys[0 .. count), from the least to the most confident, with a
+     * primitive sort: the float bits of a non-negative confidence sort in the same order as the value, and the low
+     * 32 bits hold the index. rank[i] is the position of detection i in the sorted order.
+     */
+    private void sortByConfidence(DetectionBatch batch, int from, int count) {
+        for (int k = 0; k < count; k++) {
+            int i = from + k;
+            long bits = Float.floatToIntBits((float) Math.max(0.0, batch.getConfidence(i)));
+            sortKeys[k] = (bits << 32) | i;
+        }
+        Arrays.sort(sortKeys, 0, count);
+        for (int k = 0; k < count; k++) {
+            rank[(int) sortKeys[k]] = k;
+        }
+    }
+
+    private void greedy(DetectionBatch batch, int count) {
+        for (int k = count - 1; k >= 0; k--) {
+            int kept = (int) sortKeys[k];
+            if (suppressed[kept]) {
+                continue;
+            }
+            for (int l = k - 1; l >= 0; l--) {
+                int other = (int) sortKeys[l];
+                if (!suppressed[other] && overlaps(batch, kept, other)) {
+                    suppressed[other] = true;
+                }
+            }
+        }
+    }
+
+    private void gridGreedy(DetectionBatch batch, int from, int count) {
+
+        // two boxes can only overlap if their centers are closer than the sum of their half widths (and heights)
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        double maxHalfWidth = 0, maxHalfHeight = 0;
+        for (int i = from; i < batch.size(); i++) {
+            minX = Math.min(minX, batch.getCenterX(i));
+            minY = Math.min(minY, batch.getCenterY(i));
+            maxX = Math.max(maxX, batch.getCenterX(i));
+            maxY = Math.max(maxY, batch.getCenterY(i));
+            maxHalfWidth = Math.max(maxHalfWidth, (batch.getBotRightX(i) - batch.getTopLeftX(i)) / 2.0);
+            maxHalfHeight = Math.max(maxHalfHeight, (batch.getBotRightY(i) - batch.getTopLeftY(i)) / 2.0);
+        }
+
+        grid.reset(minX, minY, maxX + 1, maxY + 1, Math.max(1.0, 2 * Math.max(maxHalfWidth, maxHalfHeight)));
+        for (int i = from; i < batch.size(); i++) {
+            grid.add(batch.getCenterX(i), batch.getCenterY(i));     // point id is i - from
+        }
+
+        for (int k = count - 1; k >= 0; k--) {
+            int kept = (int) sortKeys[k];
+            if (suppressed[kept]) {
+                continue;
+            }
+            // half the box sides, plus one pixel for the rounding of the centers
+            double reachX = (batch.getBotRightX(kept) - batch.getTopLeftX(kept)) / 2.0 + maxHalfWidth + 1;
+            double reachY = (batch.getBotRightY(kept) - batch.getTopLeftY(kept)) / 2.0 + maxHalfHeight + 1;
+            int found = grid.findInRectangle(batch.getCenterX(kept) - reachX, batch.getCenterY(kept) - reachY,
+                    batch.getCenterX(kept) + reachX, batch.getCenterY(kept) + reachY);
+
+            for (int r = 0; r < found; r++) {
+                int other = from + grid.getResult(r);
+                // only the less confident detections, as in greedy()
+                if (rank[other] < k && !suppressed[other] && overlaps(batch, kept, other)) {
+                    suppressed[other] = true;
+                }
+            }
+        }
+    }
+
+    private void soft(DetectionBatch batch, int from, int count) {
+
+        int numbActive = count;
+        for (int k = 0; k < count; k++) {
+            active[k] = from + k;
+        }
+
+        while (numbActive > 0) {
+
+            // the most confident of the remaining detections is kept
+            int best = 0;
+            for (int k = 1; k < numbActive; k++) {
+                if (batch.getConfidence(active[k]) > batch.getConfidence(active[best])) {
+                    best = k;
+                }
+            }
+            int kept = active[best];
+            active[best] = active[--numbActive];
+
+            for (int k = 0; k < numbActive; k++) {
+                int other = active[k];
+                if (perClass && batch.getClassIndex(other) != batch.getClassIndex(kept)) {
+                    continue;
+                }
+                double iou = batch.iou(kept, other);
+                if (iou <= 0) {
+                    continue;
+                }
+                double confidence = batch.getConfidence(other) * Math.exp(-iou * iou / softSigma);
+                batch.setConfidence(other, confidence);
+                if (confidence < minConfidence) {
+                    suppressed[other] = true;
+                    active[k--] = active[--numbActive];
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if `other` should be suppressed by the kept detection, i.e. if their intersection over union
+     *         is more than iouThreshold. Exits as soon as the boxes are seen not to overlap.
+     */
+    private boolean overlaps(DetectionBatch batch, int kept, int other) {
+
+        if (perClass && batch.getClassIndex(other) != batch.getClassIndex(kept)) {
+            return false;
+        }
+        int overlapWidth = Math.min(batch.getBotRightX(kept), batch.getBotRightX(other))
+                - Math.max(batch.getTopLeftX(kept), batch.getTopLeftX(other));
+        if (overlapWidth <= 0) {
+            return false;
+        }
+        int overlapHeight = Math.min(batch.getBotRightY(kept), batch.getBotRightY(other))
+                - Math.max(batch.getTopLeftY(kept), batch.getTopLeftY(other));
+        if (overlapHeight <= 0) {
+            return false;
+        }
+        return batch.iou(kept, other) > iouThreshold;
+    }
+
+    private void ensureCapacity(int size) {
+        if (suppressed.length < size) {
+            int capacity = Math.max(size, suppressed.length * 2);
+            sortKeys = new long[capacity];
+            suppressed = new boolean[capacity];
+            rank = new int[capacity];
+            active = new int[capacity];
+        }
+    }
+}
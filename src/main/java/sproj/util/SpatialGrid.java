@@ -0,0 +1,177 @@
+package sproj.util;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over frame coordinates, for finding the points near a position without
+ * checking every point, e.g. the detections close enough to an animal to be assigned to it.
+ *
+ * Points are added with add(), which returns consecutive ids starting at 0, and are found with
+ * findWithinRadius() or findInRectangle(). The results of the last query are read with getResult().
+ * Points outside the grid's extents are stored in the nearest border cell, so queries still find them,
+ * just less efficiently.
+ *
+ * All arrays are kept when the grid is cleared or reset, so a grid can be reused on every frame
+ * without creating garbage. An instance is not thread safe.
+ */
+public class SpatialGrid {
+
+    private static final int MAX_CELLS = 1 << 16;
+
+    private double originX, originY;
+    private double cellSize;
+    private int columns, rows;
+
+    private int[] cellHead = new int[0];    // first point in each cell, or -1
+    private int[] nextInCell = new int[16]; // next point in the same cell as each point, or -1
+    private double[] pointX = new double[16];
+    private double[] pointY = new double[16];
+    private int size;
+
+    private int[] results = new int[16];
+    private int numbResults;
+
+    public SpatialGrid() {
+        reset(0, 0, 1, 1, 1);
+    }
+
+    /**
+     * @param width width of the area covered, starting at x = 0
+     * @param height height of the area covered, starting at y = 0
+     * @param cellSize width and height of each cell. Works best at about the radius of the typical query
+     */
+    public SpatialGrid(double width, double height, double cellSize) {
+        reset(0, 0, width, height, cellSize);
+    }
+
+    /**
+     * Removes all points, and changes the area covered by the grid.
+     * If the area would need more than 65536 cells, the cells are made larger.
+     */
+    public void reset(double minX, double minY, double maxX, double maxY, double cellSize) {
+        if (!(cellSize > 0)) {
+            throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+        }
+        double width = Math.max(maxX - minX, cellSize);
+        double height = Math.max(maxY - minY, cellSize);
+
+        double numbCells = Math.ceil(width / cellSize) * Math.ceil(height / cellSize);
+        if (numbCells > MAX_CELLS) {
+            cellSize *= Math.sqrt(numbCells / MAX_CELLS) * 1.01;
+        }
+
+        this.originX = minX;
+        this.originY = minY;
+        this.cellSize = cellSize;
+        this.columns = (int) Math.ceil(width / cellSize);
+        this.rows = (int) Math.ceil(height / cellSize);
+
+        if (cellHead.length < columns * rows) {
+            cellHead = new int[columns * rows];
+        }
+        clear();
+    }
+
+    /**
+     * Removes all points, keeping the area covered by the grid
+     */
+    public void clear() {
+        Arrays.fill(cellHead, 0, columns * rows, -1);
+        size = 0;
+        numbResults = 0;
+    }
+
+    /**
+     * @return id of the new point, which is the number of points added before it
+     */
+    public int add(double x, double y) {
+        if (size == pointX.length) {
+            int capacity = size * 2;
+            pointX = Arrays.copyOf(pointX, capacity);
+            pointY = Arrays.copyOf(pointY, capacity);
+            nextInCell = Arrays.copyOf(nextInCell, capacity);
+        }
+        int id = size++;
+        int cell = cellRow(y) * columns + cellColumn(x);
+        pointX[id] = x;
+        pointY[id] = y;
+        nextInCell[id] = cellHead[cell];
+        cellHead[cell] = id;
+        return id;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Finds all points at a distance of `radius` or less from (x, y)
+     *
+     * @return number of points found, see getResult()
+     */
+    public int findWithinRadius(double x, double y, double radius) {
+        numbResults = 0;
+        double radiusSquared = radius * radius;
+
+        for (int r = cellRow(y - radius), lastRow = cellRow(y + radius); r <= lastRow; r++) {
+            for (int c = cellColumn(x - radius), lastCol = cellColumn(x + radius); c <= lastCol; c++) {
+                for (int id = cellHead[r * columns + c]; id != -1; id = nextInCell[id]) {
+                    double dx = pointX[id] - x;
+                    double dy = pointY[id] - y;
+                    if (dx * dx + dy * dy <= radiusSquared) {
+                        addResult(id);
+                    }
+                }
+            }
+        }
+        return numbResults;
+    }
+
+    /**
+     * Finds all points inside the rectangle, including its edges
+     *
+     * @return number of points found, see getResult()
+     */
+    public int findInRectangle(double x1, double y1, double x2, double y2) {
+        numbResults = 0;
+
+        for (int r = cellRow(y1), lastRow = cellRow(y2); r <= lastRow; r++) {
+            for (int c = cellColumn(x1), lastCol = cellColumn(x2); c <= lastCol; c++) {
+                for (int id = cellHead[r * columns + c]; id != -1; id = nextInCell[id]) {
+                    if (pointX[id] >= x1 && pointX[id] <= x2 && pointY[id] >= y1 && pointY[id] <= y2) {
+                        addResult(id);
+                    }
+                }
+            }
+        }
+        return numbResults;
+    }
+
+    /**
+     * @param k index of the result, from 0 to the number returned by the last query
+     * @return id of the point, as returned by add()
+     */
+    public int getResult(int k) {
+        if (k < 0 || k >= numbResults) {
+            throw new IndexOutOfBoundsException("Result " + k + " of " + numbResults);
+        }
+        return results[k];
+    }
+
+    private void addResult(int id) {
+        if (numbResults == results.length) {
+            results = Arrays.copyOf(results, numbResults * 2);
+        }
+        results[numbResults++] = id;
+    }
+
+    private int cellColumn(double x) {
+        int column = (int) Math.floor((x - originX) / cellSize);
+        return Math.max(0, Math.min(columns - 1, column));
+    }
+
+    private int cellRow(double y) {
+        int row = (int) Math.floor((y - originY) / cellSize);
+        return Math.max(0, Math.min(rows - 1, row));
+    }
+}
@@ -0,0 +1,84 @@
+package sproj.util;
+
+/**
+ * Keeps track of how many items a stage of processing (e.g. video decoding) has handled,
+ * and how much time was spent on them, so that the slowest stage can be identified.
+ *
+ * Only the time spent inside the measured calls is counted, so the rate reported here is
+ * how fast the stage itself could run if nothing else were waiting on it.
+ * Safe to read from a different thread than the one recording.
+ */
+public class ThroughputCounter {
+
+    private final Logger logger = new Logger();
+
+    private final String name;
+    private final int logInterval;      // log the rate every this many items, or 0 to never log
+
+    private long count;
+    private long totalNanos;
+    private long intervalStartCount;
+    private long intervalNanos;
+
+    /**
+     * @param name name of the stage, used in the log output
+     * @param logInterval log the throughput every time this many more items have been recorded, or 0 to disable
+     */
+    public ThroughputCounter(String name, int logInterval) {
+        if (logInterval < 0) {
+            throw new IllegalArgumentException("Log interval cannot be negative: " + logInterval);
+        }
+        this.name = name;
+        this.logInterval = logInterval;
+    }
+
+    /**
+     * @param elapsedNanos time taken to process one item, e.g. the difference of two System.nanoTime() calls
+     */
+    public synchronized void record(long elapsedNanos) {
+        count++;
+        totalNanos += elapsedNanos;
+        intervalNanos += elapsedNanos;
+
+        if (logInterval > 0 && count - intervalStartCount >= logInterval) {
+            logger.info(String.format("%s: %.1f frames/s over the last %d frames (%.1f frames/s overall)",
+                    name, rate(count - intervalStartCount, intervalNanos), count - intervalStartCount, getRate()));
+            intervalStartCount = count;
+            intervalNanos = 0;
+        }
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return items processed per second of measured time, since this counter was created or reset
+     */
+    public synchronized double getRate() {
+        return rate(count, totalNanos);
+    }
+
+    /**
+     * @return average time per item in milliseconds
+     */
+    public synchronized double getAverageMillis() {
+        return count == 0 ? 0 : totalNanos / 1e6 / count;
+    }
+
+    public synchronized void reset() {
+        count = 0;
+        totalNanos = 0;
+        intervalStartCount = 0;
+        intervalNanos = 0;
+    }
+
+    private static double rate(long items, long nanos) {
+        return nanos == 0 ? 0 : items * 1e9 / nanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: %d frames, %.1f frames/s, %.2f ms/frame", name, count, getRate(), getAverageMillis());
+    }
+}
@@ -0,0 +1,279 @@
+package sproj.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary trajectory file, the compact alternative to the CSV output of the tracker: a header followed by
+ * one fixed size record per frame, all little endian.
+ *
+ * Header:
+ *
+ *      int     MAGIC
+ *      int     VERSION
+ *      int     size of the header in bytes, i.e. offset of the first record
+ *      int     number of animals
+ *      double  frame rate of the video
+ *      int[4]  crop of the video: x, y, width, height
+ *      for each animal:
+ *          int     id
+ *          int     color, as 0xRRGGBB
+ *
+ * Record:
+ *
+ *      int     frame number
+ *      long    time position in the video, in milliseconds
+ *      for each animal:
+ *          float   x
+ *          float   y
+ *          float   confidence, see Animal.updateLocation()
+ *
+ * The records are written by TrajectoryWriter, in increasing frame order. Since they all have the same size,
+ * the number of records is given by the size of the file, and a record can be read without reading any
+ * of the others. If the tracker stopped in the middle of a record, the incomplete record is ignored.
+ *
+ * An instance is a read-only view of a file, which is mapped into memory when it is opened, so only the
+ * parts of the file that are read are loaded from the disk. It can be used by several threads at once.
+ */
+public class TrajectoryFile {
+
+    public static final int MAGIC = 0x4A415254;     // "TRAJ" in a little endian file
+    public static final int VERSION = 1;
+
+    private static final int FIXED_HEADER_SIZE = 40;
+    private static final int BYTES_PER_ANIMAL_HEADER = 8;
+    private static final int RECORD_PREFIX_SIZE = 12;      // frame number and time
+    private static final int BYTES_PER_ANIMAL_RECORD = 12;
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;    // largest size a MappedByteBuffer can have
+
+    /**
+     * Description of the tracked video and animals, at the start of the file
+     */
+    public static class Header {
+
+        public final int numbAnimals;
+        public final double fps;
+        public final int[] crop;            // x, y, width, height
+        public final int[] animalIds;
+        public final int[] animalColors;    // 0xRRGGBB
+
+        public Header(double fps, int[] crop, int[] animalIds, int[] animalColors) {
+            if (crop.length != 4) {
+                throw new IllegalArgumentException("Crop must have 4 values: " + crop.length);
+            }
+            if (animalIds.length != animalColors.length || animalIds.length < 1) {
+                throw new IllegalArgumentException("Invalid number of animal ids and colors: "
+                        + animalIds.length + ", " + animalColors.length);
+            }
+            this.numbAnimals = animalIds.length;
+            this.fps = fps;
+            this.crop = crop.clone();
+            this.animalIds = animalIds.clone();
+            this.animalColors = animalColors.clone();
+        }
+
+        public int size() {
+            return FIXED_HEADER_SIZE + numbAnimals * BYTES_PER_ANIMAL_HEADER;
+        }
+
+        public int recordSize() {
+            return TrajectoryFile.recordSize(numbAnimals);
+        }
+
+        /**
+         * @return the header as it is stored at the start of the file
+         */
+        public ByteBuffer toBytes() {
+            ByteBuffer bytes = ByteBuffer.allocate(size()).order(ByteOrder.LITTLE_ENDIAN);
+            bytes.putInt(MAGIC).putInt(VERSION).putInt(size()).putInt(numbAnimals).putDouble(fps);
+            for (int value : crop) {
+                bytes.putInt(value);
+            }
+            for (int a = 0; a < numbAnimals; a++) {
+                bytes.putInt(animalIds[a]).putInt(animalColors[a]);
+            }
+            bytes.flip();
+            return bytes;
+        }
+
+        /**
+         * Reads the header starting at the given position of the file
+         *
+         * @throws IOException if there is no header of this version at that position
+         */
+        static Header read(FileChannel channel, long position) throws IOException {
+
+            ByteBuffer bytes = readFully(channel, position, FIXED_HEADER_SIZE);
+            if (bytes == null || bytes.getInt(0) != MAGIC) {
+                throw new IOException("Not a trajectory file");
+            }
+            if (bytes.getInt(4) != VERSION) {
+                throw new IOException("Unsupported trajectory file version: " + bytes.getInt(4));
+            }
+            int headerSize = bytes.getInt(8);
+            int numbAnimals = bytes.getInt(12);
+            if (numbAnimals < 1 || headerSize != FIXED_HEADER_SIZE + (long) numbAnimals * BYTES_PER_ANIMAL_HEADER
+                    || (bytes = readFully(channel, position, headerSize)) == null) {
+                throw new IOException("Corrupt trajectory file header");
+            }
+
+            int[] crop = new int[4];
+            for (int i = 0; i < 4; i++) {
+                crop[i] = bytes.getInt(24 + 4 * i);
+            }
+            int[] ids = new int[numbAnimals];
+            int[] colors = new int[numbAnimals];
+            for (int a = 0; a < numbAnimals; a++) {
+                ids[a] = bytes.getInt(FIXED_HEADER_SIZE + a * BYTES_PER_ANIMAL_HEADER);
+                colors[a] = bytes.getInt(FIXED_HEADER_SIZE + a * BYTES_PER_ANIMAL_HEADER + 4);
+            }
+            return new Header(bytes.getDouble(16), crop, ids, colors);
+        }
+
+    }
+
+    private final Header header;
+    private final int recordSize;
+    private final long numbRecords;
+    private final int recordsPerSegment;
+    private final ByteBuffer[] segments;        // the records, mapped in parts of at most MAX_SEGMENT_SIZE bytes
+
+    private TrajectoryFile(Header header, long numbRecords, ByteBuffer[] segments, int recordsPerSegment) {
+        this.header = header;
+        this.recordSize = header.recordSize();
+        this.numbRecords = numbRecords;
+        this.segments = segments;
+        this.recordsPerSegment = recordsPerSegment;
+    }
+
+    /**
+     * @return `size` bytes of the file starting at the given position, or null if the file ends before
+     */
+    static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, position + bytes.position()) < 0) {
+                return null;
+            }
+        }
+        bytes.flip();
+        return bytes;
+    }
+
+    static int recordSize(int numbAnimals) {
+        return RECORD_PREFIX_SIZE + numbAnimals * BYTES_PER_ANIMAL_RECORD;
+    }
+
+    /**
+     * Reads the header, and maps the records into memory
+     *
+     * @throws IOException if the file could not be read, or is not a trajectory file
+     */
+    public static TrajectoryFile open(File file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            Header header = Header.read(channel, 0);
+            long fileSize = channel.size();
+
+            int recordSize = header.recordSize();
+            long numbRecords = (fileSize - header.size()) / recordSize;
+            int recordsPerSegment = (int) Math.max(1, MAX_SEGMENT_SIZE / recordSize);
+            int numbSegments = (int) ((numbRecords + recordsPerSegment - 1) / recordsPerSegment);
+
+            ByteBuffer[] segments = new ByteBuffer[numbSegments];
+            for (int s = 0; s < numbSegments; s++) {
+                long firstRecord = (long) s * recordsPerSegment;
+                long records = Math.min(recordsPerSegment, numbRecords - firstRecord);
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        header.size() + firstRecord * recordSize, records * recordSize)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return new TrajectoryFile(header, numbRecords, segments, recordsPerSegment);
+        }
+    }
+
+    public Header getHeader() {
+        return header;
+    }
+
+    public int getNumbAnimals() {
+        return header.numbAnimals;
+    }
+
+    public long getNumbRecords() {
+        return numbRecords;
+    }
+
+    public int getFrameNumber(long record) {
+        return segment(record).getInt(offset(record));
+    }
+
+    public long getTime(long record) {
+        return segment(record).getLong(offset(record) + 4);
+    }
+
+    public float getX(long record, int animal) {
+        return segment(record).getFloat(animalOffset(record, animal));
+    }
+
+    public float getY(long record, int animal) {
+        return segment(record).getFloat(animalOffset(record, animal) + 4);
+    }
+
+    public float getConfidence(long record, int animal) {
+        return segment(record).getFloat(animalOffset(record, animal) + 8);
+    }
+
+    /**
+     * @return index of the record of the given frame, or -1 if the file has no record for that frame
+     */
+    public long findRecord(int frameNumber) {
+
+        if (numbRecords == 0) {
+            return -1;
+        }
+        // usually every frame has a record, so the record is found directly
+        long guess = (long) frameNumber - getFrameNumber(0);
+        if (guess >= 0 && guess < numbRecords && getFrameNumber(guess) == frameNumber) {
+            return guess;
+        }
+
+        long low = 0;
+        long high = numbRecords - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            int middleFrame = getFrameNumber(middle);
+            if (middleFrame < frameNumber) {
+                low = middle + 1;
+            } else if (middleFrame > frameNumber) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    private ByteBuffer segment(long record) {
+        if (record < 0 || record >= numbRecords) {
+            throw new IndexOutOfBoundsException("Record " + record + " of " + numbRecords);
+        }
+        return segments[(int) (record / recordsPerSegment)];
+    }
+
+    private int offset(long record) {
+        return (int) (record % recordsPerSegment) * recordSize;
+    }
+
+    private int animalOffset(long record, int animal) {
+        if (animal < 0 || animal >= header.numbAnimals) {
+            throw new IndexOutOfBoundsException("Animal " + animal + " of " + header.numbAnimals);
+        }
+        return offset(record) + RECORD_PREFIX_SIZE + animal * BYTES_PER_ANIMAL_RECORD;
+    }
+}
@@ -0,0 +1,553 @@
+package sproj.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compressed trajectory file for long recordings, split into chunks of up to chunkFrames frames each,
+ * with an index of the frame and time range of every chunk. A reader only decodes the chunks that
+ * overlap the frames or time window it needs, instead of scanning the whole file.
+ *
+ * Layout, all little endian:
+ *
+ *      int     MAGIC
+ *      int     VERSION
+ *      int     chunkFrames
+ *      int     0 (reserved)
+ *      TrajectoryFile.Header
+ *      chunks, each with a chunk header followed by its encoded frames
+ *      index: one chunk header for each chunk, with the offset of the chunk in the file
+ *      long    offset of the index
+ *      int     number of chunks
+ *      int     INDEX_MAGIC
+ *
+ * Chunk header:
+ *
+ *      int     CHUNK_MAGIC
+ *      int     number of frames
+ *      int     first frame number
+ *      int     last frame number
+ *      long    time of the first frame, in milliseconds
+ *      long    time of the last frame
+ *      int     number of encoded bytes that follow
+ *
+ * The encoded frames are stored column by column: the frame numbers, the times, then for each animal
+ * its x values, y values and confidence values. Each column is stored as the differences between
+ * consecutive values (the first value as its difference from 0), as zigzag variable length integers.
+ * Consecutive positions of an animal are close to each other, so most values take a single byte.
+ * Positions are stored in whole pixels, which is how Animal records them, and confidences are
+ * rounded to 3 decimals, as in the CSV file.
+ *
+ * The index is written when the file is closed. If the tracker stopped before that, open() rebuilds
+ * it from the chunk headers, and only the frames of the last, unfinished chunk are lost.
+ */
+public class TrajectoryStore {
+
+    public static final int MAGIC = 0x5A4A5254;         // "TRJZ" in a little endian file
+    public static final int VERSION = 1;
+    public static final int DEFAULT_CHUNK_FRAMES = 10000;
+
+    private static final int INDEX_MAGIC = 0x58444E49;  // "INDX"
+    private static final int CHUNK_MAGIC = 0x4B4E4843;  // "CHNK"
+    private static final int PREFIX_SIZE = 16;
+    private static final int CHUNK_HEADER_SIZE = 36;
+    private static final int INDEX_ENTRY_SIZE = CHUNK_HEADER_SIZE + 8;
+    private static final int FOOTER_SIZE = 16;
+    private static final double CONFIDENCE_SCALE = 1000.0;
+
+    /**
+     * The frames of one chunk, decoded into primitive arrays
+     */
+    public static class Chunk {
+
+        public final int size;
+        public final int[] frameNumbers;
+        public final long[] times;
+        public final int[][] x;                 // [animal][frame in chunk]
+        public final int[][] y;
+        public final double[][] confidence;
+
+        Chunk(int size, int numbAnimals) {
+            this.size = size;
+            this.frameNumbers = new int[size];
+            this.times = new long[size];
+            this.x = new int[numbAnimals][size];
+            this.y = new int[numbAnimals][size];
+            this.confidence = new double[numbAnimals][size];
+        }
+
+        /**
+         * @return index of the frame in this chunk, or -1 if the chunk has no such frame
+         */
+        public int indexOf(int frameNumber) {
+            int i = Arrays.binarySearch(frameNumbers, frameNumber);
+            return i >= 0 ? i : -1;
+        }
+    }
+
+    private final File file;
+    private final TrajectoryFile.Header header;
+    private final int chunkFrames;
+    private final boolean recovered;
+
+    // index, in frame order
+    private final int[] firstFrames;
+    private final int[] lastFrames;
+    private final long[] firstTimes;
+    private final long[] lastTimes;
+    private final long[] offsets;           // of the chunk header
+    private final int[] lengths;            // of the encoded frames
+
+    private TrajectoryStore(File file, TrajectoryFile.Header header, int chunkFrames, boolean recovered, List<long[]> index) {
+        this.file = file;
+        this.header = header;
+        this.chunkFrames = chunkFrames;
+        this.recovered = recovered;
+        int numbChunks = index.size();
+        firstFrames = new int[numbChunks];
+        lastFrames = new int[numbChunks];
+        firstTimes = new long[numbChunks];
+        lastTimes = new long[numbChunks];
+        offsets = new long[numbChunks];
+        lengths = new int[numbChunks];
+        for (int c = 0; c < numbChunks; c++) {
+            long[] entry = index.get(c);
+            firstFrames[c] = (int) entry[0];
+            lastFrames[c] = (int) entry[1];
+            firstTimes[c] = entry[2];
+            lastTimes[c] = entry[3];
+            offsets[c] = entry[4];
+            lengths[c] = (int) entry[5];
+        }
+    }
+
+    /**
+     * Reads the header and the index of the file. The chunks are only read by readChunk().
+     *
+     * @throws IOException if the file could not be read, or is not a trajectory store
+     */
+    public static TrajectoryStore open(File file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            ByteBuffer prefix = TrajectoryFile.readFully(channel, 0, PREFIX_SIZE);
+            if (prefix == null || prefix.getInt(0) != MAGIC) {
+                throw new IOException("Not a trajectory store: " + file);
+            }
+            if (prefix.getInt(4) != VERSION) {
+                throw new IOException("Unsupported trajectory store version: " + prefix.getInt(4));
+            }
+            int chunkFrames = prefix.getInt(8);
+            TrajectoryFile.Header header = TrajectoryFile.Header.read(channel, PREFIX_SIZE);
+            long dataStart = PREFIX_SIZE + header.size();
+
+            List<long[]> index = readIndex(channel, dataStart);
+            boolean recovered = index == null;
+            if (recovered) {
+                index = scanChunks(channel, dataStart);
+            }
+            return new TrajectoryStore(file, header, chunkFrames, recovered, index);
+        }
+    }
+
+    /**
+     * @return the index at the end of the file, or null if the file was not closed properly
+     */
+    private static List<long[]> readIndex(FileChannel channel, long dataStart) throws IOException {
+
+        long fileSize = channel.size();
+        if (fileSize < dataStart + FOOTER_SIZE) {
+            return null;
+        }
+        ByteBuffer footer = TrajectoryFile.readFully(channel, fileSize - FOOTER_SIZE, FOOTER_SIZE);
+        long indexOffset = footer.getLong(0);
+        int numbChunks = footer.getInt(8);
+        if (footer.getInt(12) != INDEX_MAGIC || numbChunks < 0 || indexOffset < dataStart
+                || indexOffset + (long) numbChunks * INDEX_ENTRY_SIZE != fileSize - FOOTER_SIZE) {
+            return null;
+        }
+
+        ByteBuffer entries = TrajectoryFile.readFully(channel, indexOffset, numbChunks * INDEX_ENTRY_SIZE);
+        List<long[]> index = new ArrayList<>(numbChunks);
+        for (int c = 0; c < numbChunks; c++) {
+            int at = c * INDEX_ENTRY_SIZE;
+            long[] entry = readChunkHeader(entries, at);
+            if (entry == null) {
+                return null;
+            }
+            entry[4] = entries.getLong(at + CHUNK_HEADER_SIZE);
+            index.add(entry);
+        }
+        return index;
+    }
+
+    /**
+     * Rebuilds the index from the chunk headers, up to the first incomplete chunk. The frames of each chunk
+     * come after those of the one before, which tells the chunks apart from an index left after them:
+     * the index starts with a copy of the first chunk's header.
+     */
+    private static List<long[]> scanChunks(FileChannel channel, long dataStart) throws IOException {
+
+        List<long[]> index = new ArrayList<>();
+        long fileSize = channel.size();
+        long position = dataStart;
+
+        while (position + CHUNK_HEADER_SIZE <= fileSize) {
+            long[] entry = readChunkHeader(TrajectoryFile.readFully(channel, position, CHUNK_HEADER_SIZE), 0);
+            if (entry == null || position + CHUNK_HEADER_SIZE + entry[5] > fileSize
+                    || (!index.isEmpty() && entry[0] <= index.get(index.size() - 1)[1])) {
+                break;
+            }
+            entry[4] = position;
+            index.add(entry);
+            position += CHUNK_HEADER_SIZE + entry[5];
+        }
+        return index;
+    }
+
+    /**
+     * @return {firstFrame, lastFrame, firstTime, lastTime, offset (not set), length, number of frames},
+     *         or null if there is no chunk header
+     */
+    private static long[] readChunkHeader(ByteBuffer bytes, int at) {
+        if (bytes.getInt(at) != CHUNK_MAGIC || bytes.getInt(at + 4) < 1 || bytes.getInt(at + 32) < 0) {
+            return null;
+        }
+        return new long[]{bytes.getInt(at + 8), bytes.getInt(at + 12), bytes.getLong(at + 16), bytes.getLong(at + 24),
+                0, bytes.getInt(at + 32), bytes.getInt(at + 4)};
+    }
+
+    public TrajectoryFile.Header getHeader() {
+        return header;
+    }
+
+    public int getChunkFrames() {
+        return chunkFrames;
+    }
+
+    /**
+     * @return true if the file was not closed properly, and its index was rebuilt by open()
+     */
+    public boolean isRecovered() {
+        return recovered;
+    }
+
+    public int getNumbChunks() {
+        return offsets.length;
+    }
+
+    public int getFirstFrame(int chunk) {
+        return firstFrames[chunk];
+    }
+
+    public int getLastFrame(int chunk) {
+        return lastFrames[chunk];
+    }
+
+    public long getFirstTime(int chunk) {
+        return firstTimes[chunk];
+    }
+
+    public long getLastTime(int chunk) {
+        return lastTimes[chunk];
+    }
+
+    /**
+     * @return the first chunk whose last frame is at or after the given frame, or getNumbChunks() if there is none.
+     *         That chunk holds the frame, if the file has it.
+     */
+    public int findChunk(int frameNumber) {
+        return lowerBound(lastFrames, frameNumber);
+    }
+
+    /**
+     * @return the first chunk whose last frame is at or after the given time, or getNumbChunks() if there is none
+     */
+    public int findChunkByTime(long timeMillis) {
+        int low = 0;
+        int high = lastTimes.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (lastTimes[middle] < timeMillis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int lowerBound(int[] values, int key) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Reads and decodes one chunk
+     */
+    public Chunk readChunk(int chunk) throws IOException {
+
+        if (chunk < 0 || chunk >= offsets.length) {
+            throw new IndexOutOfBoundsException("Chunk " + chunk + " of " + offsets.length);
+        }
+        ByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            bytes = TrajectoryFile.readFully(channel, offsets[chunk], CHUNK_HEADER_SIZE + lengths[chunk]);
+        }
+        if (bytes == null) {
+            throw new IOException("Trajectory store is shorter than its index: " + file);
+        }
+
+        int size = bytes.getInt(4);
+        Chunk decoded = new Chunk(size, header.numbAnimals);
+        bytes.position(CHUNK_HEADER_SIZE);
+
+        try {
+            long value = 0;
+            for (int i = 0; i < size; i++) {
+                value += readVarLong(bytes);
+                decoded.frameNumbers[i] = (int) value;
+            }
+            value = 0;
+            for (int i = 0; i < size; i++) {
+                value += readVarLong(bytes);
+                decoded.times[i] = value;
+            }
+            for (int a = 0; a < header.numbAnimals; a++) {
+                value = 0;
+                for (int i = 0; i < size; i++) {
+                    value += readVarLong(bytes);
+                    decoded.x[a][i] = (int) value;
+                }
+                value = 0;
+                for (int i = 0; i < size; i++) {
+                    value += readVarLong(bytes);
+                    decoded.y[a][i] = (int) value;
+                }
+                value = 0;
+                for (int i = 0; i < size; i++) {
+                    value += readVarLong(bytes);
+                    decoded.confidence[a][i] = value / CONFIDENCE_SCALE;
+                }
+            }
+        } catch (RuntimeException e) {     // BufferUnderflowException, or a malformed varint
+            throw new IOException("Corrupt chunk " + chunk + " in " + file, e);
+        }
+        return decoded;
+    }
+
+    /**
+     * Zigzag variable length integer: 7 bits per byte, low bits first, with the high bit set on all but the last byte
+     */
+    private static long readVarLong(ByteBuffer bytes) {
+        long encoded = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 63) {
+                throw new IllegalStateException("Malformed variable length integer");
+            }
+            byte b = bytes.get();
+            encoded |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        return (encoded >>> 1) ^ -(encoded & 1);
+    }
+
+    /**
+     * @return the chunk size of an existing store, from its prefix
+     * @throws IOException if the file could not be read, or is not a trajectory store
+     */
+    static int readChunkFrames(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer prefix = TrajectoryFile.readFully(channel, 0, PREFIX_SIZE);
+            if (prefix == null || prefix.getInt(0) != MAGIC) {
+                throw new IOException("Not a trajectory store: " + file);
+            }
+            return prefix.getInt(8);
+        }
+    }
+
+    /**
+     * Writes the prefix and the TrajectoryFile.Header at the start of a new store
+     */
+    static ByteBuffer encodeStart(TrajectoryFile.Header header, int chunkFrames) {
+        ByteBuffer headerBytes = header.toBytes();
+        ByteBuffer bytes = ByteBuffer.allocate(PREFIX_SIZE + headerBytes.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.putInt(MAGIC).putInt(VERSION).putInt(chunkFrames).putInt(0);
+        bytes.put(headerBytes);
+        bytes.flip();
+        return bytes;
+    }
+
+    /**
+     * Collects the rows of a TrajectoryWriter into columns, and encodes them once a chunk is full.
+     * Used on the writer thread only.
+     */
+    static class ChunkEncoder {
+
+        private final int numbAnimals;
+        private final int chunkFrames;
+
+        private final int[] frameNumbers;
+        private final long[] times;
+        private final int[][] x;
+        private final int[][] y;
+        private final int[][] confidence;       // times CONFIDENCE_SCALE
+        private int size;
+
+        private byte[] encoded = new byte[1 << 16];
+        private int length;
+
+        private final List<long[]> index = new ArrayList<>();
+
+        ChunkEncoder(int numbAnimals, int chunkFrames) {
+            if (chunkFrames < 1) {
+                throw new IllegalArgumentException("Chunk size must be at least 1 frame: " + chunkFrames);
+            }
+            this.numbAnimals = numbAnimals;
+            this.chunkFrames = chunkFrames;
+            frameNumbers = new int[chunkFrames];
+            times = new long[chunkFrames];
+            x = new int[numbAnimals][chunkFrames];
+            y = new int[numbAnimals][chunkFrames];
+            confidence = new int[numbAnimals][chunkFrames];
+        }
+
+        /**
+         * @param row time, x, y and confidence of each animal, as in TrajectoryWriter
+         * @return true if the chunk is full, and should be written with writeChunk()
+         */
+        boolean add(double[] row, int frameNumber) {
+            frameNumbers[size] = frameNumber;
+            times[size] = Math.round(row[0]);
+            for (int a = 0; a < numbAnimals; a++) {
+                x[a][size] = (int) Math.round(row[a * 4 + 1]);
+                y[a][size] = (int) Math.round(row[a * 4 + 2]);
+                confidence[a][size] = (int) Math.round(row[a * 4 + 3] * CONFIDENCE_SCALE);
+            }
+            size++;
+            return size == chunkFrames;
+        }
+
+        /**
+         * Encodes the frames collected so far as a chunk, and writes it at the current position of the channel
+         */
+        void writeChunk(FileChannel channel) throws IOException {
+
+            if (size == 0) {
+                return;
+            }
+            length = CHUNK_HEADER_SIZE;
+
+            long previous = 0;
+            for (int i = 0; i < size; i++) {
+                putVarLong(frameNumbers[i] - previous);
+                previous = frameNumbers[i];
+            }
+            previous = 0;
+            for (int i = 0; i < size; i++) {
+                putVarLong(times[i] - previous);
+                previous = times[i];
+            }
+            for (int a = 0; a < numbAnimals; a++) {
+                putColumn(x[a]);
+                putColumn(y[a]);
+                putColumn(confidence[a]);
+            }
+
+            long[] entry = {frameNumbers[0], frameNumbers[size - 1], times[0], times[size - 1],
+                    channel.position(), length - CHUNK_HEADER_SIZE, size};
+            ByteBuffer chunk = ByteBuffer.wrap(encoded, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+            putChunkHeader(chunk, 0, entry);
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+            index.add(entry);
+            size = 0;
+        }
+
+        /**
+         * Continues a store whose chunks end at the current position of the channel, e.g. after the
+         * store was truncated back to a size returned by TrajectoryWriter.sync(): the index entries of
+         * the chunks already in the file are read from their headers
+         *
+         * @throws IOException if the file does not end with a whole chunk
+         */
+        void resume(FileChannel channel, TrajectoryFile.Header header) throws IOException {
+            List<long[]> chunks = scanChunks(channel, PREFIX_SIZE + header.size());
+            long end = chunks.isEmpty() ? PREFIX_SIZE + header.size() :
+                    chunks.get(chunks.size() - 1)[4] + CHUNK_HEADER_SIZE + chunks.get(chunks.size() - 1)[5];
+            if (end != channel.position()) {
+                throw new IOException("Trajectory store does not end with a whole chunk at " + channel.position());
+            }
+            index.clear();
+            index.addAll(chunks);
+            size = 0;
+        }
+
+        /**
+         * Writes the index and the footer, after the last chunk
+         */
+        void writeIndex(FileChannel channel) throws IOException {
+
+            long indexOffset = channel.position();
+            ByteBuffer bytes = ByteBuffer.allocate(index.size() * INDEX_ENTRY_SIZE + FOOTER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            for (int c = 0; c < index.size(); c++) {
+                long[] entry = index.get(c);
+                putChunkHeader(bytes, c * INDEX_ENTRY_SIZE, entry);
+                bytes.putLong(c * INDEX_ENTRY_SIZE + CHUNK_HEADER_SIZE, entry[4]);
+            }
+            int footer = index.size() * INDEX_ENTRY_SIZE;
+            bytes.putLong(footer, indexOffset).putInt(footer + 8, index.size()).putInt(footer + 12, INDEX_MAGIC);
+
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+
+        private static void putChunkHeader(ByteBuffer bytes, int at, long[] entry) {
+            bytes.putInt(at, CHUNK_MAGIC).putInt(at + 4, (int) entry[6])
+                    .putInt(at + 8, (int) entry[0]).putInt(at + 12, (int) entry[1])
+                    .putLong(at + 16, entry[2]).putLong(at + 24, entry[3])
+                    .putInt(at + 32, (int) entry[5]);
+        }
+
+        private void putColumn(int[] column) {
+            long previous = 0;
+            for (int i = 0; i < size; i++) {
+                putVarLong(column[i] - previous);
+                previous = column[i];
+            }
+        }
+
+        private void putVarLong(long value) {
+            if (length + 10 > encoded.length) {
+                encoded = Arrays.copyOf(encoded, encoded.length * 2);
+            }
+            long zigzag = (value << 1) ^ (value >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                encoded[length++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            encoded[length++] = (byte) zigzag;
+        }
+    }
+}
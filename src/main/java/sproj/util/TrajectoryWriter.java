@@ -0,0 +1,504 @@
+package sproj.util;
+
+import sproj.tracking.Animal;
+import sproj.tracking.TrajectoryBuffer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the data points of the animals to file on a background thread, either to the CSV file in the same
+ * format as IOUtils.writeAnimalsToCSV(): one line per time step, and for each animal
+ *
+ *      time|x|y|confidence,
+ *
+ * or to a binary TrajectoryFile, with one record per time step, or to a compressed TrajectoryStore,
+ * in chunks of TrajectoryStore.DEFAULT_CHUNK_FRAMES time steps unless another chunk size is given. See Format.
+ *
+ * The tracking thread only copies the points into a queue with write(), so it never waits for the disk
+ * or for the formatting of the numbers. The queue is a ring of preallocated rows with one producer
+ * (the tracking thread) and one consumer (the writer thread), which only exchange the positions of
+ * the ring through two atomic counters, without any locks.
+ *
+ * The writer thread formats the numbers itself, into a buffer that is written to a FileChannel kept open
+ * until close(). The buffer is written out once it holds flushBytes bytes, or once flushIntervalMillis
+ * have passed since the last write, whichever comes first. A TrajectoryStore is written one whole chunk at a time.
+ *
+ * If the ring is full because the disk is slower than the tracking, write() waits for free rows, so that
+ * no points are lost. The number of times this happened is given by getStalls().
+ *
+ * sync() waits until every queued row is on the disk, and returns the size of the file at that point.
+ * A writer can later be reopened on the same file from that size, see the constructor with resumeSize,
+ * which is how a SinglePlateTracker goes on from a TrackerCheckpoint.
+ */
+public class TrajectoryWriter implements Closeable {
+
+    private static final Logger logger = new Logger();
+
+    public enum Format {
+        CSV,        // text, same as IOUtils.writeAnimalsToCSV()
+        BINARY,     // TrajectoryFile, fixed size records that can be read directly from a memory mapped file
+        CHUNKED     // TrajectoryStore, compressed chunks with an index of their frame ranges, for long recordings
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;          // rows, i.e. time steps
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+    public static final int DEFAULT_FLUSH_BYTES = 1 << 16;
+
+    private static final long IDLE_PARK_NANOS = 1_000_000;           // writer thread, when the ring is empty
+    private static final long FULL_PARK_NANOS = 100_000;             // tracking thread, when the ring is full
+    private static final int VALUES_PER_POINT = 4;
+    private static final int MAX_NUMBER_LENGTH = 32;                 // bytes of one formatted value and its separator
+
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000};
+    private static final double MAX_EXACT_INTEGER = 1L << 53;
+    private static final int HALFWAY_ULPS = 4;      // error of the scaled value, compared to the shortest decimal form
+
+    private final int numbAnimals;
+    private final Format format;
+    private final TrajectoryStore.ChunkEncoder chunkEncoder;    // only used for CHUNKED
+    private final double[][] rows;          // ring of rows of [time, x, y, confidence] for each animal
+    private final int[] rowFrames;          // frame number of each row
+    private int nextFrame;                  // frame number of the next row, if not given to write()
+    private final AtomicLong head = new AtomicLong();   // next row to be written to file, only advanced by the writer thread
+    private final AtomicLong tail = new AtomicLong();   // next free row, only advanced by the tracking thread
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int flushBytes;
+    private final long flushIntervalNanos;
+    private final byte[] digits = new byte[20];
+
+    private final Thread thread;
+    private volatile boolean closing;
+    private volatile boolean syncRequested;
+    private volatile long syncedSize;
+    private volatile IOException failure;
+    private long stalls;
+
+    public TrajectoryWriter(File file, int numbAnimals) throws IOException {
+        this(file, numbAnimals, DEFAULT_QUEUE_CAPACITY, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_FLUSH_BYTES);
+    }
+
+    /**
+     * @param file CSV file, the lines are appended to it
+     * @param numbAnimals number of animals in each row
+     * @param queueCapacity number of rows that can wait to be written
+     * @param flushIntervalMillis maximum time that formatted lines wait before being written to the file
+     * @param flushBytes number of formatted bytes that are written to the file at once
+     */
+    public TrajectoryWriter(File file, int numbAnimals, int queueCapacity,
+                            long flushIntervalMillis, int flushBytes) throws IOException {
+        this(file, numbAnimals, null, Format.CSV, -1, TrajectoryStore.DEFAULT_CHUNK_FRAMES,
+                queueCapacity, flushIntervalMillis, flushBytes);
+    }
+
+    public TrajectoryWriter(File file, TrajectoryFile.Header header) throws IOException {
+        this(file, header, Format.BINARY);
+    }
+
+    public TrajectoryWriter(File file, TrajectoryFile.Header header, Format format) throws IOException {
+        this(file, header, format, DEFAULT_QUEUE_CAPACITY, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_FLUSH_BYTES);
+    }
+
+    /**
+     * @param file data file. A CSV file is appended to, the binary formats replace the file if it already exists
+     * @param header written at the start of the binary formats, gives the number of animals in each row
+     */
+    public TrajectoryWriter(File file, TrajectoryFile.Header header, Format format, int queueCapacity,
+                            long flushIntervalMillis, int flushBytes) throws IOException {
+        this(file, header.numbAnimals, header, format, -1, TrajectoryStore.DEFAULT_CHUNK_FRAMES,
+                queueCapacity, flushIntervalMillis, flushBytes);
+    }
+
+    /**
+     * Writes a TrajectoryStore with chunks of the given number of frames, instead of TrajectoryStore.DEFAULT_CHUNK_FRAMES
+     */
+    public TrajectoryWriter(File file, TrajectoryFile.Header header, int chunkFrames) throws IOException {
+        this(file, header.numbAnimals, header, Format.CHUNKED, -1, chunkFrames,
+                DEFAULT_QUEUE_CAPACITY, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_FLUSH_BYTES);
+    }
+
+    /**
+     * Reopens a data file written by an earlier writer, and goes on writing from the given size.
+     * Anything that was written after that point is discarded.
+     *
+     * @param header header of the file, only its number of animals is used for CSV
+     * @param resumeSize size of the file returned by sync() on the earlier writer
+     * @throws IOException if the file could not be opened, or is shorter than resumeSize
+     */
+    public TrajectoryWriter(File file, TrajectoryFile.Header header, Format format, long resumeSize) throws IOException {
+        this(file, header.numbAnimals, header, format, checkResumeSize(resumeSize),
+                format == Format.CHUNKED ? TrajectoryStore.readChunkFrames(file) : TrajectoryStore.DEFAULT_CHUNK_FRAMES,
+                DEFAULT_QUEUE_CAPACITY, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_FLUSH_BYTES);
+    }
+
+    private static long checkResumeSize(long resumeSize) {
+        if (resumeSize < 0) {
+            throw new IllegalArgumentException("Invalid size to resume from: " + resumeSize);
+        }
+        return resumeSize;
+    }
+
+    private TrajectoryWriter(File file, int numbAnimals, TrajectoryFile.Header header, Format format, long resumeSize,
+                             int chunkFrames, int queueCapacity, long flushIntervalMillis, int flushBytes)
+            throws IOException {
+
+        if (numbAnimals < 1) {
+            throw new IllegalArgumentException("Number of animals must be at least 1: " + numbAnimals);
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be at least 1: " + queueCapacity);
+        }
+        if (flushIntervalMillis < 0 || flushBytes < 1) {
+            throw new IllegalArgumentException("Invalid flush policy: " + flushIntervalMillis + " ms, " + flushBytes + " bytes");
+        }
+
+        this.numbAnimals = numbAnimals;
+        this.format = format;
+        this.chunkEncoder = format == Format.CHUNKED ?
+                new TrajectoryStore.ChunkEncoder(numbAnimals, chunkFrames) : null;
+        this.rows = new double[queueCapacity][numbAnimals * VALUES_PER_POINT];
+        this.rowFrames = new int[queueCapacity];
+        this.flushBytes = flushBytes;
+        this.flushIntervalNanos = flushIntervalMillis * 1_000_000;
+
+        // room for at least one whole line after the flush size has been reached
+        int lineBytes = numbAnimals * VALUES_PER_POINT * MAX_NUMBER_LENGTH + 1;
+        this.buffer = ByteBuffer.allocateDirect(flushBytes + lineBytes).order(ByteOrder.LITTLE_ENDIAN);
+
+        if (resumeSize >= 0) {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                if (channel.size() < resumeSize) {
+                    throw new IOException("Data file is shorter than the point to resume from: " + file);
+                }
+                channel.truncate(resumeSize);
+                channel.position(resumeSize);
+                if (format == Format.CHUNKED) {
+                    chunkEncoder.resume(channel, header);
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        } else if (format == Format.CSV) {
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } else {
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer start = format == Format.BINARY ? header.toBytes() :
+                    TrajectoryStore.encodeStart(header, chunkFrames);
+            while (start.hasRemaining()) {
+                channel.write(start);
+            }
+        }
+
+        this.thread = new Thread(this::run, "trajectory-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Same as write(animals, lastFrameNumber), with the rows numbered on from the last row written,
+     * starting at frame 0
+     */
+    public void write(List<Animal> animals) throws IOException {
+        write(animals, nextFrame + numbPoints(animals) - 1);
+    }
+
+    /**
+     * Queues all data points currently held by the animals, one row per time step.
+     * The animals must be in the same order on every call.
+     *
+     * @param lastFrameNumber frame number of the most recent points, the points before it are numbered backwards
+     * @throws IOException if the writer thread failed to write to the file
+     */
+    public void write(List<Animal> animals, int lastFrameNumber) throws IOException {
+
+        if (animals.size() != numbAnimals) {
+            throw new IllegalArgumentException("Expected " + numbAnimals + " animals: " + animals.size());
+        }
+        if (closing) {
+            throw new IllegalStateException("Trajectory writer is closed");
+        }
+
+        int numbPoints = numbPoints(animals);
+
+        for (int p = 0; p < numbPoints; p++) {
+
+            long position = tail.get();
+            while (position - head.get() >= rows.length) {
+                checkFailure();
+                stalls++;
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+            }
+
+            int slot = (int) (position % rows.length);
+            double[] row = rows[slot];
+            rowFrames[slot] = lastFrameNumber - (numbPoints - 1 - p);
+            for (int a = 0; a < numbAnimals; a++) {
+                TrajectoryBuffer points = animals.get(a).getDataPoints();
+                int at = a * VALUES_PER_POINT;
+                row[at] = points.getTime(p);
+                row[at + 1] = points.getX(p);
+                row[at + 2] = points.getY(p);
+                row[at + 3] = points.getConfidence(p);
+            }
+            tail.lazySet(position + 1);     // publishes the row to the writer thread
+        }
+        nextFrame = lastFrameNumber + 1;
+        checkFailure();
+    }
+
+    /**
+     * @return number of points held by each animal. All animals are updated on every time step,
+     *         so they hold the same number of points
+     */
+    private static int numbPoints(List<Animal> animals) {
+        int numbPoints = animals.isEmpty() ? 0 : Integer.MAX_VALUE;
+        for (Animal animal : animals) {
+            numbPoints = Math.min(numbPoints, animal.getDataPoints().size());
+        }
+        return numbPoints;
+    }
+
+    /**
+     * Waits until all rows queued so far have been written and forced to the disk.
+     * A TrajectoryStore ends its current chunk here, even if it is not full.
+     *
+     * @return size of the file once those rows have been written
+     * @throws IOException if the writer thread failed to write to the file
+     */
+    public long sync() throws IOException {
+        if (closing) {
+            throw new IllegalStateException("Trajectory writer is closed");
+        }
+        syncRequested = true;
+        LockSupport.unpark(thread);
+        while (syncRequested) {
+            checkFailure();
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+        }
+        checkFailure();
+        return syncedSize;
+    }
+
+    /**
+     * @return number of times write() had to wait because the queue was full
+     */
+    public long getStalls() {
+        return stalls;
+    }
+
+    /**
+     * Writes all queued rows to the file, and closes it
+     *
+     * @throws IOException if any of the rows could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closing) {
+            return;
+        }
+        closing = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the trajectory writer", e);
+        }
+        if (stalls > 0) {
+            logger.warn("Trajectory writer queue was full " + stalls + " times");
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Failed to write trajectories to file", failure);
+        }
+    }
+
+    private void run() {
+
+        long lastFlush = System.nanoTime();
+
+        try {
+            while (true) {
+
+                // read before the tail: sync() sets the flag after write() has published its rows,
+                // so the rows queued before the request are then seen as well
+                boolean sync = syncRequested;
+
+                long position = head.get();
+                if (position < tail.get()) {
+                    int slot = (int) (position % rows.length);
+                    switch (format) {
+                        case CSV: formatRow(rows[slot]); break;
+                        case BINARY: encodeRow(rows[slot], rowFrames[slot]); break;
+                        case CHUNKED:
+                            if (chunkEncoder.add(rows[slot], rowFrames[slot])) {
+                                chunkEncoder.writeChunk(channel);
+                            }
+                            break;
+                    }
+                    head.lazySet(position + 1);     // frees the row for the tracking thread
+                    if (buffer.position() >= flushBytes) {
+                        flush();
+                        lastFlush = System.nanoTime();
+                    }
+                    continue;
+                }
+
+                if (sync) {
+                    // the tracking thread waits in sync(), so every row it queued has been handled
+                    flush();
+                    if (format == Format.CHUNKED) {
+                        chunkEncoder.writeChunk(channel);
+                    }
+                    channel.force(false);
+                    lastFlush = System.nanoTime();
+                    syncedSize = channel.position();
+                    syncRequested = false;
+                    continue;
+                }
+                if (closing && position == tail.get()) {
+                    break;
+                }
+                if (buffer.position() > 0 && System.nanoTime() - lastFlush >= flushIntervalNanos) {
+                    flush();
+                    lastFlush = System.nanoTime();
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            flush();
+            if (format == Format.CHUNKED) {
+                chunkEncoder.writeChunk(channel);       // the last chunk, which may not be full
+                chunkEncoder.writeIndex(channel);
+            }
+
+        } catch (IOException e) {
+            logger.error("Trajectory writer failed", e);
+            failure = e;
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Same output as String.format("%.0f|%.0f|%.0f|%.3f,") for each animal, followed by a line break
+     */
+    private void formatRow(double[] row) throws IOException {
+        for (int at = 0; at < row.length; at += VALUES_PER_POINT) {
+            appendFixed(row[at], 0);
+            buffer.put((byte) '|');
+            appendFixed(row[at + 1], 0);
+            buffer.put((byte) '|');
+            appendFixed(row[at + 2], 0);
+            buffer.put((byte) '|');
+            appendFixed(row[at + 3], 3);
+            buffer.put((byte) ',');
+        }
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * One record of a TrajectoryFile. The time of the record is the time of the first animal's point,
+     * since all animals are updated on the same frame
+     */
+    private void encodeRow(double[] row, int frameNumber) {
+        buffer.putInt(frameNumber);
+        buffer.putLong((long) row[0]);
+        for (int at = 0; at < row.length; at += VALUES_PER_POINT) {
+            buffer.putFloat((float) row[at + 1]);
+            buffer.putFloat((float) row[at + 2]);
+            buffer.putFloat((float) row[at + 3]);
+        }
+    }
+
+    /**
+     * Writes the value with the given number of decimals, rounding half up, without creating any objects.
+     * String.format rounds the shortest decimal form of the value (8.1695 gives 8.170), not its binary value
+     * (8.16949999...), so values that are that close to halfway between two outputs are left to String.format,
+     * as are values too large for every integer to be a double.
+     * The decimal separator is always a period, whatever the default locale.
+     */
+    private void appendFixed(double value, int decimals) throws IOException {
+
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            putAscii(Double.isNaN(value) ? "NaN" : (value > 0 ? "Infinity" : "-Infinity"));
+            return;
+        }
+        double scaled = Math.abs(value) * POWERS_OF_TEN[decimals];
+        if (scaled >= MAX_EXACT_INTEGER
+                || Math.abs(scaled - Math.floor(scaled) - 0.5) <= HALFWAY_ULPS * Math.ulp(scaled)) {
+            putAscii(String.format(Locale.ROOT, "%." + decimals + "f", value));
+            return;
+        }
+
+        if (value < 0 || (value == 0 && 1 / value < 0)) {
+            buffer.put((byte) '-');
+        }
+        long rounded = Math.round(scaled);
+        putDigits(rounded / POWERS_OF_TEN[decimals], 1);
+        if (decimals > 0) {
+            buffer.put((byte) '.');
+            putDigits(rounded % POWERS_OF_TEN[decimals], decimals);
+        }
+    }
+
+    /**
+     * Writes a non-negative number, padded with zeros to at least minDigits digits
+     */
+    private void putDigits(long number, int minDigits) {
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + number % 10);
+            number /= 10;
+        } while (number > 0);
+        while (count < minDigits) {
+            digits[count++] = '0';
+        }
+        while (count > 0) {
+            buffer.put(digits[--count]);
+        }
+    }
+
+    private void putAscii(String text) throws IOException {
+        if (text.length() > MAX_NUMBER_LENGTH) {     // only very large numbers, which may not fit after the line
+            flush();
+            channel.write(ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)));
+            return;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package sproj.yolo;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Size;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import static org.bytedeco.javacpp.opencv_core.CV_8UC3;
+import static org.bytedeco.javacpp.opencv_imgproc.resize;
+
+/**
+ * Pre-allocated input tensor for the YOLO model, so that no new arrays
+ * need to be allocated for each frame that is run through the network.
+ *
+ * Replaces NativeImageLoader.asMatrix() followed by ImagePreProcessingScaler.transform():
+ * the BGR pixels of each image are copied directly into the buffer in NCHW order,
+ * with the 0-1 scaling applied during the same copy.
+ *
+ * An InputBuffer is not thread safe, so each thread (or pipeline slot) should use its own.
+ */
+public class InputBuffer {
+
+    private static final float PIXEL_SCALE = 1.0f / 255.0f;    // same result as ImagePreProcessingScaler(0, 1)
+
+    private final int width;
+    private final int height;
+    private final int channels = 3;
+    private final int planeSize;
+    private final int imageSize;
+
+    private final int batchSize;
+    private final INDArray array;           // off-heap tensor that is passed to the model
+    private final float[] staging;          // on-heap copy of the tensor values, written to `array` in one copy
+    private final byte[] pixels;            // interleaved BGR bytes of a single image
+
+    private final Size inputSize;
+    private final Mat resized = new Mat();  // only used for images that are not already the input size
+
+    public InputBuffer(int batchSize) {
+        this(batchSize, YOLOModelContainer.IMG_WIDTH, YOLOModelContainer.IMG_HEIGHT);
+    }
+
+    /**
+     * The network is fully convolutional, so it also accepts inputs other than 416x416,
+     * e.g. small tiles around each animal. Both dimensions must be multiples of 32 (the
+     * downsampling factor of the network), giving a grid of (width / 32) x (height / 32) cells.
+     *
+     * @param batchSize number of images in the batch
+     * @param width width of each image in the batch
+     * @param height height of each image in the batch
+     */
+    public InputBuffer(int batchSize, int width, int height) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+        }
+        if (width <= 0 || height <= 0 || width % 32 != 0 || height % 32 != 0) {
+            throw new IllegalArgumentException("Input dimensions must be positive multiples of 32: " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.planeSize = width * height;
+        this.imageSize = channels * planeSize;
+        this.inputSize = new Size(width, height);
+        this.batchSize = batchSize;
+        this.array = Nd4j.create(new int[]{batchSize, channels, height, width}, 'c');
+        this.staging = new float[batchSize * imageSize];
+        this.pixels = new byte[imageSize];
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Writes an image into the given position of the batch.
+     * Images that are not already the input size (416x416 by default) are resized first, into a buffer that is reused.
+     *
+     * @param index position of the image in the batch
+     * @param image 8-bit, 3 channel BGR image
+     */
+    public void put(int index, Mat image) {
+
+        if (index < 0 || index >= batchSize) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of range for batch size " + batchSize);
+        }
+        if (image.type() != CV_8UC3) {
+            throw new IllegalArgumentException("Expected an 8-bit 3 channel image, got type " + image.type());
+        }
+
+        Mat src = image;
+        if (image.cols() != width || image.rows() != height) {
+            resize(image, resized, inputSize);
+            src = resized;
+        } else if (!image.isContinuous()) {     // e.g. a cropped region of a larger frame
+            image.copyTo(resized);
+            src = resized;
+        }
+
+        src.data().get(pixels);
+
+        // convert from interleaved HWC byte order to planar CHW float order, scaling to [0, 1]
+        int offset = index * imageSize;
+        int g = offset + planeSize;
+        int r = g + planeSize;
+        for (int p = 0, i = 0; p < planeSize; p++) {
+            staging[offset + p] = (pixels[i++] & 0xFF) * PIXEL_SCALE;
+            staging[g + p] = (pixels[i++] & 0xFF) * PIXEL_SCALE;
+            staging[r + p] = (pixels[i++] & 0xFF) * PIXEL_SCALE;
+        }
+    }
+
+    /**
+     * Copies the images written with put() into the off-heap tensor.
+     *
+     * @return INDArray of shape {batchSize, 3, height, width}, which is overwritten by the next call
+     */
+    public INDArray getArray() {
+        array.data().setData(staging);
+        return array;
+    }
+}
@@ -0,0 +1,76 @@
+package sproj.yolo;
+
+import org.nd4j.nativeblas.NativeOpsHolder;
+import sproj.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A fixed size pool of loaded and warmed-up YOLOModelContainer instances,
+ * so that several videos can be processed in parallel without each one
+ * having to load its own copy of the model from file.
+ *
+ * The underlying ComputationGraph is not thread safe, so each container is
+ * only ever used by one thread at a time, between acquire() and release().
+ */
+public class ModelPool {
+
+    private final Logger logger = new Logger();
+
+    private final BlockingQueue<YOLOModelContainer> available;
+    private final int size;
+
+    /**
+     * @param modelFilePath path to the saved model zip file
+     * @param size number of model instances to load, i.e. the maximum number of parallel workers
+     * @param useWorkspace see YOLOModelContainer
+     * @throws IOException if the model could not be loaded
+     */
+    public ModelPool(File modelFilePath, int size, boolean useWorkspace) throws IOException {
+
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1: " + size);
+        }
+
+        this.size = size;
+        this.available = new ArrayBlockingQueue<>(size);
+
+        for (int i = 0; i < size; i++) {
+            logger.info(String.format("Loading model instance %d of %d", i + 1, size));
+            available.add(new YOLOModelContainer(modelFilePath, useWorkspace));
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Blocks until a model instance is available
+     */
+    public YOLOModelContainer acquire() throws InterruptedException {
+        return available.take();
+    }
+
+    /**
+     * Returns a model instance to the pool. Must be called exactly once for each call to acquire()
+     */
+    public void release(YOLOModelContainer model) {
+        if (!available.offer(model)) {
+            throw new IllegalStateException("More models released than were acquired from the pool");
+        }
+    }
+
+    /**
+     * Splits the available CPU cores evenly between the models in the pool, so that the CPU backend
+     * does not start (number of workers x number of cores) OpenMP threads when all of them run at once.
+     */
+    public void divideCpuThreads() {
+        int threadsPerModel = Math.max(1, Runtime.getRuntime().availableProcessors() / size);
+        NativeOpsHolder.getInstance().getDeviceNativeOps().setOmpNumThreads(threadsPerModel);
+        logger.info(String.format("Using %d OpenMP threads for each of %d model instances", threadsPerModel, size));
+    }
+}
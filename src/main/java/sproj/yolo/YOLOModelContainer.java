@@ -2,27 +2,36 @@ package sproj.yolo;
 
 
 import org.bytedeco.javacpp.opencv_core.Mat;
-import org.datavec.image.loader.NativeImageLoader;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
 import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.deeplearning4j.nn.layers.objdetect.DetectedObject;
 import org.deeplearning4j.nn.layers.objdetect.Yolo2OutputLayer;
 import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.environment.Nd4jEnvironment;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.memory.conf.WorkspaceConfiguration;
+import org.nd4j.linalg.api.memory.enums.AllocationPolicy;
+import org.nd4j.linalg.api.memory.enums.LearningPolicy;
+import org.nd4j.linalg.api.memory.enums.SpillPolicy;
 import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
 import org.nd4j.linalg.factory.Nd4j;
+import sproj.util.DetectionBatch;
 import sproj.util.Logger;
+import sproj.util.NonMaxSuppression;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
 
 /**
  * Container class for Yolov2 Model
  */
 public class YOLOModelContainer {
 
-    private static final String DEFAULT_MODEL_PATH = "src/main/resources/inference/yolov2_80000.zip";
+    public static final String DEFAULT_MODEL_PATH = "src/main/resources/inference/yolov2_80000.zip";
 
     private final Logger logger = new Logger();//  LogManager.getLogger("YOLOModelContainer");
 
@@ -35,13 +44,31 @@ public class YOLOModelContainer {
     // but it allows the model to provide accurate detections more reliably,
     // with false detections being handled by the OptimalAssigner class
     private final double CONF_THRESHOLD = 0.2;
+    private final double NMS_THRESHOLD = 0.5;       // same as DetectionsParser
 
     private final int WARMUP_ITERATIONS = 10;
 
-    private final NativeImageLoader imageLoader = new NativeImageLoader(IMG_HEIGHT, IMG_WIDTH, IMG_CHANNELS);
-    private final ImagePreProcessingScaler normalizingScaler = new ImagePreProcessingScaler(0, 1);
+    /*
+     * Workspace used for the forward pass when USE_WORKSPACE is true. Its size is learned from the first
+     * warm-up iteration, after which the same block of memory is reused for the activations of every frame,
+     * instead of allocating and releasing them each time. It only grows again if a larger batch is run.
+     *
+     * Note that workspaces belong to the thread that opens them, so a different thread calling runInference()
+     * (e.g. the inference stage of the FramePipeline) learns the size on its own first frame instead.
+     */
+    private static final String WORKSPACE_ID = "YOLO_INFERENCE_WORKSPACE";
+    private final WorkspaceConfiguration workspaceConfig = WorkspaceConfiguration.builder()
+            .policyAllocation(AllocationPolicy.STRICT)
+            .policyLearning(LearningPolicy.FIRST_LOOP)
+            .policySpill(SpillPolicy.REALLOCATE)
+            .build();
+    private final boolean USE_WORKSPACE;
+
+    private final InputBuffer inputBuffer = new InputBuffer(1);       // reused for every single frame
+    private InputBuffer batchInputBuffer;                               // reused while the batch size stays the same
     private ComputationGraph yoloModel;
     private Yolo2OutputLayer outputLayer;
+    private YoloOutputDecoder decoder;
 
     /**
      * This is the function called externally by SinglePlateTracker. Runs inference on
@@ -52,17 +79,166 @@ public class YOLOModelContainer {
      * @throws IOException
      */
     public List<DetectedObject> runInference(Mat image) throws IOException {
-        INDArray imgArr = imageLoader.asMatrix(image);
-        normalizingScaler.transform(imgArr);
-        INDArray output = yoloModel.outputSingle(imgArr);
-        return outputLayer.getPredictedObjects(output, CONF_THRESHOLD);
+        inputBuffer.put(0, image);
+        return runInference(inputBuffer);
+    }
+
+    /**
+     * Runs inference on the passed in Mat image, and writes the detections straight into a DetectionBatch,
+     * in pixels of the model input. Same result as runInference(image) followed by DetectionsParser.parseDetections(),
+     * without creating any DetectedObject instances.
+     *
+     * @param image image to run the model on
+     * @param out cleared, then filled with the detections left after non maxima suppression
+     */
+    public void runInference(Mat image, DetectionBatch out) throws IOException {
+        inputBuffer.put(0, image);
+        runInference(inputBuffer, out);
+    }
+
+    /**
+     * Same as runInference(image, out), for the images in an InputBuffer.
+     * The detections of all images are added to `out`, with non maxima suppression applied to each image separately.
+     */
+    public void runInference(InputBuffer input, DetectionBatch out) {
+        out.clear();
+        YoloOutputDecoder output = predict(input);
+        for (int i = 0; i < output.getBatchSize(); i++) {
+            output.decode(i, out);
+        }
+    }
+
+    /**
+     * @return the non maximum suppression applied by runInference(image, out) and the decoder returned by predict()
+     */
+    public NonMaxSuppression getNonMaxSuppression() {
+        return decoder.getNonMaxSuppression();
+    }
+
+    /**
+     * Runs the forward pass on the images in an InputBuffer, for callers that decode each image separately,
+     * e.g. tiles that are each in a different part of the frame. See YoloOutputDecoder.decode().
+     *
+     * @param input InputBuffer filled with one or more images
+     * @return decoder holding the output, which is overwritten by the next call to this container
+     */
+    public YoloOutputDecoder predict(InputBuffer input) {
+        decode(input.getArray());
+        return decoder;
+    }
+
+    /**
+     * Runs inference on images that have already been written to an InputBuffer,
+     * e.g. by the preprocessing stage of the FramePipeline.
+     *
+     * @param input InputBuffer filled with one or more images
+     * @return List of DetectedObject instances for all images in the buffer,
+     *         see DetectedObject.getExampleNumber() for the image each one was found in
+     */
+    public List<DetectedObject> runInference(InputBuffer input) {
+        return detect(input.getArray());
+    }
+
+    /**
+     * Runs the forward pass and decodes the network output into DetectedObject instances.
+     *
+     * In workspace mode, the output and any class prediction arrays live in workspace memory, which is reused
+     * as soon as this function returns. The predicted class of each DetectedObject is therefore computed here,
+     * inside the workspace, and DetectedObject.getClassPredictions() must not be used by the caller.
+     */
+    private List<DetectedObject> detect(INDArray input) {
+
+        if (!USE_WORKSPACE) {
+            INDArray output = yoloModel.outputSingle(input);
+            return outputLayer.getPredictedObjects(output, CONF_THRESHOLD);
+        }
+
+        try (MemoryWorkspace workspace = Nd4j.getWorkspaceManager().getAndActivateWorkspace(workspaceConfig, WORKSPACE_ID)) {
+
+            INDArray output = yoloModel.output(false, workspace, input)[0];
+            List<DetectedObject> detectedObjects = outputLayer.getPredictedObjects(output, CONF_THRESHOLD);
+
+            for (DetectedObject object : detectedObjects) {
+                object.getPredictedClass();     // caches the class index in the object, used later for NMS
+            }
+            return detectedObjects;
+        }
+    }
+
+    /**
+     * Runs the forward pass and copies the network output into the decoder, inside the workspace when it is used
+     */
+    private void decode(INDArray input) {
+
+        if (!USE_WORKSPACE) {
+            decoder.load(yoloModel.outputSingle(input));
+            return;
+        }
+
+        try (MemoryWorkspace workspace = Nd4j.getWorkspaceManager().getAndActivateWorkspace(workspaceConfig, WORKSPACE_ID)) {
+            decoder.load(yoloModel.output(false, workspace, input)[0]);
+        }
+    }
+
+    /**
+     * Runs inference on a batch of images with a single forward pass through the network,
+     * which makes much better use of the CPU than running the images one at a time.
+     *
+     * @param images list of Mat images, all of which are resized to the network input size
+     * @return one List of DetectedObject instances for each image, in the same order as `images`
+     * @throws IOException
+     */
+    public List<List<DetectedObject>> runInference(List<Mat> images) throws IOException {
+
+        int batchSize = images.size();
+        List<List<DetectedObject>> detections = new ArrayList<>(batchSize);
+
+        if (batchSize == 0) {
+            return detections;
+        }
+
+        if (batchInputBuffer == null || batchInputBuffer.getBatchSize() != batchSize) {
+            batchInputBuffer = new InputBuffer(batchSize);
+        }
+
+        for (int i = 0; i < batchSize; i++) {
+            batchInputBuffer.put(i, images.get(i));
+        }
+
+        for (int i = 0; i < batchSize; i++) {
+            detections.add(new ArrayList<>());
+        }
+
+        // split the detections back up by the index of the image they were found in
+        for (DetectedObject object : runInference(batchInputBuffer)) {
+            detections.get(object.getExampleNumber()).add(object);
+        }
+        return detections;
     }
 
     public YOLOModelContainer() throws IOException {
         this(new File(DEFAULT_MODEL_PATH));
     }
 
+    public YOLOModelContainer(boolean useWorkspace) throws IOException {
+        this(new File(DEFAULT_MODEL_PATH), useWorkspace);
+    }
+
     public YOLOModelContainer(File modelFilePath) throws IOException {
+        this(modelFilePath, false);
+    }
+
+    /**
+     * @param modelFilePath path to the saved model zip file
+     * @param useWorkspace if true, run every forward pass inside a reusable memory workspace,
+     *                     which keeps frame times steady during long tracking runs
+     * @throws IOException if the model could not be loaded
+     */
+    public YOLOModelContainer(File modelFilePath, boolean useWorkspace) throws IOException {
+
+        this.USE_WORKSPACE = useWorkspace;
+
+        logBackendInfo();
 
         try {
             logger.info("Loading model...");
@@ -73,12 +249,45 @@ public class YOLOModelContainer {
             throw new IOException("Model file could not be restored: " + modelFilePath, e);
         }
 
+        if (USE_WORKSPACE) {
+            // let the layers reuse their internal activation memory as well
+            yoloModel.getConfiguration().setInferenceWorkspaceMode(WorkspaceMode.ENABLED);
+        }
+
         logger.info("Model loaded.");
-        warmupModel(WARMUP_ITERATIONS);
         outputLayer = (Yolo2OutputLayer) yoloModel.getOutputLayer(0);
+
+        int numbAnchors = (int) ((org.deeplearning4j.nn.conf.layers.objdetect.Yolo2OutputLayer) outputLayer.conf().getLayer())
+                .getBoundingBoxes().size(0);
+        decoder = new YoloOutputDecoder(numbAnchors, CONF_THRESHOLD, NMS_THRESHOLD);
+        warmupModel(WARMUP_ITERATIONS);
     }
 
 
+    /**
+     * Logs which ND4J backend was selected at startup (CPU or CUDA, depending on the Maven build profile),
+     * along with the BLAS vendor and thread count, since these determine the inference throughput.
+     *
+     * The number of OpenMP threads used by the CPU backend can be set with the OMP_NUM_THREADS environment variable.
+     */
+    private void logBackendInfo() {
+
+        Properties env = Nd4j.getExecutioner().getEnvironmentInformation();
+
+        logger.info(String.format("ND4J backend: %s (%s), BLAS vendor: %s, OpenMP threads: %s, BLAS threads: %s, CPU cores: %s",
+                env.get(Nd4jEnvironment.BACKEND_KEY),
+                Nd4j.getBackend().getClass().getSimpleName(),
+                env.get(Nd4jEnvironment.BLAS_VENDOR_KEY),
+                env.get(Nd4jEnvironment.OMP_THREADS_KEY),
+                env.get(Nd4jEnvironment.BLAS_THREADS_KEY),
+                env.get(Nd4jEnvironment.CPU_CORES_KEY))
+        );
+
+        if (env.containsKey(Nd4jEnvironment.CUDA_NUM_GPUS_KEY)) {
+            logger.info("CUDA devices available: " + env.get(Nd4jEnvironment.CUDA_NUM_GPUS_KEY));
+        }
+    }
+
     /**
      * Run warm-up iterations before using the model for inference.
      *
@@ -97,6 +306,9 @@ public class YOLOModelContainer {
      * to learn memory requirements for execution.
 
      * During this initialization phase, performance will be slower than after its completion.
+     *
+     * In workspace mode, the warm-up also sizes the inference workspace, so that it is already
+     * allocated by the time the first real frame is run.
      */
     private void warmupModel(int iterations) {
 
@@ -105,7 +317,7 @@ public class YOLOModelContainer {
         INDArray warmupArray = Nd4j.rand(INPUT_SHAPE, seed);
 
         for (int i = 0; i < iterations; i++) {
-            yoloModel.outputSingle(warmupArray);
+            decode(warmupArray);
         }
     }
 }
\ No newline at end of file
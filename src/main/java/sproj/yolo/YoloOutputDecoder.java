@@ -0,0 +1,172 @@
+package sproj.yolo;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import sproj.util.DetectionBatch;
+import sproj.util.NonMaxSuppression;
+
+import java.util.Arrays;
+
+/**
+ * Decodes the output of the Yolo2OutputLayer straight into a DetectionBatch, in image pixels.
+ *
+ * Replaces Yolo2OutputLayer.getPredictedObjects() followed by DetectionsParser: that reads every anchor
+ * of every grid cell with a separate getDouble() call, and creates a DetectedObject (holding its own
+ * INDArray of class probabilities) for each anchor above the confidence threshold.
+ * Here the whole output is copied to the heap with a single bulk copy, the confidence threshold is applied
+ * while scanning the confidence values, and only the anchors above it are read any further and
+ * written to the DetectionBatch, already converted from grid cell units to pixels.
+ *
+ * The output of the layer is already activated, with shape [batch, anchors * (5 + classes), gridHeight, gridWidth].
+ * For each anchor, the 5 + classes channels are: x and y within the grid cell, width and height in grid cells,
+ * confidence, and the class probabilities.
+ *
+ * A decoder is not thread safe. Each YOLOModelContainer has its own.
+ */
+public class YoloOutputDecoder {
+
+    private static final double PIXELS_PER_CELL = 32.0;     // downsampling factor of the network
+
+    private final int numbAnchors;
+    private final double confThreshold;
+    private final NonMaxSuppression nonMaxSuppression;
+
+    private float[] values = new float[0];      // heap copy of the last output loaded
+    private int batchSize;
+    private int channelsPerAnchor;
+    private int gridHeight;
+    private int gridWidth;
+
+    /**
+     * @param numbAnchors number of anchor boxes per grid cell, i.e. rows of Yolo2OutputLayer.getBoundingBoxes()
+     * @param confThreshold anchors with a confidence below this are ignored
+     * @param nmsThreshold boxes of the same class overlapping a more confident box by more than this are removed
+     */
+    public YoloOutputDecoder(int numbAnchors, double confThreshold, double nmsThreshold) {
+        if (numbAnchors < 1) {
+            throw new IllegalArgumentException("Number of anchors must be at least 1: " + numbAnchors);
+        }
+        if (confThreshold < 0 || confThreshold > 1) {
+            throw new IllegalArgumentException("Confidence threshold must be in range [0,1]: " + confThreshold);
+        }
+        this.numbAnchors = numbAnchors;
+        this.confThreshold = confThreshold;
+        this.nonMaxSuppression = new NonMaxSuppression(nmsThreshold, true);
+    }
+
+    /**
+     * Copies the network output to the heap. When the output is in workspace memory,
+     * this must be called before the workspace is closed.
+     *
+     * @param output activations of the Yolo2OutputLayer
+     */
+    public void load(INDArray output) {
+
+        if (output.rank() != 4 || output.size(1) % numbAnchors != 0 || output.size(1) / numbAnchors <= 5) {
+            throw new IllegalStateException("Invalid network output shape for " + numbAnchors + " anchors: "
+                    + Arrays.toString(output.shape()));
+        }
+
+        batchSize = (int) output.size(0);
+        channelsPerAnchor = (int) (output.size(1) / numbAnchors);
+        gridHeight = (int) output.size(2);
+        gridWidth = (int) output.size(3);
+
+        int length = (int) output.length();
+        if (values.length < length) {
+            values = new float[length];
+        }
+
+        INDArray contiguous = output.isView() || output.ordering() != 'c' ? output.dup('c') : output;
+        if (contiguous.data().dataType() == DataBuffer.Type.FLOAT) {
+            contiguous.data().asNioFloat().get(values, 0, length);
+        } else {
+            System.arraycopy(contiguous.data().asFloat(), 0, values, 0, length);
+        }
+    }
+
+    /**
+     * @return the non maximum suppression applied to the detections of each image, e.g. to change its method
+     */
+    public NonMaxSuppression getNonMaxSuppression() {
+        return nonMaxSuppression;
+    }
+
+    /**
+     * @return number of images in the last output loaded
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Adds the detections in one image of the last output loaded to `out`, after any detections
+     * already in it, and applies non maxima suppression to the added detections only.
+     * The boxes are in pixels of the model input, see decode(example, out, offsetX, offsetY, scaleX, scaleY).
+     */
+    public void decode(int example, DetectionBatch out) {
+        decode(example, out, 0, 0, 1.0, 1.0);
+    }
+
+    /**
+     * Same as decode(example, out), for an image that was cut out of a larger frame and resized before
+     * being passed to the model. The boxes are in the coordinates of the larger frame:
+     *
+     *      frameX = offsetX + (pixels in the model input) * scaleX
+     *
+     * @param example index of the image in the batch
+     * @param out DetectionBatch to add the detections to
+     * @param offsetX x coordinate of the top left corner of the image within the larger frame
+     * @param offsetY y coordinate of the top left corner of the image within the larger frame
+     * @param scaleX width of the image in frame pixels, divided by the width of the model input
+     * @param scaleY height of the image in frame pixels, divided by the height of the model input
+     */
+    public void decode(int example, DetectionBatch out, double offsetX, double offsetY, double scaleX, double scaleY) {
+
+        if (example < 0 || example >= batchSize) {
+            throw new IndexOutOfBoundsException("Image " + example + " of " + batchSize);
+        }
+
+        int first = out.size();
+        int plane = gridHeight * gridWidth;
+        int numbClasses = channelsPerAnchor - 5;
+
+        // same order as Yolo2OutputLayer.getPredictedObjects(), so that boxes with equal confidence are kept the same way
+        for (int x = 0; x < gridWidth; x++) {
+            for (int y = 0; y < gridHeight; y++) {
+                for (int b = 0; b < numbAnchors; b++) {
+
+                    // index of channel 0 of this anchor, at this grid cell
+                    int base = (example * numbAnchors + b) * channelsPerAnchor * plane + y * gridWidth + x;
+
+                    double confidence = values[base + 4 * plane];
+                    if (confidence < confThreshold) {
+                        continue;
+                    }
+
+                    int predictedClass = 0;
+                    float bestProbability = values[base + 5 * plane];
+                    for (int c = 1; c < numbClasses; c++) {
+                        float probability = values[base + (5 + c) * plane];
+                        if (probability > bestProbability) {
+                            bestProbability = probability;
+                            predictedClass = c;
+                        }
+                    }
+
+                    // convert from grid cell units to pixels
+                    double centerX = offsetX + ((double) values[base] + x) * PIXELS_PER_CELL * scaleX;
+                    double centerY = offsetY + ((double) values[base + plane] + y) * PIXELS_PER_CELL * scaleY;
+                    double width = (double) values[base + 2 * plane] * PIXELS_PER_CELL * scaleX;
+                    double height = (double) values[base + 3 * plane] * PIXELS_PER_CELL * scaleY;
+
+                    out.add((int) Math.round(centerX - (width / 2)), (int) Math.round(centerY - (height / 2)),
+                            (int) Math.round(centerX + (width / 2)), (int) Math.round(centerY + (height / 2)),
+                            confidence, predictedClass);
+                }
+            }
+        }
+
+        nonMaxSuppression.apply(out, first);
+    }
+}
@@ -0,0 +1,80 @@
+package sproj.assignment;
+
+import org.bytedeco.javacpp.opencv_core;
+import org.junit.jupiter.api.Test;
+import sproj.tracking.Animal;
+import sproj.util.BoundingBox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that gating and splitting the problem into connected components
+ * gives the same assignments as solving the whole cost matrix at once
+ */
+class GatedAssignerTest {
+
+    private opencv_core.Scalar fake_clr = new opencv_core.Scalar(0);
+
+
+    @Test
+    void testSameAssignmentsAsUngatedSolver() {
+
+        Random random = new Random(7);
+        GatedAssigner gated = new GatedAssigner(1000);
+        JonkerVolgenantAssigner ungated = new JonkerVolgenantAssigner();
+
+        for (int trial=0; trial<200; trial++) {
+
+            int numbAnimals = random.nextInt(30);
+            int numbBoxes = random.nextInt(30);
+            List<Animal> animals = new ArrayList<>(numbAnimals);
+            List<BoundingBox> boxes = new ArrayList<>(numbBoxes);
+
+            for (int i=0; i<numbAnimals; i++) {
+                Animal animal = new Animal(random.nextInt(1000), random.nextInt(1000), null, fake_clr, null);
+                animal.setCurrCostNonAssignnmnt(10 + random.nextInt(60));
+                animals.add(animal);
+            }
+            for (int i=0; i<numbBoxes; i++) {
+                boxes.add(new BoundingBox(new int[]{random.nextInt(1000), random.nextInt(1000)}, 5, 5));
+            }
+
+            List<OptimalAssigner.Assignment> expected = ungated.getOptimalAssignments(animals, boxes, new ArrayList<>());
+            List<OptimalAssigner.Assignment> actual = gated.getOptimalAssignments(animals, boxes, new ArrayList<>());
+
+            assertEquals(expected.size(), actual.size());
+            for (int i=0; i<expected.size(); i++) {
+                assertSame(expected.get(i).animal, actual.get(i).animal);
+                assertSame(expected.get(i).box, actual.get(i).box);
+            }
+        }
+    }
+
+
+    @Test
+    void testSeparateGroupsAreSeparateComponents() {
+
+        GatedAssigner gated = new GatedAssigner(50);
+        gated.setParallel(true);
+
+        List<Animal> animals = new ArrayList<>();
+        List<BoundingBox> boxes = new ArrayList<>();
+        for (int i=0; i<10; i++) {
+            animals.add(new Animal(100 * i, 100 * i, null, fake_clr, null));
+            boxes.add(new BoundingBox(new int[]{100 * (9 - i) + 4, 100 * (9 - i) + 3}, 5, 5));
+        }
+
+        List<OptimalAssigner.Assignment> assignments = gated.getOptimalAssignments(animals, boxes, new ArrayList<>());
+
+        assertEquals(10, gated.getNumbComponents());
+        assertEquals(2, gated.getLargestComponentSize());
+        for (int i=0; i<10; i++) {
+            assertSame(animals.get(i), assignments.get(i).animal);
+            assertSame(boxes.get(9 - i), assignments.get(i).box);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package sproj.assignment;
+
+import org.bytedeco.javacpp.opencv_core;
+import org.junit.jupiter.api.Test;
+import sproj.tracking.Animal;
+import sproj.util.BoundingBox;
+import sproj.util.DetectionBatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that the JonkerVolgenantAssigner gives one assignment per animal,
+ * and finds assignments as good as the Munkres implementation in OptimalAssigner
+ */
+class JonkerVolgenantAssignerTest {
+
+    private JonkerVolgenantAssigner assigner = new JonkerVolgenantAssigner();
+
+    private opencv_core.Scalar fake_clr = new opencv_core.Scalar(0);
+
+
+    @Test
+    void testAssignmentsWithMissingAndExtraBoxes() {
+
+        List<Animal> animals = new ArrayList<>();
+        animals.add(new Animal(0, 0, null, fake_clr, null));
+        animals.add(new Animal(100, 100, null, fake_clr, null));
+        animals.add(new Animal(200, 200, null, fake_clr, null));
+
+        List<BoundingBox> boxes = new ArrayList<>();
+        boxes.add(new BoundingBox(new int[]{205, 205}, 5, 5));
+        boxes.add(new BoundingBox(new int[]{3, 3}, 5, 5));
+        boxes.add(new BoundingBox(new int[]{400, 10}, 5, 5));     // too far from any animal
+
+        List<OptimalAssigner.Assignment> assignments = assigner.getOptimalAssignments(animals, boxes, new ArrayList<>());
+
+        assertEquals(animals.size(), assignments.size());
+        assertSame(animals.get(0), assignments.get(0).animal);
+        assertSame(boxes.get(1), assignments.get(0).box);
+        assertSame(animals.get(1), assignments.get(1).animal);
+        assertNull(assignments.get(1).box);
+        assertSame(animals.get(2), assignments.get(2).animal);
+        assertSame(boxes.get(0), assignments.get(2).box);
+    }
+
+
+    @Test
+    void testNoBoxes() {
+
+        List<Animal> animals = new ArrayList<>();
+        animals.add(new Animal(10, 10, null, fake_clr, null));
+        animals.add(new Animal(50, 50, null, fake_clr, null));
+
+        List<OptimalAssigner.Assignment> assignments = assigner.getOptimalAssignments(
+                animals, new ArrayList<>(), new ArrayList<>());
+
+        assertEquals(2, assignments.size());
+        for (OptimalAssigner.Assignment assignment : assignments) {
+            assertNull(assignment.box);
+        }
+    }
+
+
+    @Test
+    void testSameTotalCostAsMunkres() {
+
+        Random random = new Random(42);
+        OptimalAssigner munkres = new OptimalAssigner();
+
+        for (int trial=0; trial<200; trial++) {
+
+            int size = 1 + random.nextInt(15);
+            List<Animal> animals = new ArrayList<>(size);
+            List<BoundingBox> boxes = new ArrayList<>(size);
+
+            for (int i=0; i<size; i++) {
+                Animal animal = new Animal(random.nextInt(300), random.nextInt(300), null, fake_clr, null);
+                animal.setCurrCostNonAssignnmnt(10 + random.nextInt(60));
+                animals.add(animal);
+                boxes.add(new BoundingBox(new int[]{random.nextInt(300), random.nextInt(300)}, 5, 5));
+            }
+
+            double expected = totalCost(munkres.getOptimalAssignments(animals, boxes));
+            double actual = totalCost(assigner.getOptimalAssignments(animals, boxes, new ArrayList<>()));
+
+            // OptimalAssigner rounds its costs to 3 decimal places
+            assertEquals(expected, actual, 0.001 * size);
+        }
+    }
+
+
+    @Test
+    void testDetectionBatchGivesSameAssignments() {
+
+        Random random = new Random(7);
+        DetectionBatch batch = new DetectionBatch();
+
+        for (int trial=0; trial<50; trial++) {
+
+            int size = 1 + random.nextInt(15);
+            List<Animal> animals = new ArrayList<>(size);
+            List<BoundingBox> boxes = new ArrayList<>(size);
+            batch.clear();
+
+            for (int i=0; i<size; i++) {
+                animals.add(new Animal(random.nextInt(300), random.nextInt(300), null, fake_clr, null));
+                BoundingBox box = new BoundingBox(new int[]{random.nextInt(300), random.nextInt(300)}, 5, 5);
+                boxes.add(box);
+                batch.add(box.topleftX, box.topleftY, box.botRightX, box.botRightY, 1.0, 0);
+            }
+
+            List<OptimalAssigner.Assignment> fromList = assigner.getOptimalAssignments(animals, boxes, new ArrayList<>());
+            List<Integer> expected = new ArrayList<>();
+            for (OptimalAssigner.Assignment assignment : fromList) {
+                expected.add(assignment.box == null ? -1 : boxes.indexOf(assignment.box));
+            }
+
+            List<OptimalAssigner.Assignment> fromBatch = assigner.getOptimalAssignments(animals, batch, new ArrayList<>());
+            assertEquals(size, fromBatch.size());
+            for (int i=0; i<size; i++) {
+                assertSame(animals.get(i), fromBatch.get(i).animal);
+                assertEquals((int) expected.get(i), fromBatch.get(i).box == null ? -1 :
+                        batch.asBoundingBoxes().indexOf(fromBatch.get(i).box));
+            }
+        }
+    }
+
+
+    private double totalCost(List<OptimalAssigner.Assignment> assignments) {
+        double total = 0;
+        for (OptimalAssigner.Assignment assignment : assignments) {
+            if (assignment.animal == null) {
+                continue;
+            }
+            total += assignment.box == null ? assignment.animal.getCurrNonAssignmentCost() :
+                    Math.hypot(assignment.animal.x - assignment.box.centerX, assignment.animal.y - assignment.box.centerY);
+        }
+        return total;
+    }
+}
@@ -229,6 +229,38 @@ class OptimalAssignerTest {
 
 
 
+    @Test
+    void testReusedAssignerMatchesNewAssigner() {
+
+        // solve a large problem first, so that the smaller ones run in matrices left over from it
+        int[] sizes = new int[]{12, 3, 7, 1, 12, 5};
+
+        List<OptimalAssigner.Assignment> buffer = new ArrayList<>();
+
+        for (int size : sizes) {
+
+            List<Animal> animals = new ArrayList<>(size);
+            List<BoundingBox> boxes = new ArrayList<>(size + 1);
+
+            for (int i=0; i<size; i++) {
+                animals.add(new Animal(20 * i, 15 * i, null, fake_clr, null));
+                boxes.add(new BoundingBox(new int[]{20 * (size - 1 - i) + 3, 15 * (size - 1 - i) + 2}, 5, 5));
+            }
+            boxes.add(new BoundingBox(new int[]{400, 400}, 5, 5));   // extra detection
+
+            List<OptimalAssigner.Assignment> expected = new OptimalAssigner().getOptimalAssignments(animals, boxes);
+            List<OptimalAssigner.Assignment> actual = assigner.getOptimalAssignments(animals, boxes, buffer);
+
+            assertSame(buffer, actual);
+            assertEquals(expected.size(), actual.size());
+            for (int i=0; i<expected.size(); i++) {
+                assertSame(expected.get(i).animal, actual.get(i).animal);
+                assertSame(expected.get(i).box, actual.get(i).box);
+            }
+        }
+    }
+
+
     private void testOptimalAssignmentWhenEqual(int numberOfObjects) {
 
         double multiplier = 10.0;
@@ -0,0 +1,209 @@
+package sproj.prediction;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that PrimitiveKalmanFilter and the tracks of a KalmanBank give the same state estimations and error
+ * covariances as the Apache Commons KalmanFilter built by KalmanFilterBuilder, through the same predict and correct steps,
+ * and after being restored to the same state
+ */
+class KalmanFilterEquivalenceTest {
+
+    private static final double TOLERANCE = 1e-9;
+
+    private final KalmanFilterBuilder builder = new KalmanFilterBuilder();
+
+
+    @Test
+    void testPrimitiveSameAsCommons() {
+
+        Random random = new Random(11);
+        int numbTracks = 8;
+
+        List<TrackingFilter> primitive = new ArrayList<>();
+        List<TrackingFilter> commons = new ArrayList<>();
+        for (int i=0; i<numbTracks; i++) {
+            double x0 = random.nextInt(416), y0 = random.nextInt(416);
+            primitive.add(newPrimitiveFilter(x0, y0));
+            commons.add(newCommonsFilter(x0, y0));
+        }
+
+        for (int step=0; step<300; step++) {
+            for (int i=0; i<numbTracks; i++) {
+
+                primitive.get(i).predict();
+                commons.get(i).predict();
+
+                double[] measurement = random.nextInt(5) > 0 ?
+                        randomMeasurement(random, primitive.get(i)) : predictedMeasurement(primitive.get(i));
+                primitive.get(i).correct(measurement);
+                commons.get(i).correct(measurement);
+
+                assertSameFilter(commons.get(i), primitive.get(i));
+            }
+        }
+    }
+
+
+    @Test
+    void testKalmanBankSameAsSingleFilters() {
+
+        Random random = new Random(13);
+        int numbTracks = 10;
+
+        KalmanBank bank = builder.getNewKalmanBank();
+        List<TrackingFilter> tracks = new ArrayList<>();
+        List<TrackingFilter> primitive = new ArrayList<>();
+        List<TrackingFilter> commons = new ArrayList<>();
+        for (int i=0; i<numbTracks; i++) {
+            double x0 = random.nextInt(416), y0 = random.nextInt(416);
+            tracks.add(bank.add(x0, y0, 0, 0));
+            primitive.add(newPrimitiveFilter(x0, y0));
+            commons.add(newCommonsFilter(x0, y0));
+        }
+
+        for (int frame=0; frame<300; frame++) {
+
+            // as SinglePlateTracker.trackFrame(): all tracks are advanced at once, then each Animal predicts
+            // (which does nothing more) and corrects its own track
+            bank.predictAll();
+            for (int i=0; i<numbTracks; i++) {
+                primitive.get(i).predict();
+                commons.get(i).predict();
+            }
+
+            // the first frames only have the batched updates, during which the tracks share their covariance
+            boolean outOfBand = frame >= 50;
+
+            for (int i=0; i<numbTracks; i++) {
+                TrackingFilter track = tracks.get(i);
+                track.predict();
+
+                double[] measurement = randomMeasurement(random, primitive.get(i));
+                track.correct(measurement);
+                primitive.get(i).correct(measurement);
+                commons.get(i).correct(measurement);
+
+                int operation = outOfBand ? random.nextInt(6) : 0;
+                if (operation == 1) {
+                    // read straight after the correction, which applies it before correctAll()
+                    assertEquals(primitive.get(i).getStateEstimation(0), track.getStateEstimation(0), TOLERANCE);
+
+                } else if (operation == 2) {
+                    // a second step of the same track within the frame
+                    track.predict();
+                    primitive.get(i).predict();
+                    commons.get(i).predict();
+                    double[] second = randomMeasurement(random, primitive.get(i));
+                    track.correct(second);
+                    primitive.get(i).correct(second);
+                    commons.get(i).correct(second);
+                }
+            }
+
+            // the stored corrections are otherwise applied by the next predictAll()
+            if (random.nextBoolean() || frame == 299) {
+                bank.correctAll();
+                for (int i=0; i<numbTracks; i++) {
+                    assertSameFilter(commons.get(i), primitive.get(i));
+                    assertSameFilter(commons.get(i), tracks.get(i));
+                }
+            }
+        }
+    }
+
+
+    @Test
+    void testRestoredFiltersGoOnTheSame() {
+
+        Random random = new Random(17);
+        TrackingFilter original = newPrimitiveFilter(100, 200);
+        for (int step=0; step<20; step++) {
+            original.predict();
+            original.correct(randomMeasurement(random, original));
+        }
+
+        double[] state = original.getStateEstimation();
+        double[][] covariance = new double[6][6];
+        for (int row=0; row<6; row++) {
+            for (int col=0; col<6; col++) {
+                covariance[row][col] = original.getErrorCovariance(row, col);
+            }
+        }
+
+        // filters that were at another state, as when a tracker resumes from a checkpoint
+        KalmanBank bank = builder.getNewKalmanBank();
+        List<TrackingFilter> restored = new ArrayList<>();
+        restored.add(newPrimitiveFilter(0, 0));
+        restored.add(newCommonsFilter(0, 0));
+        restored.add(bank.add(0, 0, 0, 0));
+        for (TrackingFilter filter : restored) {
+            filter.restore(state, covariance);
+            assertSameFilter(original, filter);
+        }
+
+        for (int step=0; step<50; step++) {
+            original.predict();
+            bank.predictAll();
+            double[] measurement = randomMeasurement(random, original);
+            original.correct(measurement);
+            for (TrackingFilter filter : restored) {
+                filter.predict();
+                filter.correct(measurement);
+            }
+            bank.correctAll();
+            for (TrackingFilter filter : restored) {
+                assertSameFilter(original, filter);
+            }
+        }
+    }
+
+
+    private TrackingFilter newPrimitiveFilter(double x0, double y0) {
+        builder.setUseCommonsMath(false);
+        return builder.getNewTrackingFilter(x0, y0, 0, 0);
+    }
+
+    private TrackingFilter newCommonsFilter(double x0, double y0) {
+        builder.setUseCommonsMath(true);
+        return builder.getNewTrackingFilter(x0, y0, 0, 0);
+    }
+
+    /**
+     * @return a measurement close to the current estimation of the filter, as Animal.updateTrajectory() gives
+     */
+    private static double[] randomMeasurement(Random random, TrackingFilter filter) {
+        double x = filter.getStateEstimation(0) + random.nextGaussian() * 5;
+        double y = filter.getStateEstimation(1) + random.nextGaussian() * 5;
+        double vx = random.nextGaussian() * 20;
+        double vy = random.nextGaussian() * 20;
+        return new double[]{x, y, vx, vy, vx / 30, vy / 30};
+    }
+
+    /**
+     * @return the measurement of an animal that was not assigned a detection, which Animal.predictTrajectory()
+     *         corrects with its own predicted position. The Commons filter needs a correction on every step:
+     *         its Cholesky decomposition can reject the rounding asymmetry of a covariance predicted several times
+     */
+    private static double[] predictedMeasurement(TrackingFilter filter) {
+        return new double[]{Math.round(filter.getStateEstimation(0)), Math.round(filter.getStateEstimation(1)),
+                filter.getStateEstimation(2), filter.getStateEstimation(3), 0, 0};
+    }
+
+    private static void assertSameFilter(TrackingFilter expected, TrackingFilter actual) {
+        for (int k=0; k<6; k++) {
+            assertEquals(expected.getStateEstimation(k), actual.getStateEstimation(k), TOLERANCE);
+        }
+        for (int row=0; row<6; row++) {
+            for (int col=0; col<6; col++) {
+                assertEquals(expected.getErrorCovariance(row, col), actual.getErrorCovariance(row, col), TOLERANCE);
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package sproj.tracking;
+
+import org.bytedeco.javacpp.opencv_core;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sproj.prediction.KalmanBank;
+import sproj.prediction.KalmanFilterBuilder;
+import sproj.prediction.TrackingFilter;
+import sproj.util.TrajectoryWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that animals restored from a saved TrackerCheckpoint are in the same state as when it was captured,
+ * and go on the same way, and that damaged checkpoint files are rejected
+ */
+class TrackerCheckpointTest {
+
+    private static final double TOLERANCE = 1e-9;
+    private static final double DT = 1.0 / 30;
+
+    private final int[] bounds = {0, 416, 0, 416};
+    private final KalmanFilterBuilder builder = new KalmanFilterBuilder();
+    private opencv_core.Scalar fake_clr = new opencv_core.Scalar(0);
+
+
+    @Test
+    void testRestoreWithSharedCovariance(@TempDir Path tempDir) throws IOException {
+        testRestore(tempDir, false);
+    }
+
+    @Test
+    void testRestoreWithUnsharedCovariance(@TempDir Path tempDir) throws IOException {
+        testRestore(tempDir, true);
+    }
+
+
+    @Test
+    void testCorruptCheckpoint(@TempDir Path tempDir) throws IOException {
+
+        File file = tempDir.resolve("test.checkpoint").toFile();
+        Random random = new Random(29);
+        KalmanBank bank = builder.getNewKalmanBank();
+        List<Animal> animals = newAnimals(bank, random);
+        track(bank, animals, random, 10);
+        TrackerCheckpoint.capture(10, 333, TrajectoryWriter.Format.CSV, 1000, animals).save(file);
+        byte[] contents = Files.readAllBytes(file.toPath());
+
+        // one changed byte in the middle of an animal
+        byte[] changed = contents.clone();
+        changed[contents.length / 2] ^= 0x10;
+        Files.write(file.toPath(), changed);
+        assertThrows(IOException.class, () -> TrackerCheckpoint.load(file));
+
+        // a format that does not exist, with a CRC that matches
+        ByteBuffer badFormat = ByteBuffer.wrap(contents.clone()).order(ByteOrder.LITTLE_ENDIAN);
+        badFormat.putInt(20, TrajectoryWriter.Format.values().length);
+        CRC32 crc = new CRC32();
+        crc.update(badFormat.array(), 0, contents.length - 4);
+        badFormat.putInt(contents.length - 4, (int) crc.getValue());
+        Files.write(file.toPath(), badFormat.array());
+        assertThrows(IOException.class, () -> TrackerCheckpoint.load(file));
+
+        // cut short
+        Files.write(file.toPath(), Arrays.copyOf(contents, contents.length - 9));
+        assertThrows(IOException.class, () -> TrackerCheckpoint.load(file));
+
+        // the original is still fine, but not for another number of animals
+        Files.write(file.toPath(), contents);
+        TrackerCheckpoint checkpoint = TrackerCheckpoint.load(file);
+        assertThrows(IllegalArgumentException.class,
+                () -> checkpoint.restore(new ArrayList<>(animals.subList(1, animals.size()))));
+    }
+
+
+    /**
+     * Captures the state of animals tracked for a while, saves and loads it, restores it on animals that
+     * were tracked differently, and checks that both go on the same way
+     *
+     * @param unshare give one animal's filter another covariance before the checkpoint, so that the tracks of the
+     *                KalmanBank have different covariances
+     */
+    private void testRestore(Path tempDir, boolean unshare) throws IOException {
+
+        File file = tempDir.resolve("test.checkpoint").toFile();
+        Random random = new Random(unshare ? 31 : 37);
+
+        KalmanBank bank = builder.getNewKalmanBank();
+        List<Animal> animals = newAnimals(bank, random);
+        track(bank, animals, random, 80);       // longer than the trails, so that they have wrapped around
+
+        if (unshare) {
+            // the covariances have converged by now, so another step would not tell the tracks apart
+            TrackingFilter filter = animals.get(1).trackingFilter;
+            double[][] covariance = new double[6][6];
+            for (int row=0; row<6; row++) {
+                for (int col=0; col<6; col++) {
+                    covariance[row][col] = 2 * filter.getErrorCovariance(row, col);
+                }
+            }
+            filter.restore(filter.getStateEstimation(), covariance);
+            assertNotEquals(animals.get(0).trackingFilter.getErrorCovariance(0, 0), filter.getErrorCovariance(0, 0));
+        }
+
+        TrackerCheckpoint.capture(80, 2669, TrajectoryWriter.Format.CHUNKED, 123456, animals).save(file);
+        TrackerCheckpoint checkpoint = TrackerCheckpoint.load(file);
+        assertEquals(80, checkpoint.frameNumber);
+        assertEquals(2669, checkpoint.timePos);
+        assertEquals(TrajectoryWriter.Format.CHUNKED, checkpoint.outputFormat);
+        assertEquals(123456, checkpoint.outputSize);
+        assertEquals(animals.size(), checkpoint.numbAnimals);
+
+        // animals of a new tracker, which has already tracked a few other frames
+        KalmanBank restoredBank = builder.getNewKalmanBank();
+        List<Animal> restored = newAnimals(restoredBank, new Random(41));
+        track(restoredBank, restored, new Random(43), 5);
+        checkpoint.restore(restored);
+        assertSameAnimals(animals, restored);
+
+        // then both go on from the checkpoint with the same detections
+        long seed = random.nextLong();
+        track(bank, animals, new Random(seed), 40);
+        track(restoredBank, restored, new Random(seed), 40);
+        assertSameAnimals(animals, restored);
+    }
+
+    private List<Animal> newAnimals(KalmanBank bank, Random random) {
+        List<Animal> animals = new ArrayList<>();
+        for (int a=0; a<4; a++) {
+            int x = 50 + random.nextInt(300), y = 50 + random.nextInt(300);
+            animals.add(new Animal(x, y, bounds, fake_clr, bank.add(x, y, 0, 0)));
+        }
+        return animals;
+    }
+
+    /**
+     * Moves the animals as SinglePlateTracker.trackFrame() does, with some animals not assigned on some frames
+     */
+    private static void track(KalmanBank bank, List<Animal> animals, Random random, int frames) {
+        for (int frame=0; frame<frames; frame++) {
+            bank.predictAll();
+            for (Animal animal : animals) {
+                if (random.nextInt(4) == 0) {
+                    animal.predictTrajectory(DT, frame * 33L);
+                } else {
+                    animal.updateLocation(animal.x + random.nextInt(11) - 5, animal.y + random.nextInt(11) - 5,
+                            DT, frame * 33L, false);
+                }
+            }
+            bank.correctAll();
+        }
+    }
+
+    private static void assertSameAnimals(List<Animal> expected, List<Animal> actual) {
+        for (int a=0; a<expected.size(); a++) {
+            Animal e = expected.get(a);
+            Animal b = actual.get(a);
+
+            assertEquals(e.x, b.x);
+            assertEquals(e.y, b.y);
+            assertEquals(e.vx, b.vx, TOLERANCE);
+            assertEquals(e.vy, b.vy, TOLERANCE);
+            assertEquals(e.ax, b.ax, TOLERANCE);
+            assertEquals(e.ay, b.ay, TOLERANCE);
+            assertEquals(e.currentHeading, b.currentHeading, TOLERANCE);
+            assertEquals(e.getCurrNonAssignmentCost(), b.getCurrNonAssignmentCost(), TOLERANCE);
+            assertEquals(e.getTimeStepsPredicted(), b.getTimeStepsPredicted());
+
+            for (int k=0; k<6; k++) {
+                assertEquals(e.trackingFilter.getStateEstimation(k), b.trackingFilter.getStateEstimation(k), TOLERANCE);
+            }
+            for (int row=0; row<6; row++) {
+                for (int col=0; col<6; col++) {
+                    assertEquals(e.trackingFilter.getErrorCovariance(row, col),
+                            b.trackingFilter.getErrorCovariance(row, col), TOLERANCE);
+                }
+            }
+
+            TrailBuffer trail = e.getLinePoints();
+            assertEquals(trail.size(), b.getLinePoints().size());
+            for (int i=0; i<trail.size(); i++) {
+                assertEquals(trail.getX(i), b.getLinePoints().getX(i));
+                assertEquals(trail.getY(i), b.getLinePoints().getY(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package sproj.util;
+
+import org.deeplearning4j.nn.layers.objdetect.DetectedObject;
+import org.deeplearning4j.nn.layers.objdetect.YoloUtils;
+import org.junit.jupiter.api.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that the GRID method suppresses the same detections as GREEDY, that GREEDY keeps the same boxes
+ * as YoloUtils.nms() from DL4J, and the behaviour of SOFT and of per class suppression
+ */
+class NonMaxSuppressionTest {
+
+    private static final double PIXELS_PER_CELL = 32.0;
+
+
+    @Test
+    void testGridSameAsGreedy() {
+
+        Random random = new Random(3);
+        NonMaxSuppression greedy = new NonMaxSuppression(0.5, true);
+        NonMaxSuppression grid = new NonMaxSuppression(0.5, true);
+        grid.setMethod(NonMaxSuppression.Method.GRID);
+
+        for (int trial=0; trial<300; trial++) {
+
+            // overlapping boxes of random sizes, some of them far from the others
+            DetectionBatch batch = new DetectionBatch();
+            int numbBoxes = random.nextInt(80);
+            int spread = 50 + random.nextInt(400);
+            for (int i=0; i<numbBoxes; i++) {
+                int x = random.nextInt(spread), y = random.nextInt(spread);
+                batch.add(x, y, x + 5 + random.nextInt(60), y + 5 + random.nextInt(60),
+                        random.nextDouble(), random.nextInt(2));
+            }
+
+            DetectionBatch expected = copy(batch);
+            DetectionBatch actual = copy(batch);
+            greedy.apply(expected, 0);
+            grid.apply(actual, 0);
+
+            assertSameDetections(expected, actual);
+        }
+    }
+
+
+    @Test
+    void testGreedySameAsYoloUtils() {
+
+        Random random = new Random(5);
+        NonMaxSuppression greedy = new NonMaxSuppression(0.5, true);
+
+        for (int trial=0; trial<200; trial++) {
+
+            // clusters of near duplicate boxes, as the network predicts for each animal, on a grid of cells
+            // far enough apart for boxes of different clusters never to overlap
+            List<Double> confidences = new ArrayList<>();
+            for (int i=1; i<=200; i++) {
+                confidences.add(i / 200.0);     // distinct, so that there are no ties in the order of the detections
+            }
+            Collections.shuffle(confidences, random);
+
+            DetectionBatch batch = new DetectionBatch();
+            int numbClusters = random.nextInt(12);
+            for (int c=0; c<numbClusters; c++) {
+                int centerX = 30 + 60 * (c % 6);
+                int centerY = 30 + 60 * (c / 6);
+                int clusterClass = random.nextInt(3);
+                int clusterSize = 1 + random.nextInt(6);
+                for (int i=0; i<clusterSize; i++) {
+                    int halfSize = 16 + random.nextInt(3);
+                    int x = centerX + random.nextInt(3) - 1;
+                    int y = centerY + random.nextInt(3) - 1;
+                    batch.add(x - halfSize, y - halfSize, x + halfSize, y + halfSize,
+                            confidences.get(batch.size()), clusterClass);
+                }
+            }
+
+            List<DetectedObject> objects = toDetectedObjects(batch, 3);
+            YoloUtils.nms(objects, 0.5);
+            greedy.apply(batch, 0);
+
+            assertEquals(objects.size(), batch.size());
+            assertEquals(numbClusters, batch.size());
+            for (int i=0; i<batch.size(); i++) {
+                // YoloUtils.nms() also keeps the remaining objects in their original order
+                DetectedObject object = objects.get(i);
+                assertEquals(object.getConfidence(), batch.getConfidence(i), 0.0);
+                assertEquals(object.getPredictedClass(), batch.getClassIndex(i));
+                assertEquals(object.getTopLeftXY()[0] * PIXELS_PER_CELL, batch.getTopLeftX(i), 1e-6);
+                assertEquals(object.getTopLeftXY()[1] * PIXELS_PER_CELL, batch.getTopLeftY(i), 1e-6);
+            }
+        }
+    }
+
+
+    @Test
+    void testPerClass() {
+
+        DetectionBatch batch = new DetectionBatch();
+        batch.add(0, 0, 40, 40, 0.9, 0);
+        batch.add(2, 2, 42, 42, 0.8, 1);
+        batch.add(1, 1, 41, 41, 0.7, 0);
+
+        DetectionBatch acrossClasses = copy(batch);
+        new NonMaxSuppression(0.5, false).apply(acrossClasses, 0);
+        assertEquals(1, acrossClasses.size());
+        assertEquals(0.9, acrossClasses.getConfidence(0), 0.0);
+
+        for (NonMaxSuppression.Method method : new NonMaxSuppression.Method[]{
+                NonMaxSuppression.Method.GREEDY, NonMaxSuppression.Method.GRID}) {
+            NonMaxSuppression perClass = new NonMaxSuppression(0.5, true);
+            perClass.setMethod(method);
+            DetectionBatch byClass = copy(batch);
+            perClass.apply(byClass, 0);
+            assertEquals(2, byClass.size());
+            assertEquals(0, byClass.getClassIndex(0));
+            assertEquals(1, byClass.getClassIndex(1));
+        }
+    }
+
+
+    @Test
+    void testSoftKeepsTouchingAnimals() {
+
+        NonMaxSuppression soft = new NonMaxSuppression(0.5, false);
+        soft.setSoftNms(0.5, 0.2);
+        assertEquals(NonMaxSuppression.Method.SOFT, soft.getMethod());
+
+        DetectionBatch batch = new DetectionBatch();
+        batch.add(0, 0, 40, 40, 0.9, 0);
+        batch.add(20, 0, 60, 40, 0.8, 0);       // a second animal touching the first, IoU 1/3
+        batch.add(1, 1, 41, 41, 0.7, 0);        // duplicate of the first
+        batch.add(200, 200, 240, 240, 0.6, 0);  // far from the others
+        double touchingIou = batch.iou(0, 1);
+
+        soft.apply(batch, 0);
+
+        assertEquals(3, batch.size());
+        assertEquals(0.9, batch.getConfidence(0), 0.0);
+        assertEquals(0.8 * Math.exp(-touchingIou * touchingIou / 0.5), batch.getConfidence(1), 1e-12);
+        assertEquals(200, batch.getTopLeftX(2));
+        assertEquals(0.6, batch.getConfidence(2), 0.0);
+
+        // greedy suppression would only keep one box at a lower threshold
+        DetectionBatch greedyBatch = new DetectionBatch();
+        greedyBatch.add(0, 0, 40, 40, 0.9, 0);
+        greedyBatch.add(20, 0, 60, 40, 0.8, 0);
+        new NonMaxSuppression(0.3, false).apply(greedyBatch, 0);
+        assertEquals(1, greedyBatch.size());
+    }
+
+
+    @Test
+    void testDetectionsBeforeFromAreLeftAlone() {
+
+        DetectionBatch batch = new DetectionBatch();
+        batch.add(0, 0, 40, 40, 0.5, 0);       // another image
+        batch.add(0, 0, 40, 40, 0.4, 0);
+        batch.add(0, 0, 40, 40, 0.9, 0);
+        batch.add(1, 1, 41, 41, 0.8, 0);
+
+        new NonMaxSuppression(0.5, false).apply(batch, 2);
+
+        assertEquals(3, batch.size());
+        assertEquals(0.5, batch.getConfidence(0), 0.0);
+        assertEquals(0.4, batch.getConfidence(1), 0.0);
+        assertEquals(0.9, batch.getConfidence(2), 0.0);
+    }
+
+
+    private static DetectionBatch copy(DetectionBatch batch) {
+        DetectionBatch copy = new DetectionBatch();
+        for (int i=0; i<batch.size(); i++) {
+            copy.add(batch.getTopLeftX(i), batch.getTopLeftY(i), batch.getBotRightX(i), batch.getBotRightY(i),
+                    batch.getConfidence(i), batch.getClassIndex(i));
+        }
+        return copy;
+    }
+
+    private static void assertSameDetections(DetectionBatch expected, DetectionBatch actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i=0; i<expected.size(); i++) {
+            assertEquals(expected.getTopLeftX(i), actual.getTopLeftX(i));
+            assertEquals(expected.getTopLeftY(i), actual.getTopLeftY(i));
+            assertEquals(expected.getBotRightX(i), actual.getBotRightX(i));
+            assertEquals(expected.getBotRightY(i), actual.getBotRightY(i));
+            assertEquals(expected.getConfidence(i), actual.getConfidence(i), 0.0);
+            assertEquals(expected.getClassIndex(i), actual.getClassIndex(i));
+        }
+    }
+
+    /**
+     * @return the detections as DetectedObject instances, in grid cell units, as given by Yolo2OutputLayer
+     */
+    private static List<DetectedObject> toDetectedObjects(DetectionBatch batch, int numbClasses) {
+        List<DetectedObject> objects = new ArrayList<>(batch.size());
+        for (int i=0; i<batch.size(); i++) {
+            INDArray classPredictions = Nd4j.zeros(numbClasses, 1);
+            classPredictions.putScalar(batch.getClassIndex(i), 1.0);
+            objects.add(new DetectedObject(0,
+                    (batch.getTopLeftX(i) + batch.getBotRightX(i)) / 2.0 / PIXELS_PER_CELL,
+                    (batch.getTopLeftY(i) + batch.getBotRightY(i)) / 2.0 / PIXELS_PER_CELL,
+                    (batch.getBotRightX(i) - batch.getTopLeftX(i)) / PIXELS_PER_CELL,
+                    (batch.getBotRightY(i) - batch.getTopLeftY(i)) / PIXELS_PER_CELL,
+                    classPredictions, batch.getConfidence(i)));
+        }
+        return objects;
+    }
+}
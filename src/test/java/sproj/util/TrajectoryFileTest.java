@@ -0,0 +1,120 @@
+package sproj.util;
+
+import org.bytedeco.javacpp.opencv_core;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sproj.tracking.Animal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that the records written by TrajectoryWriter in the BINARY format are read back by TrajectoryFile,
+ * including frames missing from the file and an incomplete record at its end
+ */
+class TrajectoryFileTest {
+
+    private opencv_core.Scalar fake_clr = new opencv_core.Scalar(0);
+
+
+    @Test
+    void testRoundTripWithGaps(@TempDir Path tempDir) throws IOException {
+
+        Random random = new Random(17);
+        int numbAnimals = 3;
+        File file = tempDir.resolve("test.traj").toFile();
+        TrajectoryFile.Header header = new TrajectoryFile.Header(29.97, new int[]{10, 20, 640, 480},
+                new int[]{0, 1, 2}, new int[]{0xFF0000, 0x00FF00, 0x0000FF});
+
+        List<Animal> animals = new ArrayList<>();
+        for (int a=0; a<numbAnimals; a++) {
+            animals.add(new Animal(0, 0, null, fake_clr, null));
+        }
+
+        // frames 0-24, 40-59, then 100 on its own
+        int[][] ranges = {{0, 24}, {40, 59}, {100, 100}};
+        List<Integer> frames = new ArrayList<>();
+        List<double[]> points = new ArrayList<>();      // time, then x, y and confidence of each animal
+
+        try (TrajectoryWriter writer = new TrajectoryWriter(file, header, TrajectoryWriter.Format.BINARY)) {
+            for (int[] range : ranges) {
+                for (int frame=range[0]; frame<=range[1]; frame++) {
+                    double[] point = new double[1 + numbAnimals * 3];
+                    point[0] = frame * 33;
+                    for (int a=0; a<numbAnimals; a++) {
+                        point[1 + a * 3] = random.nextInt(640);
+                        point[2 + a * 3] = random.nextInt(480);
+                        point[3 + a * 3] = random.nextDouble();
+                        animals.get(a).getDataPoints().add(point[0], point[1 + a * 3], point[2 + a * 3], point[3 + a * 3]);
+                    }
+                    frames.add(frame);
+                    points.add(point);
+                }
+                writer.write(animals, range[1]);
+                for (Animal animal : animals) {
+                    animal.clearPoints();
+                }
+            }
+        }
+
+        TrajectoryFile trajectories = TrajectoryFile.open(file);
+        assertSameHeader(header, trajectories.getHeader());
+        assertRecords(trajectories, frames, points);
+
+        // frames in the gaps, and before and after the recorded frames
+        for (int frame : new int[]{25, 39, 60, 99, 101, -1}) {
+            assertEquals(-1, trajectories.findRecord(frame));
+        }
+
+        // an incomplete record, as left by a tracker stopped while writing
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[header.recordSize() - 1]);
+        }
+        TrajectoryFile truncated = TrajectoryFile.open(file);
+        assertRecords(truncated, frames, points);
+        assertEquals(-1, truncated.findRecord(101));
+    }
+
+
+    @Test
+    void testNotATrajectoryFile(@TempDir Path tempDir) throws IOException {
+        File file = tempDir.resolve("test.csv").toFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("0|1|2|0.500,\n".getBytes("US-ASCII"));
+        }
+        assertThrows(IOException.class, () -> TrajectoryFile.open(file));
+    }
+
+
+    private static void assertSameHeader(TrajectoryFile.Header expected, TrajectoryFile.Header actual) {
+        assertEquals(expected.numbAnimals, actual.numbAnimals);
+        assertEquals(expected.fps, actual.fps, 0.0);
+        assertArrayEquals(expected.crop, actual.crop);
+        assertArrayEquals(expected.animalIds, actual.animalIds);
+        assertArrayEquals(expected.animalColors, actual.animalColors);
+    }
+
+    private static void assertRecords(TrajectoryFile trajectories, List<Integer> frames, List<double[]> points) {
+        assertEquals(frames.size(), trajectories.getNumbRecords());
+        for (int r=0; r<frames.size(); r++) {
+            long record = trajectories.findRecord(frames.get(r));
+            assertEquals(r, record);
+            assertEquals((int) frames.get(r), trajectories.getFrameNumber(record));
+
+            double[] point = points.get(r);
+            assertEquals((long) point[0], trajectories.getTime(record));
+            for (int a=0; a<trajectories.getNumbAnimals(); a++) {
+                assertEquals((float) point[1 + a * 3], trajectories.getX(record, a), 0f);
+                assertEquals((float) point[2 + a * 3], trajectories.getY(record, a), 0f);
+                assertEquals((float) point[3 + a * 3], trajectories.getConfidence(record, a), 0f);
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package sproj.util;
+
+import org.bytedeco.javacpp.opencv_core;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sproj.tracking.Animal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that the rows written by TrajectoryWriter in the CHUNKED format are read back by TrajectoryStore,
+ * that the index finds the chunk of each frame and time, and that a store without its index is recovered
+ */
+class TrajectoryStoreTest {
+
+    private static final int CHUNK_FRAMES = 7;
+
+    private opencv_core.Scalar fake_clr = new opencv_core.Scalar(0);
+
+
+    @Test
+    void testRoundTrip(@TempDir Path tempDir) throws IOException {
+
+        File file = tempDir.resolve("test.trajz").toFile();
+        Rows rows = writeStore(file, new Random(19));
+
+        TrajectoryStore store = TrajectoryStore.open(file);
+        assertFalse(store.isRecovered());
+        assertEquals(CHUNK_FRAMES, store.getChunkFrames());
+        assertEquals(3, store.getHeader().numbAnimals);
+        assertEquals((rows.frames.size() + CHUNK_FRAMES - 1) / CHUNK_FRAMES, store.getNumbChunks());
+        assertRows(store, rows, rows.frames.size());
+
+        // frames in the gap are looked for in the chunk that goes on after it, which does not have them
+        int gapChunk = store.findChunk(60);
+        assertTrue(store.getFirstFrame(gapChunk) < 60 && store.getLastFrame(gapChunk) >= 80);
+        assertEquals(-1, store.readChunk(gapChunk).indexOf(60));
+        assertEquals(0, store.findChunk(-5));
+        assertEquals(store.getNumbChunks(), store.findChunk(rows.frames.get(rows.frames.size() - 1) + 1));
+
+        for (int c=0; c<store.getNumbChunks(); c++) {
+            assertEquals(c, store.findChunkByTime(store.getFirstTime(c)));
+            assertEquals(c, store.findChunkByTime(store.getLastTime(c)));
+        }
+        assertEquals(0, store.findChunkByTime(0));
+        assertEquals(store.getNumbChunks(), store.findChunkByTime(store.getLastTime(store.getNumbChunks() - 1) + 1));
+    }
+
+
+    @Test
+    void testRecoveredWithoutIndex(@TempDir Path tempDir) throws IOException {
+
+        File file = tempDir.resolve("test.trajz").toFile();
+        Rows rows = writeStore(file, new Random(23));
+        int numbChunks = TrajectoryStore.open(file).getNumbChunks();
+        long lastChunkOffset = lastChunkOffset(file);
+
+        // the footer cut short, as if the tracker stopped while writing the index: every chunk is still there
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        TrajectoryStore store = TrajectoryStore.open(file);
+        assertTrue(store.isRecovered());
+        assertEquals(numbChunks, store.getNumbChunks());
+        assertRows(store, rows, rows.frames.size());
+
+        // stopped in the middle of the last chunk: only the frames of that chunk are lost
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(lastChunkOffset + 40);
+        }
+        store = TrajectoryStore.open(file);
+        assertTrue(store.isRecovered());
+        assertEquals(numbChunks - 1, store.getNumbChunks());
+        assertRows(store, rows, (numbChunks - 1) * CHUNK_FRAMES);
+    }
+
+
+    /**
+     * Frames, times and points of the rows written by writeStore()
+     */
+    private static class Rows {
+        final List<Integer> frames = new ArrayList<>();
+        final List<double[]> points = new ArrayList<>();     // time, then x, y and confidence of each animal
+    }
+
+    /**
+     * Writes frames 0-49 and 80-119 for 3 animals, with positions that jump by large and negative
+     * amounts between frames, and confidences rounded to 3 decimals
+     */
+    private Rows writeStore(File file, Random random) throws IOException {
+
+        int numbAnimals = 3;
+        TrajectoryFile.Header header = new TrajectoryFile.Header(30.0, new int[]{0, 0, 1920, 1080},
+                new int[]{4, 5, 6}, new int[]{0x102030, 0x405060, 0x708090});
+        List<Animal> animals = new ArrayList<>();
+        for (int a=0; a<numbAnimals; a++) {
+            animals.add(new Animal(0, 0, null, fake_clr, null));
+        }
+
+        Rows rows = new Rows();
+        long time = 5_000_000_000L;         // more than an int can hold
+
+        try (TrajectoryWriter writer = new TrajectoryWriter(file, header, CHUNK_FRAMES)) {
+            for (int[] range : new int[][]{{0, 49}, {80, 119}}) {
+                for (int start=range[0]; start<=range[1]; start+=10) {
+                    int end = Math.min(range[1], start + 9);
+                    for (int frame=start; frame<=end; frame++) {
+                        time += 1 + random.nextInt(100);
+                        double[] point = new double[1 + numbAnimals * 3];
+                        point[0] = time;
+                        for (int a=0; a<numbAnimals; a++) {
+                            point[1 + a * 3] = random.nextInt(2_000_000) - 1_000_000;
+                            point[2 + a * 3] = random.nextBoolean() ? -random.nextInt(100) : random.nextInt(1 << 30);
+                            point[3 + a * 3] = random.nextInt(1001) / 1000.0;
+                            animals.get(a).getDataPoints().add(point[0], point[1 + a * 3], point[2 + a * 3],
+                                    point[3 + a * 3]);
+                        }
+                        rows.frames.add(frame);
+                        rows.points.add(point);
+                    }
+                    writer.write(animals, end);
+                    for (Animal animal : animals) {
+                        animal.clearPoints();
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Checks that the store has the first numbRows rows, found through findChunk()
+     */
+    private static void assertRows(TrajectoryStore store, Rows rows, int numbRows) throws IOException {
+
+        int total = 0;
+        for (int c=0; c<store.getNumbChunks(); c++) {
+            total += store.readChunk(c).size;
+        }
+        assertEquals(numbRows, total);
+
+        for (int r=0; r<numbRows; r++) {
+            int frame = rows.frames.get(r);
+            double[] point = rows.points.get(r);
+
+            int c = store.findChunk(frame);
+            assertTrue(store.getFirstFrame(c) <= frame && frame <= store.getLastFrame(c));
+            TrajectoryStore.Chunk chunk = store.readChunk(c);
+            int i = chunk.indexOf(frame);
+            assertTrue(i >= 0);
+
+            assertEquals(frame, chunk.frameNumbers[i]);
+            assertEquals((long) point[0], chunk.times[i]);
+            for (int a=0; a<store.getHeader().numbAnimals; a++) {
+                assertEquals((int) point[1 + a * 3], chunk.x[a][i]);
+                assertEquals((int) point[2 + a * 3], chunk.y[a][i]);
+                assertEquals(point[3 + a * 3], chunk.confidence[a][i], 1e-9);
+            }
+            assertEquals(c, store.findChunkByTime((long) point[0]));
+        }
+    }
+
+    /**
+     * @return offset of the last chunk of the store, which ends the last index entry, just before the footer
+     */
+    private static long lastChunkOffset(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(raf.length() - 16 - 8);
+            return Long.reverseBytes(raf.readLong());
+        }
+    }
+}
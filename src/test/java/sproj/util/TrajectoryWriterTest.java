@@ -0,0 +1,206 @@
+package sproj.util;
+
+import org.bytedeco.javacpp.opencv_core;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sproj.tracking.Animal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that a TrajectoryWriter resumed from the size returned by sync() on an earlier writer gives the same file
+ * as a writer that was never interrupted, whatever the earlier writer wrote after that point,
+ * that sync() includes every row queued before it, and that CSV rows are formatted as String.format does
+ */
+class TrajectoryWriterTest {
+
+    private static final int NUMB_ANIMALS = 3;
+    private static final int CHUNK_FRAMES = 7;
+
+    private final TrajectoryFile.Header header = new TrajectoryFile.Header(30.0, new int[]{0, 0, 640, 480},
+            new int[]{0, 1, 2}, new int[]{0xFF0000, 0x00FF00, 0x0000FF});
+    private opencv_core.Scalar fake_clr = new opencv_core.Scalar(0);
+
+
+    @Test
+    void testResumeCSV(@TempDir Path tempDir) throws IOException {
+        testResume(tempDir, TrajectoryWriter.Format.CSV);
+    }
+
+    @Test
+    void testResumeBinary(@TempDir Path tempDir) throws IOException {
+        testResume(tempDir, TrajectoryWriter.Format.BINARY);
+    }
+
+    @Test
+    void testResumeChunked(@TempDir Path tempDir) throws IOException {
+        testResume(tempDir, TrajectoryWriter.Format.CHUNKED);
+    }
+
+
+    @Test
+    void testResumePastEnd(@TempDir Path tempDir) throws IOException {
+        File file = tempDir.resolve("test.traj").toFile();
+        List<Animal> animals = newAnimals();
+        try (TrajectoryWriter writer = newWriter(file, TrajectoryWriter.Format.BINARY)) {
+            writeRows(writer, animals, new Random(3), 0, 19);
+        }
+        long size = file.length();
+        assertThrows(IOException.class,
+                () -> new TrajectoryWriter(file, header, TrajectoryWriter.Format.BINARY, size + 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> new TrajectoryWriter(file, header, TrajectoryWriter.Format.BINARY, -1));
+        assertEquals(size, file.length());
+    }
+
+
+    @Test
+    void testSyncIncludesLastRow(@TempDir Path tempDir) throws IOException {
+
+        // the writer thread must not take the sync request without the row queued just before it
+        File file = tempDir.resolve("test.traj").toFile();
+        List<Animal> animals = newAnimals();
+        Random random = new Random(13);
+        try (TrajectoryWriter writer = newWriter(file, TrajectoryWriter.Format.BINARY)) {
+            for (int frame=0; frame<2000; frame++) {
+                for (Animal animal : animals) {
+                    animal.getDataPoints().add(frame * 33, random.nextInt(640), random.nextInt(480), 1);
+                }
+                writer.write(animals, frame);
+                for (Animal animal : animals) {
+                    animal.clearPoints();
+                }
+                assertEquals(header.size() + (frame + 1L) * header.recordSize(), writer.sync());
+            }
+        }
+    }
+
+
+    @Test
+    void testCSVSameAsStringFormat(@TempDir Path tempDir) throws IOException {
+
+        File file = tempDir.resolve("test.csv").toFile();
+        List<Animal> animals = newAnimals();
+        Random random = new Random(17);
+        StringBuilder expected = new StringBuilder();
+
+        try (TrajectoryWriter writer = new TrajectoryWriter(file, NUMB_ANIMALS)) {
+            for (int frame=0; frame<20000; frame++) {
+                for (Animal animal : animals) {
+                    double time = randomValue(random, 1), x = randomValue(random, 1), y = randomValue(random, 1);
+                    double confidence = randomValue(random, 4);
+                    animal.getDataPoints().add(time, x, y, confidence);
+                    expected.append(String.format(Locale.ROOT, "%.0f|%.0f|%.0f|%.3f,", time, x, y, confidence));
+                }
+                expected.append('\n');
+                writer.write(animals, frame);
+                for (Animal animal : animals) {
+                    animal.clearPoints();
+                }
+            }
+        }
+
+        assertEquals(expected.toString(), new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII));
+    }
+
+
+    /**
+     * Writes frames 0-44 and syncs, then frames 45-69 that are lost along with some garbage, as when the tracker
+     * is stopped after a checkpoint. A resumed writer then writes frames 45-119 again.
+     */
+    private void testResume(Path tempDir, TrajectoryWriter.Format format) throws IOException {
+
+        File expected = tempDir.resolve("expected." + format).toFile();
+        File resumed = tempDir.resolve("resumed." + format).toFile();
+        List<Animal> animals = newAnimals();
+
+        // sync() ends the current chunk of a TrajectoryStore, so the uninterrupted writer syncs at the same frame
+        try (TrajectoryWriter writer = newWriter(expected, format)) {
+            writeRows(writer, animals, new Random(5), 0, 44);
+            writer.sync();
+            writeRows(writer, animals, new Random(7), 45, 119);
+        }
+
+        long resumeSize;
+        try (TrajectoryWriter writer = newWriter(resumed, format)) {
+            writeRows(writer, animals, new Random(5), 0, 44);
+            resumeSize = writer.sync();
+            writeRows(writer, animals, new Random(11), 45, 69);
+        }
+        assertTrue(resumed.length() > resumeSize);
+        try (FileOutputStream out = new FileOutputStream(resumed, true)) {
+            out.write(new byte[]{'1', '2', '|', 0, -1, 0x7F, '\n', 42});
+        }
+
+        try (TrajectoryWriter writer = new TrajectoryWriter(resumed, header, format, resumeSize)) {
+            writeRows(writer, animals, new Random(7), 45, 119);
+        }
+
+        assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(resumed.toPath()));
+    }
+
+    /**
+     * @return a value with up to the given number of decimals, often halfway between two outputs of the writer,
+     *         or any double, or a special value
+     */
+    private static double randomValue(Random random, int decimals) {
+        switch (random.nextInt(8)) {
+            case 0: return (random.nextInt(2_000_001) - 1_000_000) / Math.pow(10, decimals);
+            case 1: return random.nextInt(1_000_000) + 0.5;
+            case 2: return (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(25));
+            case 3: return random.nextInt(4) == 0 ? -0.0 : random.nextInt(1000);
+            case 4: return random.nextInt(3) == 0 ? Double.NaN : (random.nextBoolean() ? 1 : -1) * Double.POSITIVE_INFINITY;
+            default: return random.nextInt(100_000) / 10_000.0;
+        }
+    }
+
+    private TrajectoryWriter newWriter(File file, TrajectoryWriter.Format format) throws IOException {
+        switch (format) {
+            case CSV:
+                return new TrajectoryWriter(file, NUMB_ANIMALS);
+            case CHUNKED:
+                return new TrajectoryWriter(file, header, CHUNK_FRAMES);
+            default:
+                return new TrajectoryWriter(file, header, format);
+        }
+    }
+
+    private List<Animal> newAnimals() {
+        List<Animal> animals = new ArrayList<>();
+        for (int a=0; a<NUMB_ANIMALS; a++) {
+            animals.add(new Animal(0, 0, null, fake_clr, null));
+        }
+        return animals;
+    }
+
+    /**
+     * Writes random points for the frames from firstFrame to lastFrame, 10 frames at a time
+     */
+    private static void writeRows(TrajectoryWriter writer, List<Animal> animals, Random random,
+                                  int firstFrame, int lastFrame) throws IOException {
+        for (int start=firstFrame; start<=lastFrame; start+=10) {
+            int end = Math.min(lastFrame, start + 9);
+            for (int frame=start; frame<=end; frame++) {
+                for (Animal animal : animals) {
+                    animal.getDataPoints().add(frame * 33, random.nextInt(640), random.nextInt(480),
+                            random.nextInt(1001) / 1000.0);
+                }
+            }
+            writer.write(animals, end);
+            for (Animal animal : animals) {
+                animal.clearPoints();
+            }
+        }
+    }
+}